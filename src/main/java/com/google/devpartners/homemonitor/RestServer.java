@@ -23,12 +23,45 @@ import org.restlet.routing.Router;
 import org.restlet.service.CorsService;
 
 import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.alert.AlertEngine;
+import com.google.devpartners.homemonitor.ingest.DuplicateFilter;
+import com.google.devpartners.homemonitor.ingest.RateLimiter;
+import com.google.devpartners.homemonitor.ingest.ReportSpool;
+import com.google.devpartners.homemonitor.migration.Migrations;
+import com.google.devpartners.homemonitor.model.AlertRule;
+import com.google.devpartners.homemonitor.model.ChartTile;
 import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.model.DeviceReportArchive;
 import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.model.OwnerSettings;
+import com.google.devpartners.homemonitor.persistence.objectify.ConcurrencyLimitedEntityPersister;
 import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.MigratingEntityPersister;
 import com.google.devpartners.homemonitor.persistence.objectify.ObjectifyEntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.TieredEntityPersister;
+import com.google.devpartners.homemonitor.registry.DeviceRegistry;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+import com.google.devpartners.homemonitor.rest.AlertRuleRest;
+import com.google.devpartners.homemonitor.rest.CompletenessRest;
+import com.google.devpartners.homemonitor.rest.DevicePercentileRest;
 import com.google.devpartners.homemonitor.rest.DeviceRest;
+import com.google.devpartners.homemonitor.rest.DeviceStatisticsRest;
+import com.google.devpartners.homemonitor.rest.DeviceStatusRest;
 import com.google.devpartners.homemonitor.rest.DeviceTemperatureHumidityReportRest;
+import com.google.devpartners.homemonitor.rest.DeviceTileRest;
+import com.google.devpartners.homemonitor.rest.ExportRest;
+import com.google.devpartners.homemonitor.rest.ImportRest;
+import com.google.devpartners.homemonitor.rest.LocationRest;
+import com.google.devpartners.homemonitor.rest.MetricsRest;
+import com.google.devpartners.homemonitor.rest.OwnerDashboardRest;
+import com.google.devpartners.homemonitor.rest.OwnerSettingsRest;
+import com.google.devpartners.homemonitor.rest.TaskCreatorRest;
+import com.google.devpartners.homemonitor.series.RecentWindowStore;
+import com.google.devpartners.homemonitor.stats.DailyRollupStore;
+import com.google.devpartners.homemonitor.stats.StatisticsStore;
 import com.googlecode.objectify.ObjectifyService;
 
 /**
@@ -42,6 +75,24 @@ public class RestServer extends SwaggerApplication {
 
   protected static EntityPersister persister;
 
+  protected static RecentWindowStore recentWindowStore;
+
+  protected static DuplicateFilter duplicateFilter;
+
+  protected static DeviceRegistry deviceRegistry;
+
+  protected static RateLimiter rateLimiter;
+
+  protected static ReportSpool reportSpool;
+
+  protected static HeartbeatTable heartbeatTable;
+
+  protected static AlertEngine alertEngine;
+
+  protected static StatisticsStore statisticsStore;
+
+  protected static DailyRollupStore dailyRollupStore;
+
   public static EntityPersister getPersister() {
     if (persister == null) {
       synchronized (RestServer.class) {
@@ -53,6 +104,69 @@ public class RestServer extends SwaggerApplication {
     return persister;
   }
 
+  public static RecentWindowStore getRecentWindowStore() {
+    if (recentWindowStore == null) {
+      getPersister();
+    }
+    return recentWindowStore;
+  }
+
+  public static DuplicateFilter getDuplicateFilter() {
+    if (duplicateFilter == null) {
+      getPersister();
+    }
+    return duplicateFilter;
+  }
+
+  public static DeviceRegistry getDeviceRegistry() {
+    if (deviceRegistry == null) {
+      getPersister();
+    }
+    return deviceRegistry;
+  }
+
+  public static RateLimiter getRateLimiter() {
+    if (rateLimiter == null) {
+      getPersister();
+    }
+    return rateLimiter;
+  }
+
+  public static ReportSpool getReportSpool() {
+    if (reportSpool == null) {
+      getPersister();
+    }
+    return reportSpool;
+  }
+
+  public static HeartbeatTable getHeartbeatTable() {
+    if (heartbeatTable == null) {
+      getPersister();
+    }
+    return heartbeatTable;
+  }
+
+  public static AlertEngine getAlertEngine() {
+    if (alertEngine == null) {
+      getPersister();
+    }
+    return alertEngine;
+  }
+
+  public static StatisticsStore getStatisticsStore() {
+    if (statisticsStore == null) {
+      getPersister();
+    }
+    return statisticsStore;
+  }
+
+  public static DailyRollupStore getDailyRollupStore() {
+    if (dailyRollupStore == null) {
+      getPersister();
+    }
+    return dailyRollupStore;
+  }
+
   public RestServer() throws IOException {
     setName("HomeMonitor");
     CorsService corsService = new CorsService();
@@ -73,9 +187,34 @@ public class RestServer extends SwaggerApplication {
     router.attach("/device", DeviceRest.class);
     router.attach("/device/{id}", DeviceRest.class);
     router.attach("/device/owner/{owner}", DeviceRest.class);
+    router.attach("/device/owner/{owner}/status", DeviceStatusRest.class);
+    router.attach("/device/owner/{owner}/completeness", CompletenessRest.class);
+    router.attach("/device/owner/{owner}/dashboard", OwnerDashboardRest.class);
 
     router.attach("/devicereport", DeviceTemperatureHumidityReportRest.class);
     router.attach("/devicereport/{deviceId}", DeviceTemperatureHumidityReportRest.class);
+    router.attach("/devicereport/{deviceId}/stats", DeviceStatisticsRest.class);
+    router.attach("/devicereport/{deviceId}/percentile", DevicePercentileRest.class);
+    router.attach("/devicereport/{deviceId}/completeness", CompletenessRest.class);
+    router.attach("/devicereport/{deviceId}/tile", DeviceTileRest.class);
+    router.attach("/devicereport/{deviceId}/tile/{level}/{index}", DeviceTileRest.class);
+
+    router.attach("/location", LocationRest.class);
+
+    router.attach("/export", ExportRest.class);
+    router.attach("/import", ImportRest.class);
+    router.attach("/import/{job}", ImportRest.class);
+
+    router.attach("/alertrule", AlertRuleRest.class);
+    router.attach("/alertrule/{id}", AlertRuleRest.class);
+    router.attach("/alertrule/owner/{owner}", AlertRuleRest.class);
+
+    router.attach("/ownersettings", OwnerSettingsRest.class);
+    router.attach("/ownersettings/{owner}", OwnerSettingsRest.class);
+
+    router.attach("/taskcreator/{task}", TaskCreatorRest.class);
+
+    router.attach("/metrics", MetricsRest.class);
 
     return router;
   }
@@ -86,10 +225,50 @@ public class RestServer extends SwaggerApplication {
    */
   protected synchronized static void initApplicationContextAndProperties() {
 
-    persister = new ObjectifyEntityPersister();
+    // Old reports are compacted into monthly archives behind the datastore, the
+    // calls to the datastore are limited and shed by priority when it is slow,
+    // and the reads accept both layouts while a migration runs
+    persister = new MigratingEntityPersister(new TieredEntityPersister(
+        new ConcurrencyLimitedEntityPersister(new ObjectifyEntityPersister())),
+        Migrations.getAll());
 
     // Resister all Model Objects in the ObjectifyService
     ObjectifyService.register(Device.class);
     ObjectifyService.register(DeviceTemperatureHumidityReport.class);
+    ObjectifyService.register(DeviceReportArchive.class);
+    ObjectifyService.register(OwnerSettings.class);
+    ObjectifyService.register(JobCheckpoint.class);
+    ObjectifyService.register(DeviceHeartbeat.class);
+    ObjectifyService.register(AlertRule.class);
+    ObjectifyService.register(DeviceDailyRollup.class);
+    ObjectifyService.register(ChartTile.class);
+
+    if (recentWindowStore == null) {
+      recentWindowStore = new RecentWindowStore();
+    }
+    if (duplicateFilter == null) {
+      duplicateFilter = new DuplicateFilter();
+    }
+    if (deviceRegistry == null) {
+      deviceRegistry = new DeviceRegistry();
+    }
+    if (rateLimiter == null) {
+      rateLimiter = new RateLimiter(deviceRegistry);
+    }
+    if (reportSpool == null) {
+      reportSpool = new ReportSpool();
+    }
+    if (heartbeatTable == null) {
+      heartbeatTable = new HeartbeatTable(deviceRegistry);
+    }
+    if (alertEngine == null) {
+      alertEngine = new AlertEngine(deviceRegistry);
+    }
+    if (statisticsStore == null) {
+      statisticsStore = new StatisticsStore(recentWindowStore);
+    }
+    if (dailyRollupStore == null) {
+      dailyRollupStore = new DailyRollupStore();
+    }
   }
 }
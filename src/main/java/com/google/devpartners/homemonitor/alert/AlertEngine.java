@@ -0,0 +1,324 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.alert;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.model.AlertRule;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.registry.DeviceRegistry;
+import com.google.devpartners.homemonitor.task.AlertNotificationTask;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Evaluates the {@link AlertRule}s of the Device and of its owner on every
+ * report, as it is ingested.
+ *
+ * The rules are kept in memory and loaded again on the refresh interval,
+ * changes made through this instance are applied right away. A failed load
+ * keeps the old rules until the next interval. Every rule keeps a
+ * {@link RuleState} per Device, so a report costs a constant time per rule
+ * and no queries. The states are shared by all the instances through
+ * memcache, read and written with compare and set in one batch per report,
+ * so a Device that reports to several instances is evaluated on all its
+ * reports and a rule fires once. Without memcache every instance falls back
+ * to its own states.
+ *
+ * The alerts are delivered by an {@link AlertNotificationTask}, out of the
+ * request path.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class AlertEngine {
+
+  private static final Logger LOGGER = Logger.getLogger(AlertEngine.class.getName());
+
+  public static final String REFRESH_SECONDS = "homemonitor.alerts.refreshSeconds";
+  public static final String MAX_STATES = "homemonitor.alerts.maxStates";
+
+  private static final String NAMESPACE = "alerts";
+
+  // Compare and set rounds before the reading is skipped for a contended state
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final DeviceRegistry deviceRegistry;
+
+  private final long refreshMillis;
+
+  private final ConcurrentMap<Long, AlertRule> rules = new ConcurrentHashMap<Long, AlertRule>();
+
+  // Enabled rules by Device id and by owner, rebuilt when the rules change
+  private volatile Map<Long, List<AlertRule>> deviceRules = Collections.emptyMap();
+
+  private volatile Map<String, List<AlertRule>> ownerRules = Collections.emptyMap();
+
+  // State by rule, version of the rule and Device, when memcache is down
+  private final Cache<String, RuleState> states;
+
+  private final MemcacheService memcache;
+
+  private volatile long refreshed = 0;
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  public AlertEngine(DeviceRegistry deviceRegistry) {
+    this(deviceRegistry, TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(REFRESH_SECONDS, 300)),
+        ConfigUtil.getInt(MAX_STATES, 100000));
+  }
+
+  public AlertEngine(DeviceRegistry deviceRegistry, long refreshMillis, int maxStates) {
+    this.deviceRegistry = deviceRegistry;
+    this.refreshMillis = refreshMillis;
+    this.states = CacheBuilder.newBuilder().maximumSize(maxStates).build();
+    this.memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+  }
+
+  /**
+   * Evaluates the rules that apply to the Device of the report.
+   *
+   * @param persister to load the rules when they are stale
+   * @param report the report that was received
+   * @return the number of rules that fired
+   */
+  public int evaluate(EntityPersister persister, DeviceTemperatureHumidityReport report) {
+    Long deviceId = report.deviceId();
+    if (deviceId == null) {
+      return 0;
+    }
+    refreshIfStale(persister);
+
+    List<AlertRule> candidates = Lists.newArrayList();
+    addAll(candidates, deviceRules.get(deviceId));
+    Device device = deviceRegistry.getDevice(persister, deviceId);
+    if (device != null && device.getOwner() != null) {
+      addAll(candidates, ownerRules.get(device.getOwner()));
+    }
+    if (candidates.isEmpty()) {
+      return 0;
+    }
+
+    List<AlertRule> fired;
+    try {
+      fired = updateShared(candidates, report);
+    } catch (RuntimeException e) {
+      LOGGER.warning("Could not update the shared rule states, using the local ones: "
+          + e.getMessage());
+      Metrics.increment("alerts.localStates");
+      fired = updateLocal(candidates, report);
+    }
+    for (AlertRule rule : fired) {
+      fire(rule, report);
+    }
+    return fired.size();
+  }
+
+  public void putRule(AlertRule rule) {
+    if (rule != null && rule.getId() != null) {
+      rules.put(rule.getId(), rule);
+      index();
+    }
+  }
+
+  public void removeRule(Long id) {
+    if (id != null && rules.remove(id) != null) {
+      index();
+    }
+  }
+
+  /**
+   * Updates the states in memcache, the states changed by another instance
+   * in the meantime are read and updated again.
+   *
+   * @return the rules that fired
+   */
+  private List<AlertRule> updateShared(List<AlertRule> candidates,
+      DeviceTemperatureHumidityReport report) {
+    Map<String, AlertRule> pending = Maps.newHashMap();
+    for (AlertRule rule : candidates) {
+      pending.put(getKey(rule, report.deviceId()), rule);
+    }
+
+    List<AlertRule> fired = Lists.newArrayList();
+    for (int attempt = 0; attempt < MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+      Map<String, IdentifiableValue> stored = memcache.getIdentifiables(pending.keySet());
+      Map<String, CasValues> updates = Maps.newHashMap();
+      Map<String, byte[]> additions = Maps.newHashMap();
+      Set<String> firing = Sets.newHashSet();
+      for (Map.Entry<String, AlertRule> entry : pending.entrySet()) {
+        AlertRule rule = entry.getValue();
+        IdentifiableValue value = stored.get(entry.getKey());
+        RuleState state =
+            RuleState.fromBytes(rule, value == null ? null : (byte[]) value.getValue());
+        if (state.update(report.getDate().getTime(), rule.getValue(report))) {
+          firing.add(entry.getKey());
+        }
+        if (value == null) {
+          additions.put(entry.getKey(), state.toBytes());
+        } else {
+          updates.put(entry.getKey(), new CasValues(value, state.toBytes()));
+        }
+      }
+
+      Set<String> saved = Sets.newHashSet();
+      if (!updates.isEmpty()) {
+        saved.addAll(memcache.putIfUntouched(updates));
+      }
+      if (!additions.isEmpty()) {
+        saved.addAll(memcache.putAll(additions, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+      }
+      for (String key : saved) {
+        AlertRule rule = pending.remove(key);
+        if (firing.contains(key)) {
+          fired.add(rule);
+        }
+      }
+    }
+    if (!pending.isEmpty()) {
+      LOGGER.warning("Skipped a report of Device " + report.deviceId() + " for "
+          + pending.size() + " contended AlertRules");
+      Metrics.add("alerts.contended", pending.size());
+    }
+    return fired;
+  }
+
+  /**
+   * Updates the states of this instance.
+   *
+   * @return the rules that fired
+   */
+  private List<AlertRule> updateLocal(List<AlertRule> candidates,
+      DeviceTemperatureHumidityReport report) {
+    List<AlertRule> fired = Lists.newArrayList();
+    for (AlertRule rule : candidates) {
+      if (getState(rule, report.deviceId()).update(report.getDate().getTime(),
+          rule.getValue(report))) {
+        fired.add(rule);
+      }
+    }
+    return fired;
+  }
+
+  private static String getKey(AlertRule rule, Long deviceId) {
+    // A changed rule starts from a new state, the old one is evicted
+    return rule.getId() + ":" + rule.getUpdated().getTime() + ":" + deviceId;
+  }
+
+  private RuleState getState(AlertRule rule, Long deviceId) {
+    String key = getKey(rule, deviceId);
+    RuleState state = states.getIfPresent(key);
+    if (state == null) {
+      RuleState newState = new RuleState(rule);
+      state = states.asMap().putIfAbsent(key, newState);
+      if (state == null) {
+        state = newState;
+      }
+    }
+    return state;
+  }
+
+  private void fire(AlertRule rule, DeviceTemperatureHumidityReport report) {
+    LOGGER.info("AlertRule " + rule.getId() + " (" + rule.getName() + ") fired for Device "
+        + report.deviceId() + ": " + rule.getMetric() + " " + rule.getCondition() + " "
+        + rule.getThreshold());
+    Metrics.increment("alerts.fired");
+    if (rule.getWebhookUrl() == null) {
+      return;
+    }
+    try {
+      AlertNotificationTask.enqueue(rule, report);
+    } catch (RuntimeException e) {
+      // The report is already saved, losing the notification must not fail it
+      LOGGER.warning("Could not enqueue the alert of AlertRule " + rule.getId() + ": "
+          + e.getMessage());
+      Metrics.increment("alerts.lost");
+    }
+  }
+
+  private synchronized void index() {
+    Map<Long, List<AlertRule>> newDeviceRules = Maps.newHashMap();
+    Map<String, List<AlertRule>> newOwnerRules = Maps.newHashMap();
+    for (AlertRule rule : rules.values()) {
+      if (!rule.isEnabled() || rule.getMetric() == null || rule.getCondition() == null) {
+        continue;
+      }
+      if (rule.getDeviceId() != null) {
+        add(newDeviceRules, rule.getDeviceId(), rule);
+      } else if (rule.getOwner() != null) {
+        add(newOwnerRules, rule.getOwner(), rule);
+      }
+    }
+    deviceRules = newDeviceRules;
+    ownerRules = newOwnerRules;
+  }
+
+  private static void addAll(List<AlertRule> candidates, List<AlertRule> rules) {
+    if (rules != null) {
+      candidates.addAll(rules);
+    }
+  }
+
+  private static <K> void add(Map<K, List<AlertRule>> rulesByKey, K key, AlertRule rule) {
+    List<AlertRule> keyRules = rulesByKey.get(key);
+    if (keyRules == null) {
+      keyRules = Lists.newArrayList();
+      rulesByKey.put(key, keyRules);
+    }
+    keyRules.add(rule);
+  }
+
+  private void refreshIfStale(EntityPersister persister) {
+    if (System.currentTimeMillis() - refreshed < refreshMillis
+        || !refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      List<AlertRule> loaded = persister.get(AlertRule.class);
+      synchronized (this) {
+        rules.clear();
+        for (AlertRule rule : loaded) {
+          rules.put(rule.getId(), rule);
+        }
+        index();
+      }
+    } catch (RuntimeException e) {
+      // Keep the old rules until the next interval, not on every report
+      LOGGER.warning("Could not refresh the AlertRules: " + e.getMessage());
+    } finally {
+      refreshed = System.currentTimeMillis();
+      refreshing.set(false);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.alert;
+
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.math.LongMath;
+import com.google.devpartners.homemonitor.model.AlertRule;
+
+/**
+ * Sliding window state of one {@link AlertRule} for one Device, in constant
+ * memory whatever the window and the reporting interval.
+ *
+ * ABOVE and BELOW only keep when the condition started to hold. RISE and
+ * DROP keep the minimum and maximum of a fixed number of buckets covering
+ * the window, so the window is accurate to one bucket.
+ *
+ * The state is serialized to be shared through memcache by all the
+ * instances.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class RuleState {
+
+  static final int BUCKETS = 16;
+
+  private static final long NONE = Long.MIN_VALUE;
+
+  // Last date, condition start, firing flag and the buckets
+  private static final int BYTES = 8 + 8 + 1 + BUCKETS * (8 + 4 + 4);
+
+  private final AlertRule.Condition condition;
+
+  private final float threshold;
+
+  private final long windowMillis;
+
+  private final long bucketMillis;
+
+  private long lastDate = NONE;
+
+  // When the value went over or under the threshold
+  private long conditionSince = NONE;
+
+  private boolean firing;
+
+  private final long[] bucketIds = new long[BUCKETS];
+
+  private final float[] bucketMins = new float[BUCKETS];
+
+  private final float[] bucketMaxs = new float[BUCKETS];
+
+  RuleState(AlertRule rule) {
+    this.condition = rule.getCondition();
+    this.threshold = rule.getThreshold();
+    this.windowMillis = TimeUnit.MINUTES.toMillis(rule.getWindowMinutes());
+    this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+    Arrays.fill(bucketIds, NONE);
+  }
+
+  /**
+   * Adds a reading, readings older than the last one are ignored.
+   *
+   * @param date the date of the reading in milliseconds
+   * @param value the value of the metric of the rule
+   * @return true if the rule starts firing with this reading, a rule fires
+   *         again only after its condition stopped holding
+   */
+  synchronized boolean update(long date, float value) {
+    if (date < lastDate) {
+      return false;
+    }
+    lastDate = date;
+
+    boolean holds;
+    switch (condition) {
+      case ABOVE:
+      case BELOW:
+        if (condition == AlertRule.Condition.ABOVE ? value > threshold : value < threshold) {
+          if (conditionSince == NONE) {
+            conditionSince = date;
+          }
+          holds = date - conditionSince >= windowMillis;
+        } else {
+          conditionSince = NONE;
+          holds = false;
+        }
+        break;
+      case RISE:
+        add(date, value);
+        holds = value - min(date) >= threshold;
+        break;
+      case DROP:
+        add(date, value);
+        holds = max(date) - value >= threshold;
+        break;
+      default:
+        holds = false;
+    }
+
+    boolean fires = holds && !firing;
+    firing = holds;
+    return fires;
+  }
+
+  /**
+   * @return the state serialized to be kept in memcache
+   */
+  synchronized byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+    buffer.putLong(lastDate);
+    buffer.putLong(conditionSince);
+    buffer.put((byte) (firing ? 1 : 0));
+    for (int i = 0; i < BUCKETS; i++) {
+      buffer.putLong(bucketIds[i]);
+      buffer.putFloat(bucketMins[i]);
+      buffer.putFloat(bucketMaxs[i]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return the state of the rule stored in the bytes, or an empty one if
+   *         there are none or they were written with another format
+   */
+  static RuleState fromBytes(AlertRule rule, byte[] data) {
+    RuleState state = new RuleState(rule);
+    if (data != null && data.length == BYTES) {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      state.lastDate = buffer.getLong();
+      state.conditionSince = buffer.getLong();
+      state.firing = buffer.get() != 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        state.bucketIds[i] = buffer.getLong();
+        state.bucketMins[i] = buffer.getFloat();
+        state.bucketMaxs[i] = buffer.getFloat();
+      }
+    }
+    return state;
+  }
+
+  private void add(long date, float value) {
+    long bucketId = LongMath.divide(date, bucketMillis, RoundingMode.FLOOR);
+    int index = LongMath.mod(bucketId, BUCKETS);
+    if (bucketIds[index] != bucketId) {
+      bucketIds[index] = bucketId;
+      bucketMins[index] = value;
+      bucketMaxs[index] = value;
+    } else {
+      bucketMins[index] = Math.min(bucketMins[index], value);
+      bucketMaxs[index] = Math.max(bucketMaxs[index], value);
+    }
+  }
+
+  private float min(long date) {
+    long oldest = LongMath.divide(date, bucketMillis, RoundingMode.FLOOR) - BUCKETS;
+    float min = Float.MAX_VALUE;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (bucketIds[i] > oldest) {
+        min = Math.min(min, bucketMins[i]);
+      }
+    }
+    return min;
+  }
+
+  private float max(long date) {
+    long oldest = LongMath.divide(date, bucketMillis, RoundingMode.FLOOR) - BUCKETS;
+    float max = -Float.MAX_VALUE;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (bucketIds[i] > oldest) {
+        max = Math.max(max, bucketMaxs[i]);
+      }
+    }
+    return max;
+  }
+}
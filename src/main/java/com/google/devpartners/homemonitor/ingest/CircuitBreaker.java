@@ -0,0 +1,77 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker around a dependency that may be failing.
+ *
+ * After a number of consecutive failures the breaker opens and rejects the
+ * calls for a while, then lets a single trial call through: if it succeeds
+ * the breaker closes, if it fails it stays open for another while.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class CircuitBreaker {
+
+  private static final long CLOSED = 0;
+
+  private final int failureThreshold;
+
+  private final long openMillis;
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  // When the breaker opened, or when the last trial was let through
+  private final AtomicLong openedAt = new AtomicLong(CLOSED);
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if the call can go to the dependency
+   */
+  public boolean allowRequest() {
+    long opened = openedAt.get();
+    if (opened == CLOSED) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    // One trial per open interval, the other calls keep being rejected
+    return now - opened >= openMillis && openedAt.compareAndSet(opened, now);
+  }
+
+  public void recordSuccess() {
+    failures.set(0);
+    openedAt.set(CLOSED);
+  }
+
+  public void recordFailure() {
+    if (failures.incrementAndGet() >= failureThreshold) {
+      openedAt.set(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return true if the breaker is rejecting calls
+   */
+  public boolean isOpen() {
+    return openedAt.get() != CLOSED;
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * Filters the reports that Devices send again when they retry a request.
+ *
+ * Every Device identifies its reports with a sequence number or the date of
+ * the reading in milliseconds. The filter keeps a {@link ReplayWindow} with
+ * the recent sequence numbers of every Device, or the {@link RecentKeys} with
+ * its last dates, which are not dense enough for a bitmap. The windows
+ * live in memory and are written through to memcache asynchronously; memcache
+ * is only read when the window of a Device is not in memory yet, so the
+ * filter adds no read RPCs to the ingestion of known Devices.
+ *
+ * Instances don't coordinate, a retry that lands on another instance at the
+ * same time as the original report may still be saved twice.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DuplicateFilter {
+
+  private static final Logger LOGGER = Logger.getLogger(DuplicateFilter.class.getName());
+
+  public static final String ENABLED = "homemonitor.dedup.enabled";
+  public static final String WINDOW_SIZE = "homemonitor.dedup.windowSize";
+  public static final String MAX_REORDER = "homemonitor.dedup.maxReorder";
+  public static final String DATE_WINDOW_SIZE = "homemonitor.dedup.dateWindowSize";
+  public static final String MAX_DEVICES = "homemonitor.dedup.maxDevices";
+
+  // The kinds of keys, the sequence number sent by the Device or the date of the reading
+  public static final String SEQUENCE = "sequence";
+  public static final String DATE = "date";
+
+  private static final String NAMESPACE = "dedup";
+
+  private final boolean enabled;
+
+  private final int windowSize;
+
+  private final int maxReorder;
+
+  private final int dateWindowSize;
+
+  private final Cache<String, KeyWindow> windows;
+
+  private final AsyncMemcacheService memcache;
+
+  public DuplicateFilter() {
+    this(ConfigUtil.getBoolean(ENABLED, true), ConfigUtil.getInt(WINDOW_SIZE, 4096),
+        ConfigUtil.getInt(MAX_REORDER, 64), ConfigUtil.getInt(DATE_WINDOW_SIZE, 64),
+        ConfigUtil.getInt(MAX_DEVICES, 10000));
+  }
+
+  public DuplicateFilter(boolean enabled, int windowSize, int maxReorder, int dateWindowSize,
+      int maxDevices) {
+    this.enabled = enabled;
+    this.windowSize = windowSize;
+    this.maxReorder = maxReorder;
+    this.dateWindowSize = dateWindowSize;
+    this.windows = CacheBuilder.newBuilder().maximumSize(maxDevices).build();
+    this.memcache = MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE);
+  }
+
+  /**
+   * Marks the key of the report as seen.
+   *
+   * @param deviceId the Device of the report
+   * @param type the kind of key, sequence or date, each one has its own window
+   * @param key the key of the report
+   * @return false if the Device already sent a report with the key
+   */
+  public boolean accept(Long deviceId, String type, long key) {
+    if (!enabled) {
+      return true;
+    }
+    String id = deviceId + ":" + type;
+    KeyWindow window = getWindow(type, id);
+    synchronized (window) {
+      if (!window.accept(key)) {
+        return false;
+      }
+      memcache.put(id, window.toBytes());
+    }
+    return true;
+  }
+
+  /**
+   * Forgets the key of a report that could not be saved, so that the retry
+   * of the Device is accepted.
+   *
+   * @param deviceId the Device of the report
+   * @param type the kind of key
+   * @param key the key of the report
+   */
+  public void forget(Long deviceId, String type, long key) {
+    if (!enabled) {
+      return;
+    }
+    String id = deviceId + ":" + type;
+    KeyWindow window = getWindow(type, id);
+    synchronized (window) {
+      window.forget(key);
+      memcache.put(id, window.toBytes());
+    }
+  }
+
+  private KeyWindow getWindow(final String type, final String id) {
+    try {
+      return windows.get(id, new Callable<KeyWindow>() {
+        @Override
+        public KeyWindow call() throws Exception {
+          return createWindow(type, (byte[]) memcache.get(id).get());
+        }
+      });
+    } catch (ExecutionException e) {
+      // Without memcache start from an empty window, at worst a retry is saved twice
+      LOGGER.warning("Could not load the window of " + id + ": " + e.getMessage());
+      KeyWindow window = createWindow(type, null);
+      KeyWindow existing = windows.asMap().putIfAbsent(id, window);
+      return existing == null ? window : existing;
+    }
+  }
+
+  /**
+   * @return the window for the kind of key, loaded from the data if there is any
+   */
+  private KeyWindow createWindow(String type, byte[] data) {
+    if (DATE.equals(type)) {
+      return data == null ? new RecentKeys(dateWindowSize)
+          : RecentKeys.fromBytes(data, dateWindowSize);
+    }
+    return data == null ? new ReplayWindow(windowSize, maxReorder)
+        : ReplayWindow.fromBytes(data, windowSize, maxReorder);
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+/**
+ * The keys of the recent reports of one Device, used to recognize the
+ * reports it sends again.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+interface KeyWindow {
+
+  /**
+   * Marks the key as seen.
+   *
+   * @param key the key of a report
+   * @return false if the key was already seen
+   */
+  boolean accept(long key);
+
+  /**
+   * Marks the key as not seen, when its report could not be saved.
+   *
+   * @param key the key of a report
+   */
+  void forget(long key);
+
+  /**
+   * @return the window serialized to be kept in memcache
+   */
+  byte[] toBytes();
+}
@@ -0,0 +1,217 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.OwnerSettings;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.registry.DeviceRegistry;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Limits the reports that every Device, and all the Devices of an owner, can
+ * send per minute, with one {@link TokenBucket} per Device and per owner.
+ *
+ * The limits of a Device and of its owner are read from the
+ * {@link DeviceRegistry}, unknown Devices and unset limits use the defaults.
+ * The buckets are kept in memory, so every instance enforces them on its own
+ * share of the requests. The metrics of the instance show the limits and
+ * the counts of the most throttled Devices and owners.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class RateLimiter {
+
+  public static final String DEVICE_PER_MINUTE = "homemonitor.rateLimit.devicePerMinute";
+  public static final String DEVICE_BURST = "homemonitor.rateLimit.deviceBurst";
+  public static final String OWNER_PER_MINUTE = "homemonitor.rateLimit.ownerPerMinute";
+  public static final String OWNER_BURST = "homemonitor.rateLimit.ownerBurst";
+
+  private static final int MAX_BUCKETS = 100000;
+
+  // Rows of the tables of the most throttled Devices and owners
+  private static final int TOP_THROTTLED = 20;
+
+  private static final String THROTTLED = "throttled";
+
+  private final DeviceRegistry registry;
+
+  private final int devicePerMinute;
+  private final int deviceBurst;
+  private final int ownerPerMinute;
+  private final int ownerBurst;
+
+  private final ConcurrentMap<Long, TokenBucket> deviceBuckets =
+      CacheBuilder.newBuilder().maximumSize(MAX_BUCKETS).<Long, TokenBucket>build().asMap();
+
+  private final ConcurrentMap<String, TokenBucket> ownerBuckets =
+      CacheBuilder.newBuilder().maximumSize(MAX_BUCKETS).<String, TokenBucket>build().asMap();
+
+  public RateLimiter(DeviceRegistry registry) {
+    this(registry, ConfigUtil.getInt(DEVICE_PER_MINUTE, 60), ConfigUtil.getInt(DEVICE_BURST, 10),
+        ConfigUtil.getInt(OWNER_PER_MINUTE, 600), ConfigUtil.getInt(OWNER_BURST, 60));
+  }
+
+  public RateLimiter(DeviceRegistry registry, int devicePerMinute, int deviceBurst,
+      int ownerPerMinute, int ownerBurst) {
+    this.registry = registry;
+    this.devicePerMinute = devicePerMinute;
+    this.deviceBurst = deviceBurst;
+    this.ownerPerMinute = ownerPerMinute;
+    this.ownerBurst = ownerBurst;
+
+    Metrics.registerGauge("rateLimit.devicePerMinute", constant(devicePerMinute));
+    Metrics.registerGauge("rateLimit.deviceBurst", constant(deviceBurst));
+    Metrics.registerGauge("rateLimit.ownerPerMinute", constant(ownerPerMinute));
+    Metrics.registerGauge("rateLimit.ownerBurst", constant(ownerBurst));
+    Metrics.registerGauge("rateLimit.deviceBuckets", new Metrics.Gauge() {
+      @Override
+      public Number getValue() {
+        return deviceBuckets.size();
+      }
+    });
+    Metrics.registerTable("rateLimit.topThrottledDevices", topThrottled(deviceBuckets, "deviceId"));
+    Metrics.registerTable("rateLimit.topThrottledOwners", topThrottled(ownerBuckets, "owner"));
+  }
+
+  /**
+   * Takes a token from the bucket of the Device and from the one of its owner,
+   * the token of the Device is given back when the owner has none.
+   *
+   * @param persister to load the registry
+   * @param deviceId the Device that sent the report
+   * @return 0 if the report is accepted, otherwise the milliseconds until the
+   *         Device can send it again
+   */
+  public long tryAcquire(EntityPersister persister, Long deviceId) {
+    Device device = registry.getDevice(persister, deviceId);
+    long now = System.nanoTime();
+
+    int perMinute = device == null ? devicePerMinute : valueOrDefault(device.getReportsPerMinute(),
+        devicePerMinute);
+    int burst = device == null ? deviceBurst : valueOrDefault(device.getReportsBurst(),
+        deviceBurst);
+    TokenBucket deviceBucket = null;
+    if (perMinute > 0) {
+      deviceBucket = getBucket(deviceBuckets, deviceId, perMinute, burst);
+      long wait = deviceBucket.tryAcquire(now);
+      if (wait > 0) {
+        Metrics.increment("ingest.throttled.device");
+        return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+      }
+    }
+
+    if (device != null && device.getOwner() != null) {
+      OwnerSettings settings = registry.getOwnerSettings(persister, device.getOwner());
+      perMinute = settings == null ? ownerPerMinute : valueOrDefault(settings.getReportsPerMinute(),
+          ownerPerMinute);
+      burst = settings == null ? ownerBurst : valueOrDefault(settings.getReportsBurst(),
+          ownerBurst);
+      if (perMinute > 0) {
+        long wait = getBucket(ownerBuckets, device.getOwner(), perMinute, burst).tryAcquire(now);
+        if (wait > 0) {
+          if (deviceBucket != null) {
+            deviceBucket.release();
+          }
+          Metrics.increment("ingest.throttled.owner");
+          return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+        }
+      }
+    }
+
+    Metrics.increment("ingest.admitted");
+    return 0;
+  }
+
+  /**
+   * @return the bucket of the key, a new one if the limits changed
+   */
+  private <K> TokenBucket getBucket(ConcurrentMap<K, TokenBucket> buckets, K key,
+      int perMinute, int burst) {
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null || !bucket.hasLimits(perMinute, burst)) {
+      TokenBucket newBucket = new TokenBucket(perMinute, burst);
+      if (bucket == null) {
+        bucket = buckets.putIfAbsent(key, newBucket);
+      } else {
+        bucket = buckets.replace(key, bucket, newBucket) ? null : buckets.get(key);
+      }
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * @return the table of the buckets that refused the most tokens, with their
+   *         limits and counts
+   */
+  private static <K> Metrics.Table topThrottled(final ConcurrentMap<K, TokenBucket> buckets,
+      final String keyName) {
+    return new Metrics.Table() {
+      @Override
+      public List<Map<String, Object>> getRows() {
+        List<Map<String, Object>> rows = Lists.newArrayList();
+        for (Map.Entry<K, TokenBucket> entry : buckets.entrySet()) {
+          TokenBucket bucket = entry.getValue();
+          long throttled = bucket.getThrottled();
+          if (throttled > 0) {
+            Map<String, Object> row = Maps.newLinkedHashMap();
+            row.put(keyName, entry.getKey());
+            row.put("perMinute", bucket.getPerMinute());
+            row.put("burst", bucket.getBurst());
+            row.put("acquired", bucket.getAcquired());
+            row.put(THROTTLED, throttled);
+            rows.add(row);
+          }
+        }
+        Collections.sort(rows, new Comparator<Map<String, Object>>() {
+          @Override
+          public int compare(Map<String, Object> row1, Map<String, Object> row2) {
+            return Longs.compare((Long) row2.get(THROTTLED), (Long) row1.get(THROTTLED));
+          }
+        });
+        return rows.size() > TOP_THROTTLED ? Lists.newArrayList(rows.subList(0, TOP_THROTTLED))
+            : rows;
+      }
+    };
+  }
+
+  private static int valueOrDefault(Integer value, int defaultValue) {
+    return value == null ? defaultValue : value;
+  }
+
+  private static Metrics.Gauge constant(final int value) {
+    return new Metrics.Gauge() {
+      @Override
+      public Number getValue() {
+        return value;
+      }
+    };
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Window with the last keys of one Device, for keys that are not dense like
+ * the dates of the readings in milliseconds.
+ *
+ * The keys are kept in a ring in the order they were accepted, the oldest
+ * one is forgotten when a new one is added to a full window. Keys can
+ * arrive in any order, a late reading is not a duplicate of a newer one.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class RecentKeys implements KeyWindow {
+
+  private final long[] ring;
+
+  private final Set<Long> keys;
+
+  // Next position of the ring and number of keys in it
+  private int next;
+  private int count;
+
+  RecentKeys(int size) {
+    this.ring = new long[size];
+    this.keys = new HashSet<Long>(size * 2);
+  }
+
+  @Override
+  public boolean accept(long key) {
+    if (!keys.add(key)) {
+      return false;
+    }
+    if (count == ring.length) {
+      keys.remove(ring[next]);
+    } else {
+      count++;
+    }
+    ring[next] = key;
+    next = (next + 1) % ring.length;
+    return true;
+  }
+
+  @Override
+  public void forget(long key) {
+    if (!keys.remove(key)) {
+      return;
+    }
+    // Close the gap, so the retry of the key gets a slot of its own
+    int i = 0;
+    while (ring[slot(i)] != key) {
+      i++;
+    }
+    for (; i < count - 1; i++) {
+      ring[slot(i)] = ring[slot(i + 1)];
+    }
+    next = (next - 1 + ring.length) % ring.length;
+    count--;
+  }
+
+  @Override
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+    for (int i = 0; i < count; i++) {
+      buffer.putLong(ring[slot(i)]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return the position in the ring of the i-th oldest key
+   */
+  private int slot(int i) {
+    return (next - count + i + ring.length) % ring.length;
+  }
+
+  /**
+   * @return the window with the keys stored in the bytes, oldest first
+   */
+  static RecentKeys fromBytes(byte[] data, int size) {
+    RecentKeys window = new RecentKeys(size);
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.remaining() >= 8) {
+      window.accept(buffer.getLong());
+    }
+    return window;
+  }
+}
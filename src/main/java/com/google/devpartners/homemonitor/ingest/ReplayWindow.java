@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.common.math.LongMath;
+
+/**
+ * Sliding window over the keys of one Device that remembers which keys were
+ * already seen, the same anti-replay window used by network protocols.
+ *
+ * Only the highest key and one bit per key of the window are kept. A key
+ * further back than the reorder distance means that the Device started
+ * counting again, after a reset, and the window starts over from it.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class ReplayWindow implements KeyWindow {
+
+  private static final long NONE = Long.MIN_VALUE;
+
+  // Highest key seen
+  private long top = NONE;
+
+  // The bit of the key modulo the size is set when a key in (top - size, top] was seen
+  private final long[] bits;
+
+  private final int size;
+
+  // Keys further back than this from the top are a restart, not a retry
+  private final int maxReorder;
+
+  ReplayWindow(int size, int maxReorder) {
+    this.bits = new long[(size + 63) / 64];
+    this.size = bits.length * 64;
+    this.maxReorder = Math.min(maxReorder, this.size - 1);
+  }
+
+  @Override
+  public boolean accept(long key) {
+    if (top != NONE && key < top && top - key > maxReorder) {
+      // The sequence jumped backwards, the keys seen before are not retries
+      top = NONE;
+    }
+    if (top == NONE || key > top) {
+      if (top == NONE || key - top >= size || key - top < 0) {
+        Arrays.fill(bits, 0);
+      } else {
+        // The keys that the window slides over were not seen
+        for (long skipped = top + 1; skipped < key; skipped++) {
+          clear(skipped);
+        }
+      }
+      top = key;
+      set(key);
+      return true;
+    }
+    if (isSet(key)) {
+      return false;
+    }
+    set(key);
+    return true;
+  }
+
+  @Override
+  public void forget(long key) {
+    if (top != NONE && key <= top && top - key < size) {
+      clear(key);
+    }
+  }
+
+  @Override
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + bits.length * 8);
+    buffer.putLong(top);
+    for (long word : bits) {
+      buffer.putLong(word);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return the window stored in the bytes, or an empty one if they were
+   *         written with another size
+   */
+  static ReplayWindow fromBytes(byte[] data, int size, int maxReorder) {
+    ReplayWindow window = new ReplayWindow(size, maxReorder);
+    if (data.length == 8 + window.bits.length * 8) {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      window.top = buffer.getLong();
+      for (int i = 0; i < window.bits.length; i++) {
+        window.bits[i] = buffer.getLong();
+      }
+    }
+    return window;
+  }
+
+  private int index(long key) {
+    return LongMath.mod(key, size);
+  }
+
+  private boolean isSet(long key) {
+    int index = index(key);
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private void set(long key) {
+    int index = index(key);
+    bits[index >>> 6] |= 1L << index;
+  }
+
+  private void clear(long key) {
+    int index = index(key);
+    bits[index >>> 6] &= ~(1L << index);
+  }
+}
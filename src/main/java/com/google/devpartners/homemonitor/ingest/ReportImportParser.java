@@ -0,0 +1,220 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Longs;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.series.ReportExportWriter;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Parses the lines of a bulk import, CSV with a header row or NDJSON, into
+ * {@link DeviceTemperatureHumidityReport}s. The columns are the ones written
+ * by the export: deviceId, date, temperature and humidity, others are
+ * ignored.
+ *
+ * The device ids of the input are mapped to Devices, ids that are not mapped
+ * are used as they are when they are numbers. Dates are in the format of the
+ * reports, or milliseconds since the epoch.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ReportImportParser {
+
+  private static final Splitter CSV_SPLITTER = Splitter.on(',').trimResults();
+
+  private static final float MIN_TEMPERATURE = -100;
+  private static final float MAX_TEMPERATURE = 100;
+
+  // Clocks of the loggers may be a bit ahead
+  private static final long MAX_FUTURE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final boolean csv;
+
+  private final Map<String, Long> deviceIds;
+
+  private final DateFormat dateFormat = DateUtil.newFullDateTimeFormat();
+
+  private final JsonParser jsonParser = new JsonParser();
+
+  // Positions of the columns in the CSV rows
+  private int deviceIdColumn = -1;
+  private int dateColumn = -1;
+  private int temperatureColumn = -1;
+  private int humidityColumn = -1;
+
+  /**
+   * @param format csv or ndjson
+   * @param deviceIds the Device of every device id of the input that is not
+   *        the id of the Device
+   */
+  public ReportImportParser(String format, Map<String, Long> deviceIds) {
+    if (!ReportExportWriter.CSV.equals(format) && !ReportExportWriter.NDJSON.equals(format)) {
+      throw new IllegalArgumentException("Unknown import format: " + format);
+    }
+    this.csv = ReportExportWriter.CSV.equals(format);
+    this.deviceIds = deviceIds;
+  }
+
+  public boolean hasHeader() {
+    return csv;
+  }
+
+  /**
+   * Reads the positions of the columns from the CSV header row.
+   */
+  public void setHeader(String line) {
+    List<String> columns = CSV_SPLITTER.splitToList(line);
+    deviceIdColumn = columns.indexOf(DeviceTemperatureHumidityReport.DEVICE_ID);
+    dateColumn = columns.indexOf(DeviceTemperatureHumidityReport.DATE);
+    temperatureColumn = columns.indexOf(DeviceTemperatureHumidityReport.TEMPERATURE);
+    humidityColumn = columns.indexOf(DeviceTemperatureHumidityReport.HUMIDITY);
+    if (deviceIdColumn < 0 || dateColumn < 0 || temperatureColumn < 0 || humidityColumn < 0) {
+      throw new IllegalArgumentException(
+          "The CSV header must have deviceId, date, temperature and humidity columns: " + line);
+    }
+  }
+
+  /**
+   * @param line a CSV row or a JSON object
+   * @return the report of the line, without id
+   * @throws IllegalArgumentException if the line is not a valid report
+   */
+  public DeviceTemperatureHumidityReport parse(String line) {
+    try {
+      return parseLine(line);
+    } catch (IllegalArgumentException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      // Any other failure of the parsers is also an invalid line
+      throw new IllegalArgumentException("Invalid line: " + e, e);
+    }
+  }
+
+  private DeviceTemperatureHumidityReport parseLine(String line) {
+    String deviceId;
+    String date;
+    String temperature;
+    String humidity;
+    if (csv) {
+      List<String> values = CSV_SPLITTER.splitToList(line);
+      if (values.size() <= Math.max(Math.max(deviceIdColumn, dateColumn),
+          Math.max(temperatureColumn, humidityColumn))) {
+        throw new IllegalArgumentException("Missing columns");
+      }
+      deviceId = values.get(deviceIdColumn);
+      date = values.get(dateColumn);
+      temperature = values.get(temperatureColumn);
+      humidity = values.get(humidityColumn);
+    } else {
+      JsonObject object;
+      try {
+        JsonElement element = jsonParser.parse(line);
+        if (!element.isJsonObject()) {
+          throw new IllegalArgumentException("Not a JSON object");
+        }
+        object = element.getAsJsonObject();
+      } catch (JsonParseException e) {
+        throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+      }
+      deviceId = getString(object, DeviceTemperatureHumidityReport.DEVICE_ID);
+      date = getString(object, DeviceTemperatureHumidityReport.DATE);
+      temperature = getString(object, DeviceTemperatureHumidityReport.TEMPERATURE);
+      humidity = getString(object, DeviceTemperatureHumidityReport.HUMIDITY);
+    }
+
+    DeviceTemperatureHumidityReport report = new DeviceTemperatureHumidityReport(
+        mapDeviceId(deviceId), parseValue(temperature, MIN_TEMPERATURE, MAX_TEMPERATURE),
+        parseValue(humidity, 0, 100));
+    report.setDate(parseDate(date));
+    return report;
+  }
+
+  private Long mapDeviceId(String deviceId) {
+    if (deviceId == null || deviceId.isEmpty()) {
+      throw new IllegalArgumentException("Missing deviceId");
+    }
+    Long id = deviceIds.get(deviceId);
+    if (id == null) {
+      id = Longs.tryParse(deviceId);
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("Unmapped deviceId " + deviceId);
+    }
+    return id;
+  }
+
+  private Date parseDate(String value) {
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException("Missing date");
+    }
+    Long millis = Longs.tryParse(value);
+    Date date;
+    if (millis != null) {
+      date = new Date(millis);
+    } else {
+      try {
+        date = dateFormat.parse(value);
+      } catch (ParseException e) {
+        throw new IllegalArgumentException("Invalid date " + value);
+      }
+    }
+    if (date.getTime() > System.currentTimeMillis() + MAX_FUTURE_MILLIS) {
+      throw new IllegalArgumentException("Date in the future " + value);
+    }
+    return date;
+  }
+
+  private float parseValue(String value, float min, float max) {
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException("Missing value");
+    }
+    float parsed;
+    try {
+      parsed = Float.parseFloat(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value " + value);
+    }
+    if (Float.isNaN(parsed) || parsed < min || parsed > max) {
+      throw new IllegalArgumentException("Value out of range " + value);
+    }
+    return parsed;
+  }
+
+  private static String getString(JsonObject object, String name) {
+    JsonElement element = object.get(name);
+    if (element == null || element.isJsonNull()) {
+      return null;
+    }
+    // Objects and arrays of several values have no string value
+    try {
+      return element.getAsString();
+    } catch (IllegalStateException | UnsupportedOperationException e) {
+      throw new IllegalArgumentException("Invalid " + name + " " + element);
+    }
+  }
+}
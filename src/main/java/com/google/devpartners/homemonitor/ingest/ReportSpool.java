@@ -0,0 +1,318 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Durable spool for the reports that can't be saved while the datastore is
+ * failing or slow, so that Devices get an answer right away and no reading
+ * is lost.
+ *
+ * Every report is added as a task to a pull queue, and drained later in
+ * batches. Tasks whose payload can't be read are logged and dropped. A
+ * {@link CircuitBreaker} fed by the saves of the reports decides when new
+ * reports skip the datastore and go straight to the spool, and when draining
+ * can start again.
+ *
+ * Spooling makes no datastore call, the reports get their id when they are
+ * drained. A save that timed out may still have gone through, so the drain
+ * skips the reports with the date of a saved report of their Device.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ReportSpool {
+
+  private static final Logger LOGGER = Logger.getLogger(ReportSpool.class.getName());
+
+  public static final String QUEUE = "spool";
+
+  public static final String FAILURE_THRESHOLD = "homemonitor.spool.failureThreshold";
+  public static final String OPEN_SECONDS = "homemonitor.spool.openSeconds";
+  public static final String SLOW_SAVE_MILLIS = "homemonitor.spool.slowSaveMillis";
+
+  private static final int BATCH_SIZE = 100;
+
+  private static final int LEASE_SECONDS = 60;
+
+  private static final int VERSION = 1;
+
+  private final CircuitBreaker circuitBreaker;
+
+  private final long slowSaveMillis;
+
+  public ReportSpool() {
+    this(new CircuitBreaker(ConfigUtil.getInt(FAILURE_THRESHOLD, 5),
+        TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(OPEN_SECONDS, 30))),
+        ConfigUtil.getLong(SLOW_SAVE_MILLIS, 2000));
+  }
+
+  public ReportSpool(CircuitBreaker circuitBreaker, long slowSaveMillis) {
+    this.circuitBreaker = circuitBreaker;
+    this.slowSaveMillis = slowSaveMillis;
+
+    Metrics.registerGauge("spool.circuitOpen", new Metrics.Gauge() {
+      @Override
+      public Number getValue() {
+        return ReportSpool.this.circuitBreaker.isOpen() ? 1 : 0;
+      }
+    });
+  }
+
+  /**
+   * @return true if the reports should be spooled without trying to save them
+   */
+  public boolean isBypassingDatastore() {
+    return !circuitBreaker.allowRequest();
+  }
+
+  /**
+   * Records a save of a report, slow saves count as failures.
+   */
+  public void onSaved(long latencyMillis) {
+    if (latencyMillis > slowSaveMillis) {
+      circuitBreaker.recordFailure();
+    } else {
+      circuitBreaker.recordSuccess();
+    }
+  }
+
+  /**
+   * Records a save of a report that failed.
+   */
+  public void onFailed() {
+    circuitBreaker.recordFailure();
+  }
+
+  /**
+   * Adds the report to the spool, a report without id gets one when it is
+   * drained.
+   *
+   * @param report the report that could not be saved
+   */
+  public void spool(DeviceTemperatureHumidityReport report) {
+    QueueFactory.getQueue(QUEUE).add(task(report));
+    Metrics.increment("spool.added");
+  }
+
+  /**
+   * Saves the spooled reports in batches, until the spool is empty, a save
+   * fails or the deadline is reached. The reports of a batch that could not
+   * be saved stay in the spool and are drained again once their lease expires.
+   *
+   * @param persister to save the reports
+   * @param deadline the time to stop draining
+   * @return the reports that were saved
+   */
+  public List<DeviceTemperatureHumidityReport> drain(EntityPersister persister, long deadline) {
+    Queue queue = QueueFactory.getQueue(QUEUE);
+    List<DeviceTemperatureHumidityReport> drained = Lists.newArrayList();
+
+    while (System.currentTimeMillis() < deadline && circuitBreaker.allowRequest()) {
+      List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS, BATCH_SIZE);
+      if (tasks.isEmpty()) {
+        break;
+      }
+
+      List<DeviceTemperatureHumidityReport> reports = Lists.newArrayList();
+      List<TaskHandle> reportTasks = Lists.newArrayList();
+      List<TaskHandle> poisoned = Lists.newArrayList();
+      boolean withoutId = false;
+      for (TaskHandle task : tasks) {
+        try {
+          DeviceTemperatureHumidityReport report = decode(task.getPayload());
+          reports.add(report);
+          reportTasks.add(task);
+          withoutId |= report.getId() == null;
+        } catch (RuntimeException e) {
+          // A payload that can't be read would block the spool forever
+          LOGGER.severe("Dropping spooled task " + task.getName() + ": " + e.getMessage());
+          poisoned.add(task);
+        }
+      }
+      if (!poisoned.isEmpty()) {
+        queue.deleteTask(poisoned);
+        Metrics.add("spool.poisoned", poisoned.size());
+      }
+
+      long start = System.currentTimeMillis();
+      try {
+        if (withoutId) {
+          removeSaved(persister, queue, reports, reportTasks);
+          reportTasks = assignIds(persister, queue, reports, reportTasks);
+        }
+        persister.save(reports);
+      } catch (RuntimeException e) {
+        LOGGER.warning("Could not drain " + reports.size() + " spooled reports: "
+            + e.getMessage());
+        circuitBreaker.recordFailure();
+        break;
+      }
+      onSaved(System.currentTimeMillis() - start);
+
+      queue.deleteTask(reportTasks);
+      drained.addAll(reports);
+      Metrics.add("spool.drained", reports.size());
+    }
+    return drained;
+  }
+
+  /**
+   * Removes from the batch, and from the spool, the reports without id that
+   * were already saved: the ones with the date of a saved report of their
+   * Device.
+   */
+  private void removeSaved(EntityPersister persister, Queue queue,
+      List<DeviceTemperatureHumidityReport> reports, List<TaskHandle> tasks) {
+    Map<Long, Date[]> ranges = Maps.newHashMap();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      if (report.getId() != null || report.deviceId() == null) {
+        continue;
+      }
+      Date[] range = ranges.get(report.deviceId());
+      if (range == null) {
+        ranges.put(report.deviceId(), new Date[] {report.getDate(), report.getDate()});
+      } else if (report.getDate().before(range[0])) {
+        range[0] = report.getDate();
+      } else if (report.getDate().after(range[1])) {
+        range[1] = report.getDate();
+      }
+    }
+    Set<String> saved = Sets.newHashSet();
+    for (Map.Entry<Long, Date[]> range : ranges.entrySet()) {
+      for (DeviceTemperatureHumidityReport report : persister.get(
+          DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID,
+          range.getKey(), DeviceTemperatureHumidityReport.DATE, range.getValue()[0],
+          range.getValue()[1])) {
+        saved.add(report.deviceId() + ":" + report.getDate().getTime());
+      }
+    }
+
+    List<TaskHandle> duplicates = Lists.newArrayList();
+    for (int i = reports.size() - 1; i >= 0; i--) {
+      DeviceTemperatureHumidityReport report = reports.get(i);
+      if (report.getId() == null
+          && saved.contains(report.deviceId() + ":" + report.getDate().getTime())) {
+        reports.remove(i);
+        duplicates.add(tasks.remove(i));
+      }
+    }
+    if (!duplicates.isEmpty()) {
+      queue.deleteTask(duplicates);
+      Metrics.add("spool.duplicate", duplicates.size());
+    }
+  }
+
+  /**
+   * Allocates the ids of the reports that were spooled without one, and
+   * replaces their tasks with tasks that have the id, so a report that is
+   * drained again after its save went through is not saved twice.
+   *
+   * @return the tasks of the reports, in the same order
+   */
+  private List<TaskHandle> assignIds(EntityPersister persister, Queue queue,
+      List<DeviceTemperatureHumidityReport> reports, List<TaskHandle> tasks) {
+    List<TaskOptions> replacements = Lists.newArrayList();
+    List<TaskHandle> replaced = Lists.newArrayList();
+    List<Integer> indexes = Lists.newArrayList();
+    for (int i = 0; i < reports.size(); i++) {
+      DeviceTemperatureHumidityReport report = reports.get(i);
+      if (report.getId() == null) {
+        report.setId(persister.allocateId(DeviceTemperatureHumidityReport.class));
+        // Not leased by anybody else until this batch is saved or its lease expires
+        replacements.add(task(report).countdownMillis(TimeUnit.SECONDS.toMillis(LEASE_SECONDS)));
+        replaced.add(tasks.get(i));
+        indexes.add(i);
+      }
+    }
+    if (replacements.isEmpty()) {
+      return tasks;
+    }
+    List<TaskHandle> added = queue.add(replacements);
+    queue.deleteTask(replaced);
+
+    List<TaskHandle> reportTasks = Lists.newArrayList(tasks);
+    for (int i = 0; i < indexes.size(); i++) {
+      reportTasks.set(indexes.get(i), added.get(i));
+    }
+    return reportTasks;
+  }
+
+  private static TaskOptions task(DeviceTemperatureHumidityReport report) {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.PULL).payload(encode(report));
+  }
+
+  private static byte[] encode(DeviceTemperatureHumidityReport report) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      // The id is allocated when draining, so a report that is drained twice
+      // is saved once
+      out.writeLong(report.getId() == null ? 0 : report.getId());
+      out.writeLong(report.deviceId() == null ? 0 : report.deviceId());
+      out.writeLong(report.getDate().getTime());
+      out.writeFloat(report.getTemperature());
+      out.writeFloat(report.getHumidity());
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode the report", e);
+    }
+  }
+
+  private static DeviceTemperatureHumidityReport decode(byte[] data) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      int version = in.readByte();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unknown spooled report version " + version);
+      }
+      long id = in.readLong();
+      long deviceId = in.readLong();
+      DeviceTemperatureHumidityReport report = new DeviceTemperatureHumidityReport(
+          deviceId == 0 ? null : deviceId, 0, 0);
+      report.setId(id == 0 ? null : id);
+      report.setDate(new Date(in.readLong()));
+      report.setTemperature(in.readFloat());
+      report.setHumidity(in.readFloat());
+      return report;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not decode the spooled report", e);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.ingest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ *
+ * Instead of a number of tokens it keeps the time at which the bucket will be
+ * full again (the theoretical arrival time of the GCRA algorithm), so taking
+ * a token is a single compare-and-set.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class TokenBucket {
+
+  private final int perMinute;
+
+  private final int burst;
+
+  // Time that every token adds
+  private final long intervalNanos;
+
+  // How far ahead of now the full time may go
+  private final long toleranceNanos;
+
+  private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+  // Tokens taken and refused since the bucket was created
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+
+  TokenBucket(int perMinute, int burst) {
+    this.perMinute = perMinute;
+    this.burst = burst;
+    this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+    this.toleranceNanos = intervalNanos * Math.max(1, burst);
+  }
+
+  /**
+   * Takes a token.
+   *
+   * @param now the current System.nanoTime()
+   * @return 0 if a token was taken, otherwise the nanoseconds until there is one
+   */
+  long tryAcquire(long now) {
+    while (true) {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + intervalNanos;
+      long wait = next - now - toleranceNanos;
+      if (wait > 0) {
+        throttled.incrementAndGet();
+        return wait;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        acquired.incrementAndGet();
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Gives back a token taken by {@link #tryAcquire(long)}, when the request
+   * was refused by another limit.
+   */
+  void release() {
+    fullAt.addAndGet(-intervalNanos);
+    acquired.decrementAndGet();
+  }
+
+  /**
+   * @return true if the bucket was created with the same limits
+   */
+  boolean hasLimits(int perMinute, int burst) {
+    return this.perMinute == perMinute && this.burst == burst;
+  }
+
+  int getPerMinute() {
+    return perMinute;
+  }
+
+  int getBurst() {
+    return burst;
+  }
+
+  long getAcquired() {
+    return acquired.get();
+  }
+
+  long getThrottled() {
+    return throttled.get();
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.migration;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+
+/**
+ * A change of the layout of the entities of a kind, applied by rewriting all
+ * the entities of the kind in parallel key ranges with
+ * {@link com.google.devpartners.homemonitor.task.MigrationTask}.
+ *
+ * The code that writes the new layout is deployed before the migration
+ * starts, so the entities saved while it runs are already migrated. Until all
+ * the key ranges are done the entities are in both layouts, and the reads go
+ * through {@link #dualRead(EntityPersister)}.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public abstract class Migration<T> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Job of the JobCheckpoints of the migration and of its key ranges
+  public static final String JOB = "migration";
+
+  /**
+   * @return the name of the migration, unique across the migrations
+   */
+  public abstract String getName();
+
+  /**
+   * @return the entity class of the kind to migrate
+   */
+  public abstract Class<T> getKind();
+
+  /**
+   * Converts one entity to the new layout, it is called again for the
+   * entities of a batch that failed so it must be idempotent.
+   *
+   * @param entity the entity in the old or in the new layout
+   * @return the entities to save, empty when the entity needs no change. When
+   *         none of them has the key of the entity, the entity is deleted after
+   *         they are saved
+   */
+  public abstract List<?> migrate(T entity);
+
+  /**
+   * Decorates the persister of the readers while the migration runs.
+   *
+   * @param delegate the persister that reads the entities as they are stored
+   * @return a persister that reads the entities in both layouts, the delegate
+   *         when the readers already accept both
+   */
+  public EntityPersister dualRead(EntityPersister delegate) {
+    return delegate;
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.migration;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The {@link Migration}s that can be started, by name.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class Migrations {
+
+  private static final List<Migration<?>> MIGRATIONS =
+      ImmutableList.<Migration<?>>of(new ReindexReportsMigration());
+
+  private Migrations() {
+  }
+
+  public static List<Migration<?>> getAll() {
+    return MIGRATIONS;
+  }
+
+  /**
+   * @throws IllegalArgumentException when there is no migration with the name
+   */
+  public static Migration<?> forName(String name) {
+    for (Migration<?> migration : MIGRATIONS) {
+      if (migration.getName().equals(name)) {
+        return migration;
+      }
+    }
+    throw new IllegalArgumentException("Unknown migration: " + name);
+  }
+}
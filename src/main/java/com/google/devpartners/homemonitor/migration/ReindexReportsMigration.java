@@ -0,0 +1,84 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.migration;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.ForwardingEntityPersister;
+
+/**
+ * Migration that saves again all the {@link DeviceTemperatureHumidityReport}s
+ * so that their temperature and humidity are indexed.
+ *
+ * The reports saved before those properties were indexed have no index
+ * entries, and the projection queries of the charts skip them. While the
+ * migration runs the projections are served with full reads.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ReindexReportsMigration extends Migration<DeviceTemperatureHumidityReport> {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String NAME = "reindexReports";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Class<DeviceTemperatureHumidityReport> getKind() {
+    return DeviceTemperatureHumidityReport.class;
+  }
+
+  @Override
+  public List<?> migrate(DeviceTemperatureHumidityReport report) {
+    // The entity does not know if it has the index entries, the save writes them
+    return Collections.singletonList(report);
+  }
+
+  @Override
+  public EntityPersister dualRead(EntityPersister delegate) {
+    return new FullReadEntityPersister(delegate);
+  }
+
+  /**
+   * EntityPersister that serves the projections of the reports with full
+   * reads, which do not need the index entries of the projected properties.
+   */
+  private static class FullReadEntityPersister extends ForwardingEntityPersister {
+
+    private static final long serialVersionUID = 1L;
+
+    FullReadEntityPersister(EntityPersister delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+        Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+      if (classT == DeviceTemperatureHumidityReport.class) {
+        return delegate.get(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit);
+      }
+      return delegate.getProjection(classT, key, value, dateKey, dateStart, dateEnd, numToSkip,
+          limit, properties);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store the alert rules of an owner, for one of its
+ * {@link Device}s or for all of them.
+ *
+ * ABOVE and BELOW fire when the value stays over or under the threshold for
+ * the window, i.e. "humidity above 70 for 10 minutes". RISE and DROP fire
+ * when the value changes by the threshold within the window, i.e.
+ * "temperature dropped 5 degrees in 15 minutes".
+ * 
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+@Cache
+public class AlertRule {
+
+  public static final String OWNER = "owner";
+  public static final String DEVICE_ID = "deviceId";
+
+  public enum Metric {
+    TEMPERATURE, HUMIDITY
+  }
+
+  public enum Condition {
+    ABOVE, BELOW, RISE, DROP
+  }
+
+  @Id
+  private Long id;
+
+  @Index
+  private String owner;
+
+  // null for all the Devices of the owner
+  @Index
+  private Long deviceId;
+
+  private String name;
+
+  private Metric metric;
+
+  private Condition condition;
+
+  private float threshold;
+
+  private int windowMinutes;
+
+  // URL that receives the alerts as a JSON POST, null to only log them
+  private String webhookUrl;
+
+  private boolean enabled = true;
+
+  private Date created;
+
+  @Index
+  private Date updated;
+
+  public AlertRule() {
+    setCreated();
+  }
+
+  /**
+   * @return the value of the metric of the rule in the report
+   */
+  public float getValue(DeviceTemperatureHumidityReport report) {
+    return metric == Metric.HUMIDITY ? report.getHumidity() : report.getTemperature();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public void setDeviceId(Long deviceId) {
+    this.deviceId = deviceId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public void setMetric(Metric metric) {
+    this.metric = metric;
+  }
+
+  public Condition getCondition() {
+    return condition;
+  }
+
+  public void setCondition(Condition condition) {
+    this.condition = condition;
+  }
+
+  public float getThreshold() {
+    return threshold;
+  }
+
+  public void setThreshold(float threshold) {
+    this.threshold = threshold;
+  }
+
+  public int getWindowMinutes() {
+    return windowMinutes;
+  }
+
+  public void setWindowMinutes(int windowMinutes) {
+    this.windowMinutes = windowMinutes;
+  }
+
+  public String getWebhookUrl() {
+    return webhookUrl;
+  }
+
+  public void setWebhookUrl(String webhookUrl) {
+    this.webhookUrl = webhookUrl;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public void setCreated() {
+    if (this.created == null) {
+      Date now = new Date();
+      this.created = now;
+      this.updated = now;
+    } else {
+      setUpdated();
+    }
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  public void setUpdated() {
+    this.updated = new Date();
+  }
+}
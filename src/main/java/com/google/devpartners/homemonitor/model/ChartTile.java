@@ -0,0 +1,106 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store the rendered google-chart DataTable of one tile of
+ * the history of a Device, a fixed time interval at one zoom level. Only the
+ * tiles of closed intervals are stored, they don't change anymore.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+@Cache
+public class ChartTile {
+
+  public static final String ID = "id";
+  public static final String DEVICE_ID = "deviceId";
+  public static final String START = "start";
+
+  // deviceId-level-index, and the derived metrics when there are
+  @Id
+  private String id;
+
+  @Index
+  private Long deviceId;
+
+  private int level;
+
+  private long index;
+
+  // First instant of the tile
+  @Index
+  private Date start;
+
+  private String chart;
+
+  private Date created;
+
+  public ChartTile() {
+  }
+
+  public ChartTile(Long deviceId, int level, long index, String metrics, Date start,
+      String chart) {
+    this.id = createId(deviceId, level, index, metrics);
+    this.deviceId = deviceId;
+    this.level = level;
+    this.index = index;
+    this.start = start;
+    this.chart = chart;
+    this.created = new Date();
+  }
+
+  /**
+   * @param metrics the names of the derived metrics of the tile, empty for none
+   */
+  public static String createId(Long deviceId, int level, long index, String metrics) {
+    return deviceId + "-" + level + "-" + index + (metrics.isEmpty() ? "" : "-" + metrics);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public long getIndex() {
+    return index;
+  }
+
+  public Date getStart() {
+    return start;
+  }
+
+  public String getChart() {
+    return chart;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+}
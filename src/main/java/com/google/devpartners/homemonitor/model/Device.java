@@ -52,6 +52,14 @@ public class Device {
 
   private List<type> types;
 
+  // Days of reports to keep, null to use the OwnerSettings
+  private Integer retentionDays;
+
+  // Reports accepted per minute and in a burst, null for the defaults
+  private Integer reportsPerMinute;
+
+  private Integer reportsBurst;
+
   @Index
   private Date created;
 
@@ -74,6 +82,10 @@ public class Device {
     return id;
   }
 
+  public void setId(Long id) {
+    this.id = id;
+  }
+
   public String getOwner() {
     return owner;
   }
@@ -127,4 +139,28 @@ public class Device {
   public void setTypes(List<type> types) {
     this.types = types;
   }
+
+  public Integer getRetentionDays() {
+    return retentionDays;
+  }
+
+  public void setRetentionDays(Integer retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
+  public Integer getReportsPerMinute() {
+    return reportsPerMinute;
+  }
+
+  public void setReportsPerMinute(Integer reportsPerMinute) {
+    this.reportsPerMinute = reportsPerMinute;
+  }
+
+  public Integer getReportsBurst() {
+    return reportsBurst;
+  }
+
+  public void setReportsBurst(Integer reportsBurst) {
+    this.reportsBurst = reportsBurst;
+  }
 }
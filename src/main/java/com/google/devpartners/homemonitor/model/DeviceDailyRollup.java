@@ -0,0 +1,193 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store the summary of one day of Device Reports of a
+ * Device: the count and sums of the values, and a quantile sketch of the
+ * temperature and of the humidity. The sums of the derived metrics, by metric
+ * name, only include the reports counted in derivedCount. The minutes with
+ * reports are kept as a bitmap, bit n is the minute n of the day.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+public class DeviceDailyRollup implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Ids of the last merged deltas kept, enough to cover the retries of a merge
+  private static final int MAX_MERGED_DELTAS = 50;
+
+  public static final String ID = "id";
+  public static final String DEVICE_ID = "deviceId";
+  public static final String DAY = "day";
+
+  // deviceId-yyyyMMdd
+  @Id
+  private String id;
+
+  @Index
+  private Long deviceId;
+
+  // First instant of the day, in UTC
+  @Index
+  private Date day;
+
+  private long count;
+
+  private double temperatureSum;
+
+  private double humiditySum;
+
+  // Serialized TDigests
+  private byte[] temperatureDigest;
+
+  private byte[] humidityDigest;
+
+  private long derivedCount;
+
+  private Map<String, Double> derivedSums;
+
+  // BitSet.toByteArray, at most 180 bytes
+  private byte[] minutes;
+
+  private Date updated;
+
+  // Deltas started before this date are already counted by the rebuild
+  private Date rebuilt;
+
+  // Ids of the last deltas merged, so that a retried merge is not counted twice
+  private List<String> mergedDeltas;
+
+  public DeviceDailyRollup() {
+  }
+
+  public DeviceDailyRollup(Long deviceId, Date day) {
+    this.id = createId(deviceId, day);
+    this.deviceId = deviceId;
+    this.day = DateUtil.startOfDayUtc(day).toDate();
+  }
+
+  public static String createId(Long deviceId, Date day) {
+    return deviceId + "-" + DateUtil.formatYearMonthDayNoDash(DateUtil.startOfDayUtc(day));
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public Date getDay() {
+    return day;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getTemperatureSum() {
+    return temperatureSum;
+  }
+
+  public double getHumiditySum() {
+    return humiditySum;
+  }
+
+  public byte[] getTemperatureDigest() {
+    return temperatureDigest;
+  }
+
+  public byte[] getHumidityDigest() {
+    return humidityDigest;
+  }
+
+  public void setValues(long count, double temperatureSum, double humiditySum,
+      byte[] temperatureDigest, byte[] humidityDigest) {
+    this.count = count;
+    this.temperatureSum = temperatureSum;
+    this.humiditySum = humiditySum;
+    this.temperatureDigest = temperatureDigest;
+    this.humidityDigest = humidityDigest;
+    this.updated = new Date();
+  }
+
+  public long getDerivedCount() {
+    return derivedCount;
+  }
+
+  public Map<String, Double> getDerivedSums() {
+    return derivedSums;
+  }
+
+  public void setDerivedValues(long derivedCount, Map<String, Double> derivedSums) {
+    this.derivedCount = derivedCount;
+    this.derivedSums = derivedSums;
+  }
+
+  public byte[] getMinutes() {
+    return minutes;
+  }
+
+  public void setMinutes(byte[] minutes) {
+    this.minutes = minutes;
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  public Date getRebuilt() {
+    return rebuilt;
+  }
+
+  public void setRebuilt(Date rebuilt) {
+    this.rebuilt = rebuilt;
+  }
+
+  /**
+   * @return true if the delta with that id was already merged
+   */
+  public boolean isMerged(String deltaId) {
+    return mergedDeltas != null && mergedDeltas.contains(deltaId);
+  }
+
+  /**
+   * Records a merged delta, forgetting the oldest ones.
+   */
+  public void addMerged(String deltaId) {
+    if (mergedDeltas == null) {
+      mergedDeltas = new ArrayList<String>();
+    }
+    mergedDeltas.add(deltaId);
+    if (mergedDeltas.size() > MAX_MERGED_DELTAS) {
+      mergedDeltas.remove(0);
+    }
+  }
+}
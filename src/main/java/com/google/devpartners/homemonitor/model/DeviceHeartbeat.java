@@ -0,0 +1,259 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+
+/**
+ * Model class used to store when a {@link Device} was last seen and its last
+ * reading, apart from the Device so that the readings don't rewrite it.
+ *
+ * Every instance only sees its share of the reports, so each one measures
+ * the interval between the reports it receives and the interval of the
+ * Device is combined from the rates of all the instances.
+ * 
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+public class DeviceHeartbeat {
+
+  public static final String OFFLINE = "offline";
+
+  // Weight of the last gap between reports in the reporting interval
+  private static final double INTERVAL_WEIGHT = 0.2;
+
+  // Intervals an instance can miss before it no longer counts in the rate
+  private static final int MISSED_INSTANCE_INTERVALS = 3;
+
+  // Time an instance that saw a single report waits for its second one
+  private static final long MAX_FIRST_GAP_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @Id
+  private Long deviceId;
+
+  private String owner;
+
+  private Date lastSeen;
+
+  private Float lastTemperature;
+
+  private Float lastHumidity;
+
+  // Time between reports, combined from the intervals of the instances
+  private Long intervalMillis;
+
+  // Moving average of the time between the reports of every instance, and
+  // the date of the last report it saw
+  private Map<String, Long> instanceIntervals = new HashMap<String, Long>();
+  private Map<String, Long> instanceLastSeen = new HashMap<String, Long>();
+
+  // Set by the staleness check, the last seen date is the source of truth.
+  // Indexed for the check, that only looks at the Devices that are online
+  @Index
+  private boolean offline;
+
+  public DeviceHeartbeat() {
+  }
+
+  public DeviceHeartbeat(Long deviceId, String owner) {
+    this.deviceId = deviceId;
+    this.owner = owner;
+  }
+
+  public DeviceHeartbeat(DeviceHeartbeat other) {
+    this.deviceId = other.deviceId;
+    this.owner = other.owner;
+    this.lastSeen = other.lastSeen;
+    this.lastTemperature = other.lastTemperature;
+    this.lastHumidity = other.lastHumidity;
+    this.intervalMillis = other.intervalMillis;
+    this.instanceIntervals = new HashMap<String, Long>(other.instanceIntervals);
+    this.instanceLastSeen = new HashMap<String, Long>(other.instanceLastSeen);
+    this.offline = other.offline;
+  }
+
+  // Heartbeats saved before the intervals were kept by instance have no maps
+  @OnLoad
+  void initInstances() {
+    if (instanceIntervals == null) {
+      instanceIntervals = new HashMap<String, Long>();
+    }
+    if (instanceLastSeen == null) {
+      instanceLastSeen = new HashMap<String, Long>();
+    }
+  }
+
+  /**
+   * Records a report of the Device received by an instance, older reports
+   * than the last one seen are ignored.
+   *
+   * @param report the report
+   * @param instance the instance that received it
+   * @return true if the heartbeat changed
+   */
+  public boolean record(DeviceTemperatureHumidityReport report, String instance) {
+    Date date = report.getDate();
+    if (date == null) {
+      return false;
+    }
+    boolean changed = false;
+    Long instanceLast = instanceLastSeen.get(instance);
+    if (instanceLast == null || date.getTime() > instanceLast) {
+      if (instanceLast != null) {
+        long gap = date.getTime() - instanceLast;
+        Long interval = instanceIntervals.get(instance);
+        instanceIntervals.put(instance, interval == null ? gap
+            : Math.round(INTERVAL_WEIGHT * gap + (1 - INTERVAL_WEIGHT) * interval));
+      }
+      instanceLastSeen.put(instance, date.getTime());
+      changed = true;
+    }
+    if (lastSeen == null || date.after(lastSeen)) {
+      lastSeen = date;
+      lastTemperature = report.getTemperature();
+      lastHumidity = report.getHumidity();
+      offline = false;
+      changed = true;
+    }
+    if (changed) {
+      combineIntervals();
+    }
+    return changed;
+  }
+
+  /**
+   * Keeps the newest of this heartbeat and the other one of the same Device,
+   * and the newest interval of every instance.
+   */
+  public void merge(DeviceHeartbeat other) {
+    for (Map.Entry<String, Long> seen : other.instanceLastSeen.entrySet()) {
+      Long current = instanceLastSeen.get(seen.getKey());
+      if (current == null || seen.getValue() > current) {
+        instanceLastSeen.put(seen.getKey(), seen.getValue());
+        Long interval = other.instanceIntervals.get(seen.getKey());
+        if (interval == null) {
+          instanceIntervals.remove(seen.getKey());
+        } else {
+          instanceIntervals.put(seen.getKey(), interval);
+        }
+      }
+    }
+    if (owner == null) {
+      owner = other.owner;
+    }
+    if (other.lastSeen != null && (lastSeen == null || other.lastSeen.after(lastSeen))) {
+      lastSeen = other.lastSeen;
+      lastTemperature = other.lastTemperature;
+      lastHumidity = other.lastHumidity;
+      offline = other.offline;
+    }
+    combineIntervals();
+  }
+
+  /**
+   * Adds up the report rates of the instances that still receive reports of
+   * the Device, and forgets the others.
+   */
+  private void combineIntervals() {
+    if (lastSeen == null) {
+      return;
+    }
+    double rate = 0;
+    for (Iterator<Map.Entry<String, Long>> it = instanceLastSeen.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<String, Long> seen = it.next();
+      Long interval = instanceIntervals.get(seen.getKey());
+      long missed = lastSeen.getTime() - seen.getValue();
+      if (interval == null) {
+        if (missed > MAX_FIRST_GAP_MILLIS) {
+          it.remove();
+        }
+      } else if (missed > MISSED_INSTANCE_INTERVALS * interval) {
+        it.remove();
+        instanceIntervals.remove(seen.getKey());
+      } else if (interval > 0) {
+        rate += 1.0 / interval;
+      }
+    }
+    if (rate > 0) {
+      intervalMillis = Math.round(1 / rate);
+    }
+  }
+
+  /**
+   * A Device is stale when it missed several of its reports, or when it was
+   * not seen for the minimum time if its interval is not known yet.
+   *
+   * @param now the current time
+   * @param missedIntervals the number of reports the Device can miss
+   * @param minStaleMillis the minimum time without reports
+   * @return true if the Device is stale
+   */
+  public boolean isStale(long now, int missedIntervals, long minStaleMillis) {
+    if (lastSeen == null) {
+      return true;
+    }
+    long staleMillis = minStaleMillis;
+    if (intervalMillis != null) {
+      staleMillis = Math.max(staleMillis, missedIntervals * intervalMillis);
+    }
+    return now - lastSeen.getTime() > staleMillis;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  public Date getLastSeen() {
+    return lastSeen;
+  }
+
+  public Float getLastTemperature() {
+    return lastTemperature;
+  }
+
+  public Float getLastHumidity() {
+    return lastHumidity;
+  }
+
+  public Long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  public boolean isOffline() {
+    return offline;
+  }
+
+  public void setOffline(boolean offline) {
+    this.offline = offline;
+  }
+}
@@ -14,12 +14,14 @@
 
 package com.google.devpartners.homemonitor.model;
 
+import java.util.Comparator;
 import java.util.Date;
 
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
 
 /**
  * Model class used to store Device Reports
@@ -33,6 +35,17 @@ abstract public class DeviceReport {
   public static final String ID = "id";
   public static final String DEVICE_ID = "deviceId";
   public static final String DATE = "date";
+  public static final String SAVED = "saved";
+
+  /**
+   * Orders the reports by date, newest first.
+   */
+  public static final Comparator<DeviceReport> DATE_DESCENDING = new Comparator<DeviceReport>() {
+    @Override
+    public int compare(DeviceReport r1, DeviceReport r2) {
+      return r2.getDate().compareTo(r1.getDate());
+    }
+  };
 
   @Id
   private Long id;
@@ -43,6 +56,10 @@ abstract public class DeviceReport {
   @Index
   private Date date;
 
+  // When the report was last written, late reports are saved with old dates
+  @Index
+  private Date saved;
+
   public DeviceReport() {
     date = new Date();
   }
@@ -56,6 +73,10 @@ abstract public class DeviceReport {
     return id;
   }
 
+  public void setId(Long id) {
+    this.id = id;
+  }
+
   public Long deviceId() {
     return deviceId;
   }
@@ -71,4 +92,13 @@ abstract public class DeviceReport {
   public void setDate(Date date) {
     this.date = date;
   }
+
+  public Date getSaved() {
+    return saved;
+  }
+
+  @OnSave
+  void setSaved() {
+    saved = new Date();
+  }
 }
@@ -0,0 +1,98 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store one month of Device Reports of a Device as a
+ * compressed and immutable blob.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+@Cache
+public class DeviceReportArchive {
+
+  public static final String ID = "id";
+  public static final String DEVICE_ID = "deviceId";
+  public static final String MONTH = "month";
+
+  // deviceId-yyyyMM
+  @Id
+  private String id;
+
+  @Index
+  private Long deviceId;
+
+  // First instant of the month
+  @Index
+  private Date month;
+
+  private int sampleCount;
+
+  private byte[] data;
+
+  private Date updated;
+
+  public DeviceReportArchive() {
+  }
+
+  public DeviceReportArchive(Long deviceId, Date month) {
+    this.id = createId(deviceId, month);
+    this.deviceId = deviceId;
+    this.month = month;
+  }
+
+  public static String createId(Long deviceId, Date month) {
+    return deviceId + "-" + DateUtil.formatYearMonthNoDash(DateUtil.startOfMonthUtc(month));
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public Date getMonth() {
+    return month;
+  }
+
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+
+  public void setData(byte[] data, int sampleCount) {
+    this.data = data;
+    this.sampleCount = sampleCount;
+    this.updated = new Date();
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+}
@@ -16,13 +16,20 @@ package com.google.devpartners.homemonitor.model;
 
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Index;
 
 @Entity
 @Cache
 public class DeviceTemperatureHumidityReport extends DeviceReport {
 
+  public static final String TEMPERATURE = "temperature";
+  public static final String HUMIDITY = "humidity";
+
+  // Indexed so that chart reads can use projection queries
+  @Index
   private float temperature;
 
+  @Index
   private float humidity;
   
   public DeviceTemperatureHumidityReport() {
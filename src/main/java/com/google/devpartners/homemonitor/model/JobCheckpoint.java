@@ -0,0 +1,154 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store the progress of the background jobs, so they can
+ * resume where they stopped.
+ * 
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+public class JobCheckpoint {
+
+  public static final String ID = "id";
+  public static final String JOB = "job";
+
+  // job-key
+  @Id
+  private String id;
+
+  @Index
+  private String job;
+
+  // Datastore cursor, or the position in the input of the job
+  private String cursor;
+
+  private long processed;
+
+  // Items skipped because they were invalid
+  private long rejected;
+
+  private boolean done;
+
+  // Why the job stopped before it was done, null while it can go on
+  private String error;
+
+  private Date created;
+
+  @Index
+  private Date updated;
+
+  public JobCheckpoint() {
+  }
+
+  public JobCheckpoint(String job, String key) {
+    this.id = createId(job, key);
+    this.job = job;
+    this.created = new Date();
+    this.updated = created;
+  }
+
+  public static String createId(String job, String key) {
+    return job + "-" + key;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getJob() {
+    return job;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public long getProcessed() {
+    return processed;
+  }
+
+  public long getRejected() {
+    return rejected;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  public boolean isFailed() {
+    return error != null;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  /**
+   * Records the progress of the job.
+   *
+   * @param cursor the position to resume from
+   * @param processed the number of items processed since the last checkpoint
+   */
+  public void advance(String cursor, long processed) {
+    this.cursor = cursor;
+    this.processed += processed;
+    this.updated = new Date();
+  }
+
+  /**
+   * Records the progress of the job.
+   *
+   * @param cursor the position to resume from
+   * @param processed the number of items processed since the last checkpoint
+   * @param rejected the number of items rejected since the last checkpoint
+   */
+  public void advance(String cursor, long processed, long rejected) {
+    advance(cursor, processed);
+    this.rejected += rejected;
+  }
+
+  public void setDone() {
+    this.done = true;
+    this.cursor = null;
+    this.updated = new Date();
+  }
+
+  /**
+   * Records that the job stopped and will not be retried, keeping its
+   * progress.
+   *
+   * @param error why the job failed
+   */
+  public void setFailed(String error) {
+    this.error = error == null ? "Unknown error" : error;
+    this.updated = new Date();
+  }
+}
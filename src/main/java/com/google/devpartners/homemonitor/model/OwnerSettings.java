@@ -0,0 +1,110 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.model;
+
+import java.util.Date;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Model class used to store the settings shared by all the Devices of an
+ * owner. Settings of a {@link Device} take precedence over these.
+ * 
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@Entity
+@Cache
+public class OwnerSettings {
+
+  public static final String OWNER = "owner";
+
+  @Id
+  private String owner;
+
+  // Days of reports to keep, null or 0 to keep everything
+  private Integer retentionDays;
+
+  // Reports accepted per minute and in a burst from all the Devices, null for the defaults
+  private Integer reportsPerMinute;
+
+  private Integer reportsBurst;
+
+  private Date created;
+
+  @Index
+  private Date updated;
+
+  public OwnerSettings() {
+    setCreated();
+  }
+
+  public OwnerSettings(String owner) {
+    this.owner = owner;
+    setCreated();
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public Integer getRetentionDays() {
+    return retentionDays;
+  }
+
+  public void setRetentionDays(Integer retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
+  public Integer getReportsPerMinute() {
+    return reportsPerMinute;
+  }
+
+  public void setReportsPerMinute(Integer reportsPerMinute) {
+    this.reportsPerMinute = reportsPerMinute;
+  }
+
+  public Integer getReportsBurst() {
+    return reportsBurst;
+  }
+
+  public void setReportsBurst(Integer reportsBurst) {
+    this.reportsBurst = reportsBurst;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public void setCreated() {
+    if (this.created == null) {
+      Date now = new Date();
+      this.created = now;
+      this.updated = now;
+    } else {
+      setUpdated();
+    }
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  public void setUpdated() {
+    this.updated = new Date();
+  }
+}
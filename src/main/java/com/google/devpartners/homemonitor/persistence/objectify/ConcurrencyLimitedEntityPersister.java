@@ -0,0 +1,612 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+/**
+ * EntityPersister that limits the number of concurrent calls to the
+ * datastore, and sheds the calls over the limit with a
+ * {@link PersisterOverloadedException} instead of letting them queue.
+ *
+ * The limit adapts to the latency with AIMD: it grows by one every limit
+ * calls that finish under the target latency, and shrinks by a factor when
+ * they are slower. Calls have a priority derived from their shape, writes and
+ * reads of the latest reports can use the whole limit while the scans of the
+ * history and of whole kinds only get a share of it, so they are the first to
+ * be shed.
+ *
+ * The lists are copied before the slot is freed, the query results of the
+ * datastore are lazy and would otherwise be fetched outside of the limit.
+ * The asynchronous saves hold their slot until {@code now()} is called on
+ * their result, the slot of a result that is never read is reclaimed after
+ * the datastore deadline.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ConcurrencyLimitedEntityPersister extends ForwardingEntityPersister {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER =
+      Logger.getLogger(ConcurrencyLimitedEntityPersister.class.getName());
+
+  public static final String INITIAL_LIMIT = "homemonitor.concurrency.initialLimit";
+  public static final String MIN_LIMIT = "homemonitor.concurrency.minLimit";
+  public static final String MAX_LIMIT = "homemonitor.concurrency.maxLimit";
+  public static final String TARGET_LATENCY_MILLIS = "homemonitor.concurrency.targetLatencyMillis";
+  public static final String LATEST_READ_LIMIT = "homemonitor.concurrency.latestReadLimit";
+
+  // Reads that start less than this ago are reads of the latest reports
+  private static final long LATEST_READ_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final double BACKOFF_RATIO = 0.9;
+
+  // Longest an asynchronous save can take, the datastore deadline
+  private static final long MAX_ASYNC_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  /**
+   * The priority of a call, with the share of the limit it can use.
+   */
+  enum Priority {
+    // Writes, reads by id and of the latest reports
+    CRITICAL(1.0),
+    // Bounded reads of the history and unbounded reads of the small kinds
+    NORMAL(0.75),
+    // Unbounded scans of the reports and of whole kinds
+    BULK(0.5);
+
+    private final double share;
+
+    private Priority(double share) {
+      this.share = share;
+    }
+  }
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long targetLatencyNanos;
+  private final int latestReadLimit;
+
+  private volatile double concurrencyLimit;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Asynchronous saves whose result was not read yet, oldest first
+  private final Queue<ReleasingResult<?>> pendingResults =
+      new ConcurrentLinkedQueue<ReleasingResult<?>>();
+
+  // System.nanoTime() of the last decrease, only compared by difference
+  private long lastDecrease = System.nanoTime();
+
+  public ConcurrencyLimitedEntityPersister(EntityPersister delegate) {
+    this(delegate, ConfigUtil.getInt(INITIAL_LIMIT, 20), ConfigUtil.getInt(MIN_LIMIT, 4),
+        ConfigUtil.getInt(MAX_LIMIT, 200), ConfigUtil.getLong(TARGET_LATENCY_MILLIS, 500),
+        ConfigUtil.getInt(LATEST_READ_LIMIT, 100));
+  }
+
+  public ConcurrencyLimitedEntityPersister(EntityPersister delegate, int initialLimit,
+      int minLimit, int maxLimit, long targetLatencyMillis, int latestReadLimit) {
+    super(delegate);
+    this.concurrencyLimit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+    this.latestReadLimit = latestReadLimit;
+
+    Metrics.registerGauge("persister.concurrencyLimit", new Metrics.Gauge() {
+      @Override
+      public Number getValue() {
+        return getLimit();
+      }
+    });
+    Metrics.registerGauge("persister.inFlight", new Metrics.Gauge() {
+      @Override
+      public Number getValue() {
+        return inFlight.get();
+      }
+    });
+  }
+
+  /**
+   * @return the current concurrency limit
+   */
+  public int getLimit() {
+    return (int) concurrencyLimit;
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT) {
+    long start = acquire(Priority.BULK);
+    try {
+      return Lists.newArrayList(delegate.get(classT));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, String value) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.getByPrimaryId(classT, value);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, Long value) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.getByPrimaryId(classT, value);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> Map<Long, T> getByPrimaryIds(Class<T> classT, Collection<Long> ids) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return Maps.newHashMap(delegate.getByPrimaryIds(classT, ids));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT, Integer numToSkip, Integer limit) {
+    long start = acquire(bounded(classT, numToSkip, limit));
+    try {
+      return Lists.newArrayList(delegate.get(classT, numToSkip, limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> EntityPage<T> getPage(Class<T> classT, String cursor, int limit) {
+    long start = acquire(bounded(classT, 0, limit));
+    try {
+      return delegate.getPage(classT, cursor, limit);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value) {
+    long start = acquire(unbounded(classT));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, value));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, List<V> values) {
+    long start = acquire(unbounded(classT));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, values));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, Integer numToSkip,
+      Integer limit) {
+    long start = acquire(bounded(classT, numToSkip, limit));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, value, numToSkip, limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd) {
+    long start = acquire(range(classT, dateStart, 0, 0));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, value, dateKey, dateStart, dateEnd));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String keyToCompare,
+      String valueGreaterEqual, String valueLessEqual) {
+    long start = acquire(unbounded(classT));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, value, keyToCompare,
+          valueGreaterEqual, valueLessEqual));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd, Integer numToSkip, Integer limit) {
+    long start = acquire(range(classT, dateStart, numToSkip, limit));
+    try {
+      return Lists.newArrayList(delegate.get(classT, key, value, dateKey, dateStart, dateEnd,
+          numToSkip, limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList) {
+    long start = acquire(unbounded(classT));
+    try {
+      return Lists.newArrayList(delegate.get(classT, keyValueList));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList, Integer numToSkip,
+      Integer limit) {
+    long start = acquire(bounded(classT, numToSkip, limit));
+    try {
+      return Lists.newArrayList(delegate.get(classT, keyValueList, numToSkip, limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit) {
+    long start = acquire(bounded(classT, 0, limit));
+    try {
+      return Lists.newArrayList(delegate.getByDevices(classT, deviceIds, dateStart, dateEnd,
+          limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit) {
+    long start = acquire(bounded(classT, 0, limit));
+    try {
+      // Read the lazy lists while holding the permit
+      Map<Long, List<T>> reports = Maps.newLinkedHashMap();
+      for (Map.Entry<Long, List<T>> entry : delegate.getPerDevice(classT, deviceIds, dateKey,
+          dateStart, dateEnd, limit).entrySet()) {
+        reports.put(entry.getKey(), Lists.newArrayList(entry.getValue()));
+      }
+      return reports;
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId,
+      Date dateStart, Date dateEnd, String cursor, int limit) {
+    long start = acquire(Priority.BULK);
+    try {
+      return delegate.scan(classT, deviceId, dateStart, dateEnd, cursor, limit);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, Map<String, V> keyValueList,
+      Integer numToSkip, Integer limit) {
+    long start = acquire(Priority.BULK);
+    try {
+      return Lists.newArrayList(delegate.getKeys(classT, keyValueList, numToSkip, limit));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, String key, V value) {
+    long start = acquire(Priority.BULK);
+    try {
+      return Lists.newArrayList(delegate.getKeys(classT, key, value));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> boolean exists(Class<T> classT, String key, V value) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.exists(classT, key, value);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+    long start = acquire(range(classT, dateStart, numToSkip, limit));
+    try {
+      return Lists.newArrayList(delegate.getProjection(classT, key, value, dateKey, dateStart,
+          dateEnd, numToSkip, limit, properties));
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> void remove(T entity) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.remove(entity);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> void remove(Collection<T> entities) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.remove(entities);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> void remove(Class<T> classT, String key, V value) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.remove(classT, key, value);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T, V> void remove(Class<T> classT, String key, List<V> values) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.remove(classT, key, values);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> void removeKeys(Collection<Key<T>> keys) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.removeKeys(keys);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> T save(T entity) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.save(entity);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> void save(List<T> entities) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      delegate.save(entities);
+    } finally {
+      release(start);
+    }
+  }
+
+  @Override
+  public <T> Key<T> saveAndGetKey(T entity) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.saveAndGetKey(entity);
+    } finally {
+      release(start);
+    }
+  }
+
+  /**
+   * The slot is held until {@code now()} is called on the result.
+   */
+  @Override
+  public <T> Result<Key<T>> saveAsync(T entity) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return new ReleasingResult<Key<T>>(delegate.saveAsync(entity), start);
+    } catch (RuntimeException e) {
+      release(start);
+      throw e;
+    }
+  }
+
+  /**
+   * The slot is held until {@code now()} is called on the result.
+   */
+  @Override
+  public <T> Result<Map<Key<T>, T>> saveAsync(List<T> entities) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return new ReleasingResult<Map<Key<T>, T>>(delegate.saveAsync(entities), start);
+    } catch (RuntimeException e) {
+      release(start);
+      throw e;
+    }
+  }
+
+  @Override
+  public <T> Long allocateId(Class<T> classT) {
+    long start = acquire(Priority.CRITICAL);
+    try {
+      return delegate.allocateId(classT);
+    } finally {
+      release(start);
+    }
+  }
+
+  /**
+   * Result of an asynchronous call that frees its slot when the call
+   * completes, the first time {@code now()} returns or throws.
+   */
+  private class ReleasingResult<R> implements Result<R> {
+
+    private final Result<R> result;
+
+    private final long start;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ReleasingResult(Result<R> result, long start) {
+      this.result = result;
+      this.start = start;
+      pendingResults.add(this);
+    }
+
+    @Override
+    public R now() {
+      try {
+        return result.now();
+      } finally {
+        if (released.compareAndSet(false, true)) {
+          pendingResults.remove(this);
+          release(start);
+        }
+      }
+    }
+  }
+
+  /**
+   * Frees the slots of the asynchronous saves older than the datastore
+   * deadline whose result was never read, without adapting the limit to
+   * their unknown latency.
+   */
+  private void reclaimAbandoned() {
+    long now = System.nanoTime();
+    ReleasingResult<?> oldest;
+    while ((oldest = pendingResults.peek()) != null && now - oldest.start > MAX_ASYNC_NANOS) {
+      pendingResults.remove(oldest);
+      if (oldest.released.compareAndSet(false, true)) {
+        inFlight.decrementAndGet();
+        Metrics.increment("persister.abandoned");
+        LOGGER.warning("Reclaimed the slot of an asynchronous save whose result was not read");
+      }
+    }
+  }
+
+  /**
+   * Takes a slot for a call of the priority.
+   *
+   * @return the start of the call, for {@link #release(long)}
+   * @throws PersisterOverloadedException if the priority is over its share of
+   *         the limit
+   */
+  private long acquire(Priority priority) {
+    reclaimAbandoned();
+    while (true) {
+      int current = inFlight.get();
+      if (current >= Math.max(1, (int) (concurrencyLimit * priority.share))) {
+        Metrics.increment("persister.shed." + priority.name().toLowerCase());
+        throw new PersisterOverloadedException("The datastore is overloaded, "
+            + priority.name().toLowerCase() + " call shed with " + current + " calls in flight");
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return System.nanoTime();
+      }
+    }
+  }
+
+  /**
+   * Frees the slot of a call and adapts the limit to its latency. Failed
+   * calls count too, the datastore timeouts are the slowest ones.
+   */
+  private void release(long start) {
+    int current = inFlight.getAndDecrement();
+    long now = System.nanoTime();
+    long latency = now - start;
+
+    synchronized (this) {
+      if (latency > targetLatencyNanos) {
+        // Calls that started before the last decrease don't decrease it again
+        if (start - lastDecrease > 0) {
+          lastDecrease = now;
+          concurrencyLimit = Math.max(minLimit, concurrencyLimit * BACKOFF_RATIO);
+          LOGGER.info("Concurrency limit decreased to " + getLimit() + " after a call of "
+              + TimeUnit.NANOSECONDS.toMillis(latency) + "ms");
+        }
+      } else if (current * 2 >= concurrencyLimit) {
+        // Only grow when the limit is being used
+        concurrencyLimit = Math.min(maxLimit, concurrencyLimit + 1.0 / concurrencyLimit);
+      }
+    }
+  }
+
+  private Priority bounded(Class<?> classT, Integer numToSkip, Integer limit) {
+    if (limit == null || limit <= 0) {
+      return unbounded(classT);
+    }
+    if (limit <= latestReadLimit && (numToSkip == null || numToSkip <= 0)) {
+      return Priority.CRITICAL;
+    }
+    return Priority.NORMAL;
+  }
+
+  private Priority range(Class<?> classT, Date dateStart, Integer numToSkip, Integer limit) {
+    if (dateStart != null
+        && dateStart.getTime() > System.currentTimeMillis() - LATEST_READ_MILLIS) {
+      return Priority.CRITICAL;
+    }
+    return bounded(classT, numToSkip, limit);
+  }
+
+  private Priority unbounded(Class<?> classT) {
+    return DeviceReport.class.isAssignableFrom(classT) ? Priority.BULK : Priority.NORMAL;
+  }
+}
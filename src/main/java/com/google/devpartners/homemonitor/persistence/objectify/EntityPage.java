@@ -0,0 +1,46 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+import java.util.List;
+
+/**
+ * One page of a scan of the entities of a kind, with the cursor to get the
+ * next page.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class EntityPage<T> {
+
+  private final List<T> entities;
+
+  private final String cursor;
+
+  public EntityPage(List<T> entities, String cursor) {
+    this.entities = entities;
+    this.cursor = cursor;
+  }
+
+  public List<T> getEntities() {
+    return entities;
+  }
+
+  /**
+   * @return the cursor of the next page, null after the last page
+   */
+  public String getCursor() {
+    return cursor;
+  }
+}
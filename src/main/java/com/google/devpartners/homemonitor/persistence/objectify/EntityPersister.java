@@ -19,6 +19,10 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
 /**
  * The {@code ReportEntitiesPersister} is the base interface to persist the
  * retrieved data from the AWAPI.
@@ -62,6 +66,15 @@ public interface EntityPersister {
    */
   <T> T getByPrimaryId(Class<T> classT, Long value);
 
+  /**
+   * Gets the entities for the given class by their primary Ids, in one batch.
+   *
+   * @param classT the entity T class
+   * @param ids the primary Ids
+   * @return the entities that were found by their Id
+   */
+  <T> Map<Long, T> getByPrimaryIds(Class<T> classT, Collection<Long> ids);
+
   /**
    * Gets the entity for the given class in a paginated fashion.
    *
@@ -73,6 +86,18 @@ public interface EntityPersister {
    */
   <T> List<T> get(Class<T> classT, Integer numToSkip, Integer limit);
 
+  /**
+   * Gets one page of the entities for the given class, continuing from the
+   * cursor of the previous page. Unlike the pages by offset, every page costs
+   * the same however far the scan is.
+   *
+   * @param classT the entity T class
+   * @param cursor the cursor of the previous page, null for the first page
+   * @param limit the limit of the page size
+   * @return the page of entities, and the cursor of the next page
+   */
+  <T> EntityPage<T> getPage(Class<T> classT, String cursor, int limit);
+
   /**
    * Gets the entity that contains the given value on the given property.
    *
@@ -163,6 +188,116 @@ public interface EntityPersister {
   <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList, Integer numToSkip,
       Integer limit);
 
+  /**
+   * Gets the reports of several Devices between the dates, newest first.
+   *
+   * The Devices are queried concurrently, so the latency is the one of the
+   * slowest Device and not the sum of all of them.
+   *
+   * @param classT the report T class
+   * @param deviceIds the ids of the Devices
+   * @param dateStart the first date
+   * @param dateEnd the last date
+   * @param limit the maximum number of reports of all the Devices, 0 for all
+   * @return the reports of all the Devices ordered by date descending
+   */
+  <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit);
+
+  /**
+   * Gets the reports of several Devices between the dates of any date key,
+   * newest first, with the limit applied to every Device.
+   *
+   * The Devices are queried concurrently, as in {@link #getByDevices}.
+   *
+   * @param classT the report T class
+   * @param deviceIds the ids of the Devices
+   * @param dateKey the date property, such as the date or the saved date
+   * @param dateStart the first date
+   * @param dateEnd the last date
+   * @param limit the maximum number of reports of every Device, 0 for all
+   * @return the reports of every Device ordered by the date key descending,
+   *         an empty list for the Devices without reports
+   */
+  <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit);
+
+  /**
+   * Scans the reports of one Device between the dates, oldest first, one page
+   * at a time. Unlike numToSkip, the cursor makes every page as cheap as the
+   * first one.
+   *
+   * @param classT the report T class
+   * @param deviceId the id of the Device
+   * @param dateStart the first date, null for the oldest report
+   * @param dateEnd the last date, null for the newest report
+   * @param cursor the cursor of the previous page, null for the first page
+   * @param limit the number of reports of the page, implementations that store
+   *        the reports in blocks may return whole blocks
+   * @return the page of reports, and the cursor of the next page
+   */
+  <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId, Date dateStart,
+      Date dateEnd, String cursor, int limit);
+
+  /**
+   * Gets the keys of the entities that contain all the values for the given
+   * properties in a paginated fashion, without loading the entities.
+   *
+   * @param classT the entity T class
+   * @param keyValueList the map containing all the property name,value pairs,
+   *        the names may include an operator, i.e. "date <"
+   * @param numToSkip the number of keys found that will be skipped
+   * @param limit the limit of the page size
+   * @return the list of keys that were found
+   */
+  <T, V> List<Key<T>> getKeys(Class<T> classT, Map<String, V> keyValueList, Integer numToSkip,
+      Integer limit);
+
+  /**
+   * Gets the keys of the entities that contain the given value on the given
+   * property, without loading the entities.
+   *
+   * @param classT the entity T class
+   * @param key the property name
+   * @param value the property value
+   * @return the list of keys that were found
+   */
+  <T, V> List<Key<T>> getKeys(Class<T> classT, String key, V value);
+
+  /**
+   * Checks if there is an entity that contains the given value on the given
+   * property, without loading the entity.
+   *
+   * @param classT the entity T class
+   * @param key the property name
+   * @param value the property value
+   * @return true if at least one entity was found
+   */
+  <T, V> boolean exists(Class<T> classT, String key, V value);
+
+  /**
+   * Gets some properties of the entities that contain the given value on the
+   * given property, and between the dates in a paginated fashion.
+   *
+   * The values are read from the indexes, so the projected properties must be
+   * indexed, and only the projected properties and the id of the returned
+   * entities are set. The dates have the same meaning as in the date queries
+   * of get, a missing dateEnd matches dateStart only.
+   *
+   * @param classT the entity T class
+   * @param key the property name
+   * @param value the property value
+   * @param dateKey the name of the date property
+   * @param dateStart the first date
+   * @param dateEnd the last date, null for dateStart only
+   * @param numToSkip the number of entities found that will be skipped
+   * @param limit the limit of the page size
+   * @param properties the names of the properties to load
+   * @return the list of partial entities that were found.
+   */
+  <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties);
+
   /**
    * Removes the entity.
    *
@@ -195,6 +330,13 @@ public interface EntityPersister {
    */
   <T, V> void remove(Class<T> classT, String key, List<V> values);
 
+  /**
+   * Removes the entities with the given keys.
+   *
+   * @param keys the keys of the entities to be removed
+   */
+  <T> void removeKeys(Collection<Key<T>> keys);
+
   /**
    * Saves the entity.
    *
@@ -210,6 +352,47 @@ public interface EntityPersister {
    */
   <T> void save(List<T> entities);
 
+  /**
+   * Saves the entity without reading it back.
+   *
+   * @param entity to be saved
+   * @return the key of the entity, with the id allocated for new entities
+   */
+  <T> Key<T> saveAndGetKey(T entity);
+
+  /**
+   * Saves the entity asynchronously. The caller must call {@code now()} on
+   * the result, even when it does not need the key.
+   *
+   * @param entity to be saved
+   * @return the result with the key of the entity, {@code now()} waits for the
+   *         save to complete and throws its errors
+   */
+  <T> Result<Key<T>> saveAsync(T entity);
+
+  /**
+   * Saves the list of entities asynchronously. The caller must call
+   * {@code now()} on the result.
+   *
+   * @param entities the list with the entities
+   * @return the result with the saved entities by key, {@code now()} waits for
+   *         the save to complete and throws its errors
+   */
+  <T> Result<Map<Key<T>, T>> saveAsync(List<T> entities);
+
+  /**
+   * Allocates an id for a new entity, so that it is known before the entity
+   * is saved. The ids are never assigned by the datastore to other entities.
+   *
+   * The allocated ids are sequential, and sequential keys written at a high
+   * rate all land on the same tablet. Kinds with many writes, like the
+   * reports, should leave the id null and get a scattered id on save.
+   *
+   * @param classT the entity T class
+   * @return the allocated id
+   */
+  <T> Long allocateId(Class<T> classT);
+
   /**
    * Adds a field as a DB index
    *
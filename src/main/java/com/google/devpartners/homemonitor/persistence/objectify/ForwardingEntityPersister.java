@@ -0,0 +1,229 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+/**
+ * EntityPersister that forwards all the calls to another EntityPersister.
+ *
+ * Subclasses override the methods they need to decorate, like the storage
+ * tiers or the admission control around the datastore.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public abstract class ForwardingEntityPersister implements EntityPersister, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  protected final EntityPersister delegate;
+
+  protected ForwardingEntityPersister(EntityPersister delegate) {
+    this.delegate = delegate;
+  }
+
+  public EntityPersister getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT) {
+    return delegate.get(classT);
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, String value) {
+    return delegate.getByPrimaryId(classT, value);
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, Long value) {
+    return delegate.getByPrimaryId(classT, value);
+  }
+
+  @Override
+  public <T> Map<Long, T> getByPrimaryIds(Class<T> classT, Collection<Long> ids) {
+    return delegate.getByPrimaryIds(classT, ids);
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT, Integer numToSkip, Integer limit) {
+    return delegate.get(classT, numToSkip, limit);
+  }
+
+  @Override
+  public <T> EntityPage<T> getPage(Class<T> classT, String cursor, int limit) {
+    return delegate.getPage(classT, cursor, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value) {
+    return delegate.get(classT, key, value);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, List<V> values) {
+    return delegate.get(classT, key, values);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, Integer numToSkip,
+      Integer limit) {
+    return delegate.get(classT, key, value, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd) {
+    return delegate.get(classT, key, value, dateKey, dateStart, dateEnd);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String keyToCompare,
+      String valueGreaterEqual, String valueLessEqual) {
+    return delegate.get(classT, key, value, keyToCompare, valueGreaterEqual, valueLessEqual);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd, Integer numToSkip, Integer limit) {
+    return delegate.get(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList) {
+    return delegate.get(classT, keyValueList);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList, Integer numToSkip,
+      Integer limit) {
+    return delegate.get(classT, keyValueList, numToSkip, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit) {
+    return delegate.getByDevices(classT, deviceIds, dateStart, dateEnd, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit) {
+    return delegate.getPerDevice(classT, deviceIds, dateKey, dateStart, dateEnd, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId,
+      Date dateStart, Date dateEnd, String cursor, int limit) {
+    return delegate.scan(classT, deviceId, dateStart, dateEnd, cursor, limit);
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, Map<String, V> keyValueList,
+      Integer numToSkip, Integer limit) {
+    return delegate.getKeys(classT, keyValueList, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, String key, V value) {
+    return delegate.getKeys(classT, key, value);
+  }
+
+  @Override
+  public <T, V> boolean exists(Class<T> classT, String key, V value) {
+    return delegate.exists(classT, key, value);
+  }
+
+  @Override
+  public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+    return delegate.getProjection(classT, key, value, dateKey, dateStart, dateEnd, numToSkip,
+        limit, properties);
+  }
+
+  @Override
+  public <T> void remove(T entity) {
+    delegate.remove(entity);
+  }
+
+  @Override
+  public <T> void remove(Collection<T> entities) {
+    delegate.remove(entities);
+  }
+
+  @Override
+  public <T, V> void remove(Class<T> classT, String key, V value) {
+    delegate.remove(classT, key, value);
+  }
+
+  @Override
+  public <T, V> void remove(Class<T> classT, String key, List<V> values) {
+    delegate.remove(classT, key, values);
+  }
+
+  @Override
+  public <T> void removeKeys(Collection<Key<T>> keys) {
+    delegate.removeKeys(keys);
+  }
+
+  @Override
+  public <T> T save(T entity) {
+    return delegate.save(entity);
+  }
+
+  @Override
+  public <T> void save(List<T> entities) {
+    delegate.save(entities);
+  }
+
+  @Override
+  public <T> Key<T> saveAndGetKey(T entity) {
+    return delegate.saveAndGetKey(entity);
+  }
+
+  @Override
+  public <T> Result<Key<T>> saveAsync(T entity) {
+    return delegate.saveAsync(entity);
+  }
+
+  @Override
+  public <T> Result<Map<Key<T>, T>> saveAsync(List<T> entities) {
+    return delegate.saveAsync(entities);
+  }
+
+  @Override
+  public <T> Long allocateId(Class<T> classT) {
+    return delegate.allocateId(classT);
+  }
+
+  @Override
+  public <T> void createIndex(Class<T> classT, String key) {
+    delegate.createIndex(classT, key);
+  }
+
+  @Override
+  public <T> void createIndex(Class<T> classT, List<String> keys) {
+    delegate.createIndex(classT, keys);
+  }
+}
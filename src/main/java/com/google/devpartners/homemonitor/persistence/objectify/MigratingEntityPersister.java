@@ -0,0 +1,227 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.devpartners.homemonitor.migration.Migration;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.googlecode.objectify.Key;
+
+/**
+ * EntityPersister that sends the reads through the dual read of the
+ * {@link Migration}s that are running, so they find the entities in both the
+ * old and the new layout. The writes go straight to the delegate.
+ *
+ * A migration runs from its start until all its key ranges are done, the
+ * state is read from its {@link JobCheckpoint} every refresh.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class MigratingEntityPersister extends ForwardingEntityPersister {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(MigratingEntityPersister.class.getName());
+
+  public static final String REFRESH_SECONDS = "homemonitor.migration.refreshSeconds";
+
+  private final List<Migration<?>> migrations;
+
+  private final long refreshMillis;
+
+  private volatile EntityPersister reader;
+
+  private volatile long refreshed = 0;
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  public MigratingEntityPersister(EntityPersister delegate, List<Migration<?>> migrations) {
+    this(delegate, migrations, getRefreshMillis());
+  }
+
+  public MigratingEntityPersister(EntityPersister delegate, List<Migration<?>> migrations,
+      long refreshMillis) {
+    super(delegate);
+    this.migrations = migrations;
+    this.refreshMillis = refreshMillis;
+    this.reader = delegate;
+  }
+
+  /**
+   * @return the time it takes all the instances to see that a migration
+   *         started or finished
+   */
+  public static long getRefreshMillis() {
+    return TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(REFRESH_SECONDS, 60));
+  }
+
+  private EntityPersister reader() {
+    refreshIfStale();
+    return reader;
+  }
+
+  private void refreshIfStale() {
+    if (System.currentTimeMillis() - refreshed < refreshMillis
+        || !refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      EntityPersister newReader = delegate;
+      for (Migration<?> migration : migrations) {
+        JobCheckpoint checkpoint = delegate.getByPrimaryId(JobCheckpoint.class,
+            JobCheckpoint.createId(Migration.JOB, migration.getName()));
+        if (checkpoint != null && !checkpoint.isDone()) {
+          newReader = migration.dualRead(newReader);
+        }
+      }
+      if ((newReader == delegate) != (reader == delegate)) {
+        LOGGER.info(newReader == delegate ? "Dual read off, no migrations running"
+            : "Dual read on, migrations running");
+      }
+      reader = newReader;
+      refreshed = System.currentTimeMillis();
+    } catch (RuntimeException e) {
+      // Keep the old reader, the next call tries again
+      LOGGER.warning("Could not refresh the running migrations: " + e.getMessage());
+    } finally {
+      refreshing.set(false);
+    }
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT) {
+    return reader().get(classT);
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, String value) {
+    return reader().getByPrimaryId(classT, value);
+  }
+
+  @Override
+  public <T> T getByPrimaryId(Class<T> classT, Long value) {
+    return reader().getByPrimaryId(classT, value);
+  }
+
+  @Override
+  public <T> Map<Long, T> getByPrimaryIds(Class<T> classT, Collection<Long> ids) {
+    return reader().getByPrimaryIds(classT, ids);
+  }
+
+  @Override
+  public <T> List<T> get(Class<T> classT, Integer numToSkip, Integer limit) {
+    return reader().get(classT, numToSkip, limit);
+  }
+
+  @Override
+  public <T> EntityPage<T> getPage(Class<T> classT, String cursor, int limit) {
+    return reader().getPage(classT, cursor, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value) {
+    return reader().get(classT, key, value);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, List<V> values) {
+    return reader().get(classT, key, values);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, Integer numToSkip,
+      Integer limit) {
+    return reader().get(classT, key, value, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd) {
+    return reader().get(classT, key, value, dateKey, dateStart, dateEnd);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String keyToCompare,
+      String valueGreaterEqual, String valueLessEqual) {
+    return reader().get(classT, key, value, keyToCompare, valueGreaterEqual, valueLessEqual);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd, Integer numToSkip, Integer limit) {
+    return reader().get(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList) {
+    return reader().get(classT, keyValueList);
+  }
+
+  @Override
+  public <T, V> List<T> get(Class<T> classT, Map<String, V> keyValueList, Integer numToSkip,
+      Integer limit) {
+    return reader().get(classT, keyValueList, numToSkip, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit) {
+    return reader().getByDevices(classT, deviceIds, dateStart, dateEnd, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit) {
+    return reader().getPerDevice(classT, deviceIds, dateKey, dateStart, dateEnd, limit);
+  }
+
+  @Override
+  public <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId,
+      Date dateStart, Date dateEnd, String cursor, int limit) {
+    return reader().scan(classT, deviceId, dateStart, dateEnd, cursor, limit);
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, Map<String, V> keyValueList,
+      Integer numToSkip, Integer limit) {
+    return reader().getKeys(classT, keyValueList, numToSkip, limit);
+  }
+
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, String key, V value) {
+    return reader().getKeys(classT, key, value);
+  }
+
+  @Override
+  public <T, V> boolean exists(Class<T> classT, String key, V value) {
+    return reader().exists(classT, key, value);
+  }
+
+  @Override
+  public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+    return reader().getProjection(classT, key, value, dateKey, dateStart, dateEnd, numToSkip,
+        limit, properties);
+  }
+}
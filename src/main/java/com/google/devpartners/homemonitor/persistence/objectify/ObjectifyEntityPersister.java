@@ -16,12 +16,21 @@ package com.google.devpartners.homemonitor.persistence.objectify;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.cmd.Query;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -44,6 +53,15 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
     return ofy().load().type(classT).id(value).now();
   }
 
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getByPrimaryIds(java.lang.Class, java.util.Collection)
+   */
+  @Override
+  public <T> Map<Long, T> getByPrimaryIds(Class<T> classT, Collection<Long> ids) {
+    return new HashMap<Long, T>(ofy().load().type(classT).ids(ids));
+  }
+
   /**
    * @see com.google.api.ads.adwords.awreporting.model.persistence.EntityPersister
    *      #get(java.lang.Class, java.util.Map, Integer, Integer)
@@ -130,6 +148,27 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
     return get(classT, null, numToSkip, limit);
   }
 
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getPage(java.lang.Class, java.lang.String, int)
+   */
+  @Override
+  public <T> EntityPage<T> getPage(Class<T> classT, String cursor, int limit) {
+    Query<T> query = ofy().load().type(classT).limit(limit).chunk(limit);
+    if (cursor != null) {
+      query = query.startAt(Cursor.fromWebSafeString(cursor));
+    }
+
+    List<T> entities = Lists.newArrayListWithCapacity(limit);
+    QueryResultIterator<T> iterator = query.iterator();
+    while (iterator.hasNext()) {
+      entities.add(iterator.next());
+    }
+    // A short page is the last one
+    return new EntityPage<T>(entities,
+        entities.size() < limit ? null : iterator.getCursor().toWebSafeString());
+  }
+
   /**
    * @see com.google.api.ads.adwords.awreporting.model.persistence.EntityPersister
    *      #get(java.lang.Class, java.lang.String, java.lang.Object,
@@ -149,6 +188,71 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
   @Override
   public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
       Date dateEnd, Integer numToSkip, Integer limit) {
+    return getDateQuery(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit).list();
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getProjection(java.lang.Class, java.lang.String, java.lang.Object,
+   *      java.lang.String, java.util.Date, java.util.Date, Integer, Integer,
+   *      java.lang.String[])
+   */
+  @Override
+  public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+    return getDateQuery(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit)
+        .project(properties).list();
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getByDevices(java.lang.Class, java.util.List, java.util.Date,
+   *      java.util.Date, Integer)
+   */
+  @Override
+  public <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit) {
+    int max = limit == null ? 0 : limit;
+
+    // list() is asynchronous, all the queries are running before the first
+    // result is read
+    List<List<T>> results = Lists.newArrayList();
+    for (Long deviceId : deviceIds) {
+      results.add(getDateQuery(classT, DeviceReport.DEVICE_ID, deviceId, DeviceReport.DATE,
+          dateStart, dateEnd, 0, max).list());
+    }
+
+    // Every list is already sorted, k-way merge them
+    List<Iterator<T>> iterators = Lists.newArrayList();
+    for (List<T> result : results) {
+      iterators.add(result.iterator());
+    }
+    Iterator<T> merged = Iterators.mergeSorted(iterators, DeviceReport.DATE_DESCENDING);
+    return Lists.newArrayList(max > 0 ? Iterators.limit(merged, max) : merged);
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getPerDevice(java.lang.Class, java.util.List, java.lang.String,
+   *      java.util.Date, java.util.Date, Integer)
+   */
+  @Override
+  public <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit) {
+    int max = limit == null ? 0 : limit;
+
+    // list() is asynchronous, all the queries are running before the first
+    // result is read
+    Map<Long, List<T>> results = new LinkedHashMap<Long, List<T>>();
+    for (Long deviceId : deviceIds) {
+      results.put(deviceId, getDateQuery(classT, DeviceReport.DEVICE_ID, deviceId, dateKey,
+          dateStart, dateEnd, 0, max).list());
+    }
+    return results;
+  }
+
+  private <T, V> Query<T> getDateQuery(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit) {
 
     Query<T> query = ofy().load().type(classT);
 
@@ -159,12 +263,10 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
       // descending by date
       query = query.order("-" + dateKey);
       if (dateStart != null) {
-        if (dateEnd == null) { // One day only
-          query = query.filter(dateKey, dateStart);
-        } else { // All within the date range
-          query = query.filter(dateKey + " >=", dateStart);
-          query = query.filter(dateKey + " <=", dateEnd);
-        }
+        // All within the date range, or dateStart only as a range of one date
+        // so that the projections can load the date
+        query = query.filter(dateKey + " >=", dateStart);
+        query = query.filter(dateKey + " <=", dateEnd == null ? dateStart : dateEnd);
       }
     }
 
@@ -174,7 +276,81 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
     if (numToSkip > 0) {
       query = query.offset(numToSkip);
     }
-    return query.list();
+    return query;
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #scan(java.lang.Class, java.lang.Long, java.util.Date, java.util.Date,
+   *      java.lang.String, int)
+   */
+  @Override
+  public <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId,
+      Date dateStart, Date dateEnd, String cursor, int limit) {
+    Query<T> query = ofy().load().type(classT).filter(DeviceReport.DEVICE_ID, deviceId)
+        .order(DeviceReport.DATE).limit(limit).chunk(limit);
+    if (dateStart != null) {
+      query = query.filter(DeviceReport.DATE + " >=", dateStart);
+    }
+    if (dateEnd != null) {
+      query = query.filter(DeviceReport.DATE + " <=", dateEnd);
+    }
+    if (cursor != null) {
+      query = query.startAt(Cursor.fromWebSafeString(cursor));
+    }
+
+    List<T> reports = Lists.newArrayListWithCapacity(limit);
+    QueryResultIterator<T> iterator = query.iterator();
+    while (iterator.hasNext()) {
+      reports.add(iterator.next());
+    }
+    // A short page is the last one
+    return new ReportPage<T>(reports,
+        reports.size() < limit ? null : iterator.getCursor().toWebSafeString());
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getKeys(java.lang.Class, java.util.Map, Integer, Integer)
+   */
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, Map<String, V> keyValueList,
+      Integer numToSkip, Integer limit) {
+    Query<T> query = ofy().load().type(classT);
+    if (keyValueList != null) {
+      for (String key : keyValueList.keySet()) {
+        query = query.filter(key, keyValueList.get(key));
+      }
+    }
+    if (limit > 0) {
+      query = query.limit(limit);
+    }
+    if (numToSkip > 0) {
+      query = query.offset(numToSkip);
+    }
+    return query.keys().list();
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #getKeys(java.lang.Class, java.lang.String, java.lang.Object)
+   */
+  @Override
+  public <T, V> List<Key<T>> getKeys(Class<T> classT, String key, V value) {
+    Map<String, V> keyValueList = new HashMap<String, V>();
+    keyValueList.put(key, value);
+    return getKeys(classT, keyValueList, 0, 0);
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #exists(java.lang.Class, java.lang.String, java.lang.Object)
+   */
+  @Override
+  public <T, V> boolean exists(Class<T> classT, String key, V value) {
+    Map<String, V> keyValueList = new HashMap<String, V>();
+    keyValueList.put(key, value);
+    return !getKeys(classT, keyValueList, 0, 1).isEmpty();
   }
 
   @Override
@@ -207,11 +383,47 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
    */
   @Override
   public <T> T save(T t) {
-    T newT = null;
     if (t != null) {
-      newT = (T) ofy().load().key(ofy().save().entity(t).now()).now();
+      // The id of new entities is set by the save, no need to load it again
+      ofy().save().entity(t).now();
     }
-    return newT;
+    return t;
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #saveAndGetKey(java.lang.Object)
+   */
+  @Override
+  public <T> Key<T> saveAndGetKey(T t) {
+    return ofy().save().entity(t).now();
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #saveAsync(java.lang.Object)
+   */
+  @Override
+  public <T> Result<Key<T>> saveAsync(T t) {
+    return ofy().save().entity(t);
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #saveAsync(java.util.List)
+   */
+  @Override
+  public <T> Result<Map<Key<T>, T>> saveAsync(List<T> listT) {
+    return ofy().save().entities(listT);
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #allocateId(java.lang.Class)
+   */
+  @Override
+  public <T> Long allocateId(Class<T> classT) {
+    return ofy().factory().allocateId(classT).getId();
   }
 
   /**
@@ -232,7 +444,7 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
   @Override
   public <T> void remove(T t) {
     if (t != null) {
-      ofy().delete().entity(t);
+      ofy().delete().entity(t).now();
     }
   }
 
@@ -243,12 +455,13 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
   @Override
   public <T> void remove(Collection<T> listT) {
     if (listT != null && listT.size() > 0) {
-      ofy().delete().entities(listT);
+      ofy().delete().entities(listT).now();
     }
   }
 
   /**
-   * Removes the collection of entities by key,value
+   * Removes the collection of entities by key,value, with a keys-only query so
+   * the entities are never loaded.
    *
    * @param classT the entity T class
    * @param key the property name
@@ -256,11 +469,12 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
    */
   @Override
   public <T, V> void remove(Class<T> classT, String key, V value) {
-    remove(get(classT, key, value));
+    removeKeys(getKeys(classT, key, value));
   }
 
   /**
-   * Removes the collection of entities by key,values
+   * Removes the collection of entities by key,values, with a keys-only query so
+   * the entities are never loaded.
    *
    * @param classT the entity T class
    * @param key the property name
@@ -268,7 +482,18 @@ public class ObjectifyEntityPersister implements EntityPersister, Serializable {
    */
   @Override
   public <T, V> void remove(Class<T> classT, String key, List<V> values) {
-    remove(get(classT, key, values));
+    removeKeys(ofy().load().type(classT).filter(key + " in", values).keys().list());
+  }
+
+  /**
+   * @see com.google.devpartners.homemonitor.persistence.objectify.EntityPersister
+   *      #removeKeys(java.util.Collection)
+   */
+  @Override
+  public <T> void removeKeys(Collection<Key<T>> keys) {
+    if (keys != null && keys.size() > 0) {
+      ofy().delete().keys(keys).now();
+    }
   }
 
   /**
@@ -0,0 +1,33 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+/**
+ * Thrown when a call to the datastore is shed because there are too many
+ * calls in flight, the caller should retry after a while.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class PersisterOverloadedException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  // Seconds suggested to the clients before they retry
+  public static final int RETRY_AFTER_SECONDS = 1;
+
+  public PersisterOverloadedException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,460 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.persistence.objectify;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.google.devpartners.homemonitor.model.DeviceReportArchive;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.series.SampleArchiveCodec;
+import com.google.devpartners.homemonitor.series.SampleSeries;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.googlecode.objectify.Work;
+
+/**
+ * EntityPersister that splits the {@link DeviceTemperatureHumidityReport}s of
+ * every Device in two tiers.
+ *
+ * Recent reports stay in the datastore as entities. Whole months older than
+ * the configured age are compacted into one {@link DeviceReportArchive} blob
+ * per Device and month, and removed from the kind. Date range queries by
+ * Device merge both tiers, so callers see a single time series.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class TieredEntityPersister extends ForwardingEntityPersister {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(TieredEntityPersister.class.getName());
+
+  public static final String ARCHIVE_AFTER_DAYS = "homemonitor.archive.afterDays";
+
+  // Prefixes of the scan cursors, the months are first instants in millis
+  private static final String ARCHIVE_CURSOR = "archive:";
+  private static final String DATASTORE_CURSOR = "datastore:";
+
+  // Entities are limited to 1MB, leave room for the other properties
+  private static final int MAX_ARCHIVE_BYTES = 1000 * 1000 - 10 * 1000;
+
+  private final int archiveAfterDays;
+
+  public TieredEntityPersister(EntityPersister delegate) {
+    this(delegate, ConfigUtil.getInt(ARCHIVE_AFTER_DAYS, 90));
+  }
+
+  public TieredEntityPersister(EntityPersister delegate, int archiveAfterDays) {
+    super(delegate);
+    this.archiveAfterDays = archiveAfterDays;
+  }
+
+  /**
+   * @return the first instant of the oldest month that is kept only in the
+   *         datastore, reports before it are archived
+   */
+  public Date getArchiveBoundary() {
+    return DateUtil.startOfMonthUtc(new DateTime().minusDays(archiveAfterDays).toDate()).toDate();
+  }
+
+  /**
+   * Gets the reports of one Device between the dates from both tiers, other
+   * queries go straight to the datastore.
+   */
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd, Integer numToSkip, Integer limit) {
+    return getTiered(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit, null);
+  }
+
+  /**
+   * Same as {@link #get(Class, String, Object, String, Date, Date, Integer, Integer)},
+   * without paging.
+   */
+  @Override
+  public <T, V> List<T> get(Class<T> classT, String key, V value, String dateKey, Date dateStart,
+      Date dateEnd) {
+    return getTiered(classT, key, value, dateKey, dateStart, dateEnd, 0, 0, null);
+  }
+
+  /**
+   * Same as {@link #get(Class, String, Object, String, Date, Date, Integer, Integer)},
+   * the archived samples are complete so they are returned as they are.
+   */
+  @Override
+  public <T, V> List<T> getProjection(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String... properties) {
+    return getTiered(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit,
+        properties);
+  }
+
+  private <T, V> List<T> getTiered(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String[] properties) {
+
+    Date boundary = getArchiveBoundary();
+    if (!isArchivedQuery(classT, key, value, dateKey)
+        || (dateStart != null && !dateStart.before(boundary))) {
+      return getRecent(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit,
+          properties);
+    }
+
+    int skip = numToSkip == null ? 0 : numToSkip;
+    int max = limit == null ? 0 : limit;
+    @SuppressWarnings("unchecked")
+    List<DeviceTemperatureHumidityReport> reports =
+        (List<DeviceTemperatureHumidityReport>) getRecent(classT, key, value, dateKey,
+            dateStart, dateEnd, 0, max > 0 ? skip + max : 0, properties);
+
+    // The page is complete with recent reports, the archives can't be newer
+    if (max > 0 && reports.size() >= skip + max
+        && !reports.get(skip + max - 1).getDate().before(boundary)) {
+      return page(classT, reports, skip, max);
+    }
+
+    Long deviceId = (Long) value;
+    // Same semantics as the datastore query: a single date, a range or everything
+    Date start = dateStart;
+    Date end = dateStart == null ? dateEnd : (dateEnd == null ? dateStart : dateEnd);
+    List<DeviceTemperatureHumidityReport> merged = Lists.newArrayList(reports);
+    Collection<DeviceReportArchive> archives =
+        loadArchives(Collections.singletonList(deviceId), start, end, boundary).get(deviceId);
+    merged.addAll(toReports(deviceId, archives, start, end, getSampleKeys(reports)));
+    Collections.sort(merged, DeviceReport.DATE_DESCENDING);
+    return page(classT, merged, skip, max);
+  }
+
+  private <T, V> List<T> getRecent(Class<T> classT, String key, V value, String dateKey,
+      Date dateStart, Date dateEnd, Integer numToSkip, Integer limit, String[] properties) {
+    if (properties == null) {
+      return delegate.get(classT, key, value, dateKey, dateStart, dateEnd, numToSkip, limit);
+    }
+    return delegate.getProjection(classT, key, value, dateKey, dateStart, dateEnd, numToSkip,
+        limit, properties);
+  }
+
+  /**
+   * Gets the reports of several Devices between the dates from both tiers.
+   * The archives of all the Devices are loaded at once, after the concurrent
+   * datastore queries.
+   */
+  @Override
+  public <T extends DeviceReport> List<T> getByDevices(Class<T> classT, List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Integer limit) {
+
+    List<T> reports = delegate.getByDevices(classT, deviceIds, dateStart, dateEnd, limit);
+    Date boundary = getArchiveBoundary();
+    int max = limit == null ? 0 : limit;
+    if (classT != DeviceTemperatureHumidityReport.class
+        || (dateStart != null && !dateStart.before(boundary))
+        || (max > 0 && reports.size() >= max
+            && !reports.get(max - 1).getDate().before(boundary))) {
+      return reports;
+    }
+
+    Date end = dateStart == null ? null : (dateEnd == null ? dateStart : dateEnd);
+    Map<Long, List<DeviceTemperatureHumidityReport>> reportsByDevice =
+        new LinkedHashMap<Long, List<DeviceTemperatureHumidityReport>>();
+    for (Long deviceId : deviceIds) {
+      reportsByDevice.put(deviceId, new ArrayList<DeviceTemperatureHumidityReport>());
+    }
+    for (T report : reports) {
+      reportsByDevice.get(report.deviceId()).add((DeviceTemperatureHumidityReport) report);
+    }
+
+    List<DeviceTemperatureHumidityReport> merged = Lists.newArrayList();
+    for (Entry<Long, Collection<DeviceReportArchive>> archives
+        : loadArchives(deviceIds, dateStart, end, boundary).entrySet()) {
+      List<DeviceTemperatureHumidityReport> deviceReports =
+          reportsByDevice.get(archives.getKey());
+      merged.addAll(deviceReports);
+      merged.addAll(toReports(archives.getKey(), archives.getValue(), dateStart, end,
+          getSampleKeys(deviceReports)));
+    }
+    Collections.sort(merged, DeviceReport.DATE_DESCENDING);
+    return page(classT, merged, 0, max);
+  }
+
+  /**
+   * Gets the reports of several Devices from both tiers. The reads that end
+   * before the archive boundary need the archives of every Device, so they
+   * are read one Device at a time.
+   */
+  @Override
+  public <T extends DeviceReport> Map<Long, List<T>> getPerDevice(Class<T> classT,
+      List<Long> deviceIds, String dateKey, Date dateStart, Date dateEnd, Integer limit) {
+    if (deviceIds.isEmpty()
+        || !isArchivedQuery(classT, DeviceReport.DEVICE_ID, deviceIds.get(0), dateKey)
+        || (dateStart != null && !dateStart.before(getArchiveBoundary()))) {
+      return delegate.getPerDevice(classT, deviceIds, dateKey, dateStart, dateEnd, limit);
+    }
+
+    Map<Long, List<T>> reports = new LinkedHashMap<Long, List<T>>();
+    for (Long deviceId : deviceIds) {
+      reports.put(deviceId, getTiered(classT, DeviceReport.DEVICE_ID, deviceId, dateKey,
+          dateStart, dateEnd, 0, limit, null));
+    }
+    return reports;
+  }
+
+  /**
+   * Scans the archived months first, a whole month per page, and then the
+   * reports in the datastore. A report that is being archived while the scan
+   * runs may be returned by both tiers.
+   */
+  @Override
+  public <T extends DeviceReport> ReportPage<T> scan(Class<T> classT, Long deviceId,
+      Date dateStart, Date dateEnd, String cursor, int limit) {
+
+    if (cursor == null) {
+      Date month = null;
+      if (classT == DeviceTemperatureHumidityReport.class) {
+        month = getFirstArchivedMonth(deviceId, dateStart);
+      }
+      cursor = month == null ? DATASTORE_CURSOR : ARCHIVE_CURSOR + month.getTime();
+    }
+
+    if (cursor.startsWith(DATASTORE_CURSOR)) {
+      String datastoreCursor = cursor.substring(DATASTORE_CURSOR.length());
+      ReportPage<T> page = delegate.scan(classT, deviceId, dateStart, dateEnd,
+          datastoreCursor.isEmpty() ? null : datastoreCursor, limit);
+      return new ReportPage<T>(page.getReports(),
+          page.getCursor() == null ? null : DATASTORE_CURSOR + page.getCursor());
+    }
+
+    Date month = new Date(Long.parseLong(cursor.substring(ARCHIVE_CURSOR.length())));
+    DeviceReportArchive archive = ofy().load().type(DeviceReportArchive.class)
+        .id(DeviceReportArchive.createId(deviceId, month)).now();
+    @SuppressWarnings("unchecked")
+    List<T> reports = (List<T>) (archive == null
+        ? Lists.<DeviceTemperatureHumidityReport>newArrayList()
+        : toReports(deviceId, Collections.singletonList(archive), dateStart, dateEnd,
+            HashMultiset.<String>create()));
+
+    DateTime next = new DateTime(month, DateTimeZone.UTC).plusMonths(1);
+    boolean archived = next.toDate().before(getArchiveBoundary())
+        && (dateEnd == null || !next.toDate().after(dateEnd));
+    return new ReportPage<T>(reports,
+        archived ? ARCHIVE_CURSOR + next.getMillis() : DATASTORE_CURSOR);
+  }
+
+  /**
+   * @return the first month to scan in the archives, null if the scan starts
+   *         in the datastore
+   */
+  private Date getFirstArchivedMonth(Long deviceId, Date dateStart) {
+    Date boundary = getArchiveBoundary();
+    if (dateStart != null) {
+      return dateStart.before(boundary) ? DateUtil.startOfMonthUtc(dateStart).toDate() : null;
+    }
+    DeviceReportArchive first = ofy().load().type(DeviceReportArchive.class)
+        .filter(DeviceReportArchive.DEVICE_ID, deviceId).order(DeviceReportArchive.MONTH)
+        .first().now();
+    return first == null ? null : first.getMonth();
+  }
+
+  /**
+   * Moves the reports of one Device to the archive blobs of their months,
+   * merging them with the samples already archived, and removes them from
+   * the datastore.
+   *
+   * @param deviceId the Device of the reports
+   * @param reports the reports to be archived
+   * @return the number of reports that were archived
+   */
+  public int archive(Long deviceId, List<DeviceTemperatureHumidityReport> reports) {
+    Map<String, List<DeviceTemperatureHumidityReport>> reportsByMonth =
+        new LinkedHashMap<String, List<DeviceTemperatureHumidityReport>>();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      String id = DeviceReportArchive.createId(deviceId, report.getDate());
+      if (!reportsByMonth.containsKey(id)) {
+        reportsByMonth.put(id, new ArrayList<DeviceTemperatureHumidityReport>());
+      }
+      reportsByMonth.get(id).add(report);
+    }
+
+    int archived = 0;
+    for (List<DeviceTemperatureHumidityReport> monthReports : reportsByMonth.values()) {
+      // The blob is saved first, queries skip the reports already archived
+      if (archiveMonth(deviceId, monthReports)) {
+        ofy().delete().entities(monthReports).now();
+        archived += monthReports.size();
+      }
+    }
+    return archived;
+  }
+
+  /**
+   * Merges the reports of one month into its archive blob in a transaction,
+   * so concurrent compactions of the same month don't lose samples.
+   *
+   * @return false if the archive would exceed the entity size
+   */
+  private boolean archiveMonth(final Long deviceId,
+      final List<DeviceTemperatureHumidityReport> monthReports) {
+    final Date month = DateUtil.startOfMonthUtc(monthReports.get(0).getDate()).toDate();
+    return ofy().transact(new Work<Boolean>() {
+      public Boolean run() {
+        DeviceReportArchive archive = ofy().load().type(DeviceReportArchive.class)
+            .id(DeviceReportArchive.createId(deviceId, month)).now();
+        if (archive == null) {
+          archive = new DeviceReportArchive(deviceId, month);
+        }
+
+        // Samples with the same date are all kept, only a report that is
+        // already archived by a previous attempt is skipped
+        List<DeviceTemperatureHumidityReport> samples = Lists.newArrayList(
+            toReports(deviceId, Collections.singletonList(archive), null, null,
+                HashMultiset.<String>create()));
+        Multiset<String> archivedSamples = getSampleKeys(samples);
+        for (DeviceTemperatureHumidityReport report : monthReports) {
+          if (!archivedSamples.remove(getSampleKey(report))) {
+            samples.add(report);
+          }
+        }
+        Collections.sort(samples, Collections.reverseOrder(DeviceReport.DATE_DESCENDING));
+        SampleSeries series = new SampleSeries(deviceId, samples.size());
+        for (DeviceTemperatureHumidityReport sample : samples) {
+          series.add(0, sample.getDate().getTime(), sample.getTemperature(),
+              sample.getHumidity());
+        }
+
+        byte[] data = SampleArchiveCodec.encode(series);
+        if (data.length > MAX_ARCHIVE_BYTES) {
+          LOGGER.severe("Archive " + archive.getId() + " would exceed the entity size with "
+              + series.size() + " samples, keeping the reports in the datastore");
+          return false;
+        }
+        archive.setData(data, series.size());
+        ofy().save().entity(archive).now();
+        return true;
+      }
+    });
+  }
+
+  private boolean isArchivedQuery(Class<?> classT, String key, Object value, String dateKey) {
+    return classT == DeviceTemperatureHumidityReport.class
+        && DeviceTemperatureHumidityReport.DEVICE_ID.equals(key) && value instanceof Long
+        && DeviceTemperatureHumidityReport.DATE.equals(dateKey);
+  }
+
+  /**
+   * Loads the archives of the Devices that may contain samples between the
+   * dates, all the Devices at once.
+   */
+  private Map<Long, Collection<DeviceReportArchive>> loadArchives(List<Long> deviceIds,
+      Date dateStart, Date dateEnd, Date boundary) {
+
+    Map<Long, Collection<DeviceReportArchive>> archives =
+        new LinkedHashMap<Long, Collection<DeviceReportArchive>>();
+    if (dateStart == null) {
+      // One asynchronous query per Device, they all run concurrently
+      for (Long deviceId : deviceIds) {
+        archives.put(deviceId, ofy().load().type(DeviceReportArchive.class)
+            .filter(DeviceReportArchive.DEVICE_ID, deviceId).list());
+      }
+    } else {
+      // The archive ids are known, load the months of the range in one batch
+      List<String> ids = Lists.newArrayList();
+      Date last = dateEnd == null || dateEnd.after(boundary) ? boundary : dateEnd;
+      for (Long deviceId : deviceIds) {
+        archives.put(deviceId, new ArrayList<DeviceReportArchive>());
+        for (DateTime month = DateUtil.startOfMonthUtc(dateStart); !month.toDate().after(last);
+            month = month.plusMonths(1)) {
+          ids.add(DeviceReportArchive.createId(deviceId, month.toDate()));
+        }
+      }
+      for (DeviceReportArchive archive : ofy().load().type(DeviceReportArchive.class).ids(ids)
+          .values()) {
+        archives.get(archive.getDeviceId()).add(archive);
+      }
+    }
+    return archives;
+  }
+
+  private List<DeviceTemperatureHumidityReport> toReports(Long deviceId,
+      Collection<DeviceReportArchive> archives, Date dateStart, Date dateEnd,
+      Multiset<String> skipSamples) {
+
+    long start = dateStart == null ? Long.MIN_VALUE : dateStart.getTime();
+    long end = dateEnd == null ? Long.MAX_VALUE : dateEnd.getTime();
+    List<DeviceTemperatureHumidityReport> reports = Lists.newArrayList();
+    for (DeviceReportArchive archive : archives) {
+      SampleSeries series = decode(archive);
+      for (int i = 0; i < series.size(); i++) {
+        long date = series.getDate(i);
+        if (date >= start && date <= end) {
+          DeviceTemperatureHumidityReport report = new DeviceTemperatureHumidityReport(deviceId,
+              series.getTemperature(i), series.getHumidity(i));
+          report.setDate(new Date(date));
+          if (!skipSamples.remove(getSampleKey(report))) {
+            reports.add(report);
+          }
+        }
+      }
+    }
+    return reports;
+  }
+
+  private SampleSeries decode(DeviceReportArchive archive) {
+    try {
+      return SampleArchiveCodec.decode(archive.getDeviceId(), archive.getData());
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not decode archive " + archive.getId(), e);
+    }
+  }
+
+  /**
+   * @return the samples of the reports that are still in the datastore, an
+   *         archived sample equal to one of them is the same report
+   */
+  private Multiset<String> getSampleKeys(List<DeviceTemperatureHumidityReport> reports) {
+    Multiset<String> keys = HashMultiset.create();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      keys.add(getSampleKey(report));
+    }
+    return keys;
+  }
+
+  private String getSampleKey(DeviceTemperatureHumidityReport report) {
+    return report.getDate().getTime() + ":" + report.getTemperature() + ":"
+        + report.getHumidity();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> List<T> page(Class<T> classT, List<DeviceTemperatureHumidityReport> reports,
+      int numToSkip, int limit) {
+    int from = Math.min(numToSkip, reports.size());
+    int to = limit > 0 ? Math.min(from + limit, reports.size()) : reports.size();
+    return (List<T>) Lists.newArrayList(reports.subList(from, to));
+  }
+}
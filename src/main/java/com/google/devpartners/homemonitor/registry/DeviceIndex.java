@@ -0,0 +1,242 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.registry;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.model.Device;
+
+/**
+ * The {@link Device}s by id, indexed by owner and types, and by owner and
+ * location.
+ *
+ * The types of every Device are a bitmask where the bit of every
+ * {@link Device.type} it has is set. The locations are paths like
+ * "bldg1/floor2/room3" kept sorted for every owner, so all the locations of
+ * the owner under a path are one range of the index.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class DeviceIndex {
+
+  static final char SEPARATOR = '/';
+  static final String WILDCARD = "*";
+
+  private final ConcurrentMap<Long, Device> devices = new ConcurrentHashMap<Long, Device>();
+
+  // Type masks of the Devices by owner and Device id
+  private final ConcurrentMap<String, ConcurrentMap<Long, Integer>> typeMasks =
+      new ConcurrentHashMap<String, ConcurrentMap<Long, Integer>>();
+
+  // Ids of the Devices by owner and location
+  private final ConcurrentMap<String, ConcurrentNavigableMap<String, Set<Long>>> locations =
+      new ConcurrentHashMap<String, ConcurrentNavigableMap<String, Set<Long>>>();
+
+  // Owner and location under which every Device is indexed, the Device may have changed since
+  private final ConcurrentMap<Long, String> indexedOwners = new ConcurrentHashMap<Long, String>();
+
+  private final ConcurrentMap<Long, String> indexedLocations =
+      new ConcurrentHashMap<Long, String>();
+
+  Device get(Long id) {
+    return devices.get(id);
+  }
+
+  Collection<Device> getAll() {
+    return devices.values();
+  }
+
+  int size() {
+    return devices.size();
+  }
+
+  void put(Device device) {
+    remove(device.getId());
+    devices.put(device.getId(), device);
+
+    String owner = device.getOwner();
+    if (owner != null) {
+      indexedOwners.put(device.getId(), owner);
+      ConcurrentMap<Long, Integer> ownerTypeMasks = typeMasks.get(owner);
+      if (ownerTypeMasks == null) {
+        ConcurrentMap<Long, Integer> newTypeMasks = new ConcurrentHashMap<Long, Integer>();
+        ownerTypeMasks = typeMasks.putIfAbsent(owner, newTypeMasks);
+        if (ownerTypeMasks == null) {
+          ownerTypeMasks = newTypeMasks;
+        }
+      }
+      ownerTypeMasks.put(device.getId(), typeMask(device.getTypes()));
+    }
+
+    String location = normalizeLocation(device.getLocation());
+    if (owner != null && location != null) {
+      indexedLocations.put(device.getId(), location);
+      ConcurrentNavigableMap<String, Set<Long>> ownerLocations = locations.get(owner);
+      if (ownerLocations == null) {
+        ConcurrentNavigableMap<String, Set<Long>> newLocations =
+            new ConcurrentSkipListMap<String, Set<Long>>();
+        ownerLocations = locations.putIfAbsent(owner, newLocations);
+        if (ownerLocations == null) {
+          ownerLocations = newLocations;
+        }
+      }
+      Set<Long> ids = ownerLocations.get(location);
+      if (ids == null) {
+        Set<Long> newIds = Sets.newConcurrentHashSet();
+        ids = ownerLocations.putIfAbsent(location, newIds);
+        if (ids == null) {
+          ids = newIds;
+        }
+      }
+      ids.add(device.getId());
+    }
+  }
+
+  void remove(Long id) {
+    devices.remove(id);
+
+    String owner = indexedOwners.remove(id);
+    Map<Long, Integer> ownerTypeMasks = owner == null ? null : typeMasks.get(owner);
+    if (ownerTypeMasks != null) {
+      ownerTypeMasks.remove(id);
+    }
+
+    String location = indexedLocations.remove(id);
+    Map<String, Set<Long>> ownerLocations = owner == null ? null : locations.get(owner);
+    Set<Long> ids = location == null || ownerLocations == null ? null
+        : ownerLocations.get(location);
+    if (ids != null) {
+      ids.remove(id);
+    }
+  }
+
+  /**
+   * @return the Devices of the owner that have all the types of the mask
+   */
+  List<Device> getByTypes(String owner, int mask) {
+    List<Device> result = Lists.newArrayList();
+    Map<Long, Integer> ownerTypeMasks = typeMasks.get(owner);
+    if (ownerTypeMasks == null) {
+      return result;
+    }
+    for (Map.Entry<Long, Integer> entry : ownerTypeMasks.entrySet()) {
+      if ((entry.getValue() & mask) == mask) {
+        Device device = devices.get(entry.getKey());
+        if (device != null) {
+          result.add(device);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the Devices of the owner in a location, or under a location when it
+   * ends with "/*". A location only contains the locations that start with
+   * its path followed by "/", "bldg1/floor1/*" doesn't contain "bldg1/floor10".
+   *
+   * @param owner the owner of the Devices
+   * @param pattern the location, or the location followed by "/*"
+   * @return the Devices by location, sorted by location
+   */
+  Map<String, List<Device>> getByLocation(String owner, String pattern) {
+    boolean under = pattern.endsWith(WILDCARD);
+    String path = normalizeLocation(under
+        ? pattern.substring(0, pattern.length() - WILDCARD.length()) : pattern);
+
+    ConcurrentNavigableMap<String, Set<Long>> ownerLocations = locations.get(owner);
+    Map<String, Set<Long>> matching;
+    if (ownerLocations == null) {
+      matching = Maps.newHashMap();
+    } else if (path == null) {
+      matching = under ? ownerLocations : Maps.<String, Set<Long>>newHashMap();
+    } else if (under) {
+      // The separator sorts right before the characters allowed after it
+      matching = ownerLocations.subMap(path, true, path + (char) (SEPARATOR + 1), false);
+    } else {
+      Set<Long> ids = ownerLocations.get(path);
+      matching = Maps.newHashMap();
+      if (ids != null) {
+        matching.put(path, ids);
+      }
+    }
+
+    Map<String, List<Device>> result = Maps.newLinkedHashMap();
+    for (Map.Entry<String, Set<Long>> entry : matching.entrySet()) {
+      String location = entry.getKey();
+      if (path != null && !location.equals(path)
+          && location.charAt(path.length()) != SEPARATOR) {
+        continue;
+      }
+      List<Device> locationDevices = Lists.newArrayList();
+      for (Long id : entry.getValue()) {
+        Device device = devices.get(id);
+        if (device != null) {
+          locationDevices.add(device);
+        }
+      }
+      if (!locationDevices.isEmpty()) {
+        result.put(location, locationDevices);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the mask with the bits of the types set
+   */
+  static int typeMask(Collection<Device.type> types) {
+    int mask = 0;
+    if (types != null) {
+      for (Device.type type : types) {
+        mask |= 1 << type.ordinal();
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * @return the location without the spaces and separators around it, or null
+   *         if it is empty
+   */
+  static String normalizeLocation(String location) {
+    if (location == null) {
+      return null;
+    }
+    int start = 0;
+    int end = location.length();
+    while (start < end && isTrimmed(location.charAt(start))) {
+      start++;
+    }
+    while (end > start && isTrimmed(location.charAt(end - 1))) {
+      end--;
+    }
+    return start == end ? null : location.substring(start, end);
+  }
+
+  private static boolean isTrimmed(char c) {
+    return c == SEPARATOR || Character.isWhitespace(c);
+  }
+}
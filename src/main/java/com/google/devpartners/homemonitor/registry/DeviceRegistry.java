@@ -0,0 +1,307 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.registry;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.OwnerSettings;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPage;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * In memory copy of all the {@link Device}s and {@link OwnerSettings}, so
+ * that the request path can read them without datastore or memcache calls.
+ *
+ * The copy is loaded again when it is older than the refresh interval. The
+ * new copy is built one page of Devices at a time, continuing from the cursor
+ * of the last page, by the requests that find the old one stale, so no
+ * request pays for the whole load. Until the first copy of the instance is
+ * complete the Devices are read from the datastore by id or by owner instead.
+ * Changes made through this instance are applied right away, and again on the
+ * new copy if they are made while it is being built. Changes made through
+ * other instances are seen after the next refresh. A failed page discards
+ * the new copy, which is started again after the next interval.
+ *
+ * The Devices are indexed by owner and types, and by owner and location, see
+ * {@link DeviceIndex}.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DeviceRegistry {
+
+  private static final Logger LOGGER = Logger.getLogger(DeviceRegistry.class.getName());
+
+  public static final String REFRESH_SECONDS = "homemonitor.registry.refreshSeconds";
+
+  private static final int PAGE_SIZE = 1000;
+
+  private final long refreshMillis;
+
+  private volatile DeviceIndex devices = new DeviceIndex();
+
+  private volatile ConcurrentMap<String, OwnerSettings> ownerSettings =
+      new ConcurrentHashMap<String, OwnerSettings>();
+
+  private volatile long refreshed = 0;
+
+  // Whether the first copy is complete
+  private volatile boolean loaded;
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  // The copy being built and the Devices already loaded into it
+  private DeviceIndex nextDevices;
+  private String nextCursor;
+
+  // Changes made while the next copy is built, a null Device was removed
+  private final Map<Long, Device> changedDevices = new HashMap<Long, Device>();
+  private final Map<String, OwnerSettings> changedOwnerSettings =
+      new HashMap<String, OwnerSettings>();
+
+  private final Object lock = new Object();
+
+  public DeviceRegistry() {
+    this(TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(REFRESH_SECONDS, 300)));
+  }
+
+  public DeviceRegistry(long refreshMillis) {
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * @return the Device with the id, or null if it doesn't exist
+   */
+  public Device getDevice(EntityPersister persister, Long id) {
+    refreshIfStale(persister);
+    if (id == null) {
+      return null;
+    }
+    if (!loaded) {
+      return persister.getByPrimaryId(Device.class, id);
+    }
+    return devices.get(id);
+  }
+
+  /**
+   * @return all the Devices
+   */
+  public Collection<Device> getDevices(EntityPersister persister) {
+    refreshIfStale(persister);
+    if (!loaded) {
+      return persister.get(Device.class);
+    }
+    return Collections.unmodifiableCollection(devices.getAll());
+  }
+
+  /**
+   * Gets the Devices of the owner that have all the types.
+   *
+   * @param persister to load the Devices when the copy is stale
+   * @param owner the owner of the Devices
+   * @param types the types the Devices must have, empty for all the Devices
+   * @return the Devices that were found
+   */
+  public List<Device> getDevices(EntityPersister persister, String owner,
+      Collection<Device.type> types) {
+    refreshIfStale(persister);
+    if (owner == null) {
+      return Lists.newArrayList();
+    }
+    if (!loaded) {
+      return getStoredDevices(persister, owner, types);
+    }
+    return devices.getByTypes(owner, DeviceIndex.typeMask(types));
+  }
+
+  /**
+   * Gets the Devices of the owner that have all the types from the datastore,
+   * for the reads that must see the changes made through other instances.
+   *
+   * @param persister to query the Devices of the owner
+   * @param owner the owner of the Devices
+   * @param types the types the Devices must have, empty for all the Devices
+   * @return the Devices that were found
+   */
+  public List<Device> getStoredDevices(EntityPersister persister, String owner,
+      Collection<Device.type> types) {
+    if (owner == null) {
+      return Lists.newArrayList();
+    }
+    return loadOwner(persister, owner).getByTypes(owner, DeviceIndex.typeMask(types));
+  }
+
+  /**
+   * Gets the Devices of the owner in a location, like "bldg1/floor2/room3", or
+   * under a location, like "bldg1/floor2/*".
+   *
+   * @param persister to load the Devices when the copy is stale
+   * @param owner the owner of the Devices
+   * @param pattern the location, or the location followed by "/*"
+   * @return the Devices by location, sorted by location
+   */
+  public Map<String, List<Device>> getDevicesByLocation(EntityPersister persister,
+      String owner, String pattern) {
+    refreshIfStale(persister);
+    if (owner == null) {
+      return Maps.newHashMap();
+    }
+    if (!loaded) {
+      return loadOwner(persister, owner).getByLocation(owner, pattern);
+    }
+    return devices.getByLocation(owner, pattern);
+  }
+
+  /**
+   * @return the OwnerSettings of the owner, or null if it has none
+   */
+  public OwnerSettings getOwnerSettings(EntityPersister persister, String owner) {
+    refreshIfStale(persister);
+    if (owner == null) {
+      return null;
+    }
+    if (!loaded) {
+      return persister.getByPrimaryId(OwnerSettings.class, owner);
+    }
+    return ownerSettings.get(owner);
+  }
+
+  public void putDevice(Device device) {
+    if (device != null && device.getId() != null) {
+      synchronized (lock) {
+        devices.put(device);
+        if (nextDevices != null) {
+          changedDevices.put(device.getId(), device);
+        }
+      }
+    }
+  }
+
+  public void removeDevice(Long id) {
+    if (id != null) {
+      synchronized (lock) {
+        devices.remove(id);
+        if (nextDevices != null) {
+          changedDevices.put(id, null);
+        }
+      }
+    }
+  }
+
+  public void putOwnerSettings(OwnerSettings settings) {
+    if (settings != null && settings.getOwner() != null) {
+      synchronized (lock) {
+        ownerSettings.put(settings.getOwner(), settings);
+        if (nextDevices != null) {
+          changedOwnerSettings.put(settings.getOwner(), settings);
+        }
+      }
+    }
+  }
+
+  private void refreshIfStale(EntityPersister persister) {
+    if (System.currentTimeMillis() - refreshed < refreshMillis
+        || !refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      loadNextPage(persister);
+    } catch (RuntimeException e) {
+      // Keep the old copy, the new one is started again after the next interval
+      LOGGER.warning("Could not refresh the registry: " + e.getMessage());
+      synchronized (lock) {
+        nextDevices = null;
+        changedDevices.clear();
+        changedOwnerSettings.clear();
+      }
+      refreshed = System.currentTimeMillis();
+    } finally {
+      refreshing.set(false);
+    }
+  }
+
+  /**
+   * @return an index of the Devices of the owner, queried from the datastore
+   */
+  private DeviceIndex loadOwner(EntityPersister persister, String owner) {
+    DeviceIndex ownerDevices = new DeviceIndex();
+    for (Device device : persister.get(Device.class, Device.OWNER, owner)) {
+      ownerDevices.put(device);
+    }
+    return ownerDevices;
+  }
+
+  /**
+   * Loads the next page of Devices into the new copy, and replaces the old
+   * copy with it after the last page.
+   *
+   * @return true if the new copy replaced the old one
+   */
+  private boolean loadNextPage(EntityPersister persister) {
+    synchronized (lock) {
+      if (nextDevices == null) {
+        nextDevices = new DeviceIndex();
+        nextCursor = null;
+      }
+    }
+    EntityPage<Device> page = persister.getPage(Device.class, nextCursor, PAGE_SIZE);
+    for (Device device : page.getEntities()) {
+      nextDevices.put(device);
+    }
+    nextCursor = page.getCursor();
+    if (nextCursor != null) {
+      return false;
+    }
+
+    ConcurrentMap<String, OwnerSettings> newOwnerSettings =
+        new ConcurrentHashMap<String, OwnerSettings>();
+    for (OwnerSettings settings : persister.get(OwnerSettings.class)) {
+      newOwnerSettings.put(settings.getOwner(), settings);
+    }
+    synchronized (lock) {
+      // The changes made while loading are newer than the pages
+      for (Map.Entry<Long, Device> change : changedDevices.entrySet()) {
+        if (change.getValue() == null) {
+          nextDevices.remove(change.getKey());
+        } else {
+          nextDevices.put(change.getValue());
+        }
+      }
+      newOwnerSettings.putAll(changedOwnerSettings);
+      devices = nextDevices;
+      ownerSettings = newOwnerSettings;
+      refreshed = System.currentTimeMillis();
+      loaded = true;
+      LOGGER.info("Loaded " + nextDevices.size() + " Devices and " + newOwnerSettings.size()
+          + " OwnerSettings in the registry");
+      nextDevices = null;
+      changedDevices.clear();
+      changedOwnerSettings.clear();
+    }
+    return true;
+  }
+}
@@ -0,0 +1,250 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.registry;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * In memory table of the {@link DeviceHeartbeat}s, updated on every report
+ * so that the status of the Devices is known without querying their reports
+ * or rewriting the {@link Device}s.
+ *
+ * The changed heartbeats are saved in one batch per flush interval, by the
+ * first report that finds the flush due or by the staleness check, merged
+ * first with the stored ones of the same Devices. The heartbeats that are
+ * read are loaded again by key at most once per flush interval to see the
+ * reports received by other instances, keeping the newest heartbeat of each
+ * Device and the intervals measured by every instance.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class HeartbeatTable {
+
+  private static final Logger LOGGER = Logger.getLogger(HeartbeatTable.class.getName());
+
+  public static final String FLUSH_SECONDS = "homemonitor.heartbeat.flushSeconds";
+  public static final String MISSED_INTERVALS = "homemonitor.heartbeat.missedIntervals";
+  public static final String MIN_STALE_MINUTES = "homemonitor.heartbeat.minStaleMinutes";
+
+  private final DeviceRegistry deviceRegistry;
+
+  private final long flushMillis;
+
+  private final int missedIntervals;
+
+  private final long minStaleMillis;
+
+  private final ConcurrentMap<Long, DeviceHeartbeat> heartbeats =
+      new ConcurrentHashMap<Long, DeviceHeartbeat>();
+
+  private final Set<Long> dirty = Sets.newConcurrentHashSet();
+
+  // When the heartbeat of every Device was last loaded
+  private final ConcurrentMap<Long, Long> loaded = new ConcurrentHashMap<Long, Long>();
+
+  private volatile long flushed = System.currentTimeMillis();
+
+  private final AtomicBoolean flushing = new AtomicBoolean();
+
+  // Identifies the intervals measured by this instance in the heartbeats
+  private final String instanceId = UUID.randomUUID().toString();
+
+  public HeartbeatTable(DeviceRegistry deviceRegistry) {
+    this(deviceRegistry, TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(FLUSH_SECONDS, 60)),
+        ConfigUtil.getInt(MISSED_INTERVALS, 3),
+        TimeUnit.MINUTES.toMillis(ConfigUtil.getInt(MIN_STALE_MINUTES, 10)));
+  }
+
+  public HeartbeatTable(DeviceRegistry deviceRegistry, long flushMillis, int missedIntervals,
+      long minStaleMillis) {
+    this.deviceRegistry = deviceRegistry;
+    this.flushMillis = flushMillis;
+    this.missedIntervals = missedIntervals;
+    this.minStaleMillis = minStaleMillis;
+  }
+
+  /**
+   * Records a report, and saves the changed heartbeats if the flush is due.
+   * A failed flush is retried with the next report.
+   */
+  public void record(EntityPersister persister, DeviceTemperatureHumidityReport report) {
+    Long deviceId = report.deviceId();
+    if (deviceId == null) {
+      return;
+    }
+    DeviceHeartbeat heartbeat = heartbeats.get(deviceId);
+    if (heartbeat == null) {
+      Device device = deviceRegistry.getDevice(persister, deviceId);
+      DeviceHeartbeat newHeartbeat =
+          new DeviceHeartbeat(deviceId, device == null ? null : device.getOwner());
+      heartbeat = heartbeats.putIfAbsent(deviceId, newHeartbeat);
+      if (heartbeat == null) {
+        heartbeat = newHeartbeat;
+      }
+    }
+    synchronized (heartbeat) {
+      if (heartbeat.record(report, instanceId)) {
+        dirty.add(deviceId);
+      }
+    }
+    flushIfDue(persister);
+  }
+
+  /**
+   * @return a copy of the heartbeat of the Device, or null if it was never seen
+   */
+  public DeviceHeartbeat getHeartbeat(EntityPersister persister, Long deviceId) {
+    if (deviceId == null) {
+      return null;
+    }
+    return getHeartbeats(persister, Collections.singletonList(deviceId)).get(deviceId);
+  }
+
+  /**
+   * Gets the heartbeats of the Devices, loading in one batch the ones that
+   * were not loaded in the last flush interval.
+   *
+   * @return copies of the heartbeats by Device, without the Devices never seen
+   */
+  public Map<Long, DeviceHeartbeat> getHeartbeats(EntityPersister persister,
+      Collection<Long> deviceIds) {
+    long now = System.currentTimeMillis();
+    List<Long> stale = Lists.newArrayList();
+    for (Long deviceId : deviceIds) {
+      Long loadedAt = loaded.get(deviceId);
+      if (loadedAt == null || now - loadedAt >= flushMillis) {
+        stale.add(deviceId);
+      }
+    }
+    if (!stale.isEmpty()) {
+      try {
+        load(persister, stale);
+      } catch (RuntimeException e) {
+        // Keep the table, the Devices are loaded again after the next interval
+        LOGGER.warning("Could not load " + stale.size() + " DeviceHeartbeats: "
+            + e.getMessage());
+        for (Long deviceId : stale) {
+          loaded.put(deviceId, now);
+        }
+      }
+    }
+
+    Map<Long, DeviceHeartbeat> copies = Maps.newHashMap();
+    for (Long deviceId : deviceIds) {
+      DeviceHeartbeat heartbeat = heartbeats.get(deviceId);
+      if (heartbeat != null) {
+        synchronized (heartbeat) {
+          copies.put(deviceId, new DeviceHeartbeat(heartbeat));
+        }
+      }
+    }
+    return copies;
+  }
+
+  /**
+   * @return true if the Device missed too many reports to be considered online
+   */
+  public boolean isStale(DeviceHeartbeat heartbeat, long now) {
+    return heartbeat == null || heartbeat.isStale(now, missedIntervals, minStaleMillis);
+  }
+
+  public void remove(Long deviceId) {
+    heartbeats.remove(deviceId);
+    dirty.remove(deviceId);
+    loaded.remove(deviceId);
+  }
+
+  private void flushIfDue(EntityPersister persister) {
+    if (System.currentTimeMillis() - flushed < flushMillis) {
+      return;
+    }
+    flush(persister);
+  }
+
+  /**
+   * Saves the changed heartbeats, also when no report arrives to flush them.
+   * The stored heartbeats of the same Devices are merged first, so that the
+   * intervals saved by the other instances since the last load are not
+   * overwritten.
+   */
+  public void flush(EntityPersister persister) {
+    if (dirty.isEmpty() || !flushing.compareAndSet(false, true)) {
+      return;
+    }
+    List<Long> deviceIds = Lists.newArrayList(dirty);
+    dirty.removeAll(deviceIds);
+    List<DeviceHeartbeat> changed = Lists.newArrayList();
+    try {
+      load(persister, deviceIds);
+      for (Long deviceId : deviceIds) {
+        DeviceHeartbeat heartbeat = heartbeats.get(deviceId);
+        if (heartbeat != null) {
+          synchronized (heartbeat) {
+            changed.add(new DeviceHeartbeat(heartbeat));
+          }
+        }
+      }
+      persister.save(changed);
+    } catch (RuntimeException e) {
+      dirty.addAll(deviceIds);
+      LOGGER.warning("Could not save " + changed.size() + " DeviceHeartbeats: " + e.getMessage());
+    } finally {
+      flushed = System.currentTimeMillis();
+      flushing.set(false);
+    }
+  }
+
+  /**
+   * Merges the stored heartbeats of the Devices into the table, with one batch
+   * get by key.
+   */
+  private void load(EntityPersister persister, Collection<Long> deviceIds) {
+    long now = System.currentTimeMillis();
+    Map<Long, DeviceHeartbeat> stored =
+        persister.getByPrimaryIds(DeviceHeartbeat.class, deviceIds);
+    for (DeviceHeartbeat heartbeat : stored.values()) {
+      // Copied, the loaded entity can be shared with the session cache
+      DeviceHeartbeat current =
+          heartbeats.putIfAbsent(heartbeat.getDeviceId(), new DeviceHeartbeat(heartbeat));
+      if (current != null) {
+        synchronized (current) {
+          current.merge(heartbeat);
+        }
+      }
+    }
+    for (Long deviceId : deviceIds) {
+      loaded.put(deviceId, now);
+    }
+  }
+}
@@ -20,11 +20,17 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.restlet.data.CacheDirective;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
 import org.restlet.data.Method;
+import org.restlet.data.Preference;
 import org.restlet.data.Status;
 import org.restlet.ext.json.JsonRepresentation;
 import org.restlet.representation.ByteArrayRepresentation;
@@ -38,7 +44,12 @@ import org.restlet.resource.Put;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+import com.google.devpartners.homemonitor.persistence.objectify.PersisterOverloadedException;
 import com.google.devpartners.homemonitor.util.DateUtil;
 import com.google.devpartners.homemonitor.util.GsonUtil;
 import com.google.gson.Gson;
@@ -151,6 +162,15 @@ public abstract class AbstractBaseResource extends ServerResource {
     return byteArrayRepresentation;
   }
 
+  protected ByteArrayRepresentation createByteArrayResult(byte[] byteArray,
+      MediaType mediaType) {
+    if (byteArray == null) {
+      this.setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+      return null;
+    }
+    return new ByteArrayRepresentation(byteArray, mediaType);
+  }
+
   protected String stackTraceToString(Throwable e) {
     StringBuilder sb = new StringBuilder();
     for (StackTraceElement element : e.getStackTrace()) {
@@ -162,7 +182,12 @@ public abstract class AbstractBaseResource extends ServerResource {
 
   protected Representation handleException(Exception exception) {
     HashMap<String, String> result = Maps.newHashMap();
-    LOGGER.severe(stackTraceToString(exception));
+    if (exception instanceof PersisterOverloadedException) {
+      // Shedding has to stay cheap
+      LOGGER.warning(exception.getMessage());
+    } else {
+      LOGGER.severe(stackTraceToString(exception));
+    }
 
     if (exception instanceof IllegalArgumentException) {
       this.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
@@ -179,6 +204,13 @@ public abstract class AbstractBaseResource extends ServerResource {
       result.put("error", ((ResourceException) exception).getStatus().getDescription());
       result.put("message", "Check that this methods is allows by the Rest Class");
 
+    } else if (exception instanceof PersisterOverloadedException) {
+      this.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+      this.getResponse().setRetryAfter(new Date(System.currentTimeMillis()
+          + TimeUnit.SECONDS.toMillis(PersisterOverloadedException.RETRY_AFTER_SECONDS)));
+      result.put("error", "overloaded");
+      result.put("message", "The server is overloaded, try again later");
+
     } else {
       this.setStatus(Status.SERVER_ERROR_INTERNAL);
       result.put("error", "internal_error");
@@ -193,6 +225,36 @@ public abstract class AbstractBaseResource extends ServerResource {
     return createJsonResult(gson.toJson(result));
   }
 
+  /**
+   * @param parameters the parsed parameters of the request, null values are
+   *        left out
+   * @return the path and the encoded parameters sorted by name, identical
+   *         requests return the same key
+   */
+  protected String getRequestKey(Map<String, ?> parameters) {
+    Escaper escaper = UrlEscapers.urlFormParameterEscaper();
+    List<String> encoded = Lists.newArrayList();
+    for (Map.Entry<String, ?> parameter : new TreeMap<String, Object>(parameters).entrySet()) {
+      if (parameter.getValue() != null) {
+        encoded.add(escaper.escape(parameter.getKey()) + "="
+            + escaper.escape(String.valueOf(parameter.getValue())));
+      }
+    }
+    return getReference().getPath() + "?" + Joiner.on('&').join(encoded);
+  }
+
+  /**
+   * @return true if the client accepts responses compressed with gzip
+   */
+  protected boolean acceptsGzip() {
+    for (Preference<Encoding> preference : getRequest().getClientInfo().getAcceptedEncodings()) {
+      if (Encoding.GZIP.equals(preference.getMetadata())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected String getHeader(String name) {
     return this.getRequest().getHeaders().getFirstValue(name);
   }
@@ -246,6 +308,30 @@ public abstract class AbstractBaseResource extends ServerResource {
     }
   }
 
+  protected List<Long> getParameterAsLongList(String name) {
+    try {
+      // Get from Request Attributes
+      String tempString = (String) getRequestAttributes().get(name);
+      if (tempString == null) {
+        // Get from Query
+        tempString = getReference().getQueryAsForm().getFirstValue(name);
+      }
+
+      List<Long> values = Lists.newArrayList();
+      if (tempString != null) {
+        for (String value : tempString.split(",")) {
+          value = value.replaceAll("[^\\d.]", "");
+          if (value.length() > 0 && !values.contains(Long.parseLong(value))) {
+            values.add(Long.parseLong(value));
+          }
+        }
+      }
+      return values;
+    } catch (Exception exception) {
+      throw new IllegalArgumentException(exception);
+    }
+  }
+
   protected Integer getParameterAsInteger(String name) {
     try {
       // Get from Request Attributes
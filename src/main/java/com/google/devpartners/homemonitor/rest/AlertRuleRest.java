@@ -0,0 +1,148 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.List;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.AlertRule;
+import com.google.devpartners.homemonitor.util.GsonUtil;
+import com.google.devpartners.homemonitor.util.RestUtil;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Rest entry point to get, create, update or delete AlertRules.
+ * 
+ * @author jtoledo@google.com
+ */
+public class AlertRuleRest extends AbstractBaseResource {
+
+  /**
+   * Gets an AlertRule by id, the AlertRules of an owner or all of them.
+   * 
+   * @return a JSON array of {@link AlertRule}s. If an id is included in the request, the
+   *         single AlertRule will still be returned within an array.
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      Long id = getParameterAsLong("id");
+      String owner = getParameter("owner");
+
+      List<AlertRule> ruleList = Lists.newArrayList();
+      if (id != null) {
+        LOGGER.info("Getting AlertRule by id");
+        AlertRule rule = RestServer.getPersister().getByPrimaryId(AlertRule.class, id);
+        if (rule == null) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+              "No AlertRule with that id was found");
+        }
+        ruleList.add(rule);
+      } else if (owner != null) {
+        LOGGER.info("Getting AlertRules by owner");
+        ruleList = RestServer.getPersister().get(AlertRule.class, AlertRule.OWNER, owner);
+      } else {
+        LOGGER.info("Getting all AlertRules");
+        ruleList = RestServer.getPersister().get(AlertRule.class);
+      }
+      result = gson.toJson(ruleList);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+
+  @Override
+  public Representation deleteHandler() {
+    String result = null;
+
+    try {
+      Long id = getParameterAsLong("id");
+      if (id == null) {
+        throw new IllegalArgumentException("Missing id for deleting AlertRule");
+      }
+      LOGGER.info("Deleting AlertRule...");
+      AlertRule rule = RestServer.getPersister().getByPrimaryId(AlertRule.class, id);
+      if (rule == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No AlertRule with that id was found");
+      }
+      RestServer.getPersister().remove(rule);
+      RestServer.getAlertEngine().removeRule(id);
+      result = "OK";
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+
+  @Override
+  public Representation postPutHandler(String json) {
+    String result = null;
+
+    try {
+      if (this.getReference().getSegments().size() != 1) {
+        throw new IllegalArgumentException(
+            "We only support Post/Put in the base url: /alertrule (no additional segments /{id} or /owner/{owner})");
+      }
+
+      JsonParser jsonParser = new JsonParser();
+      JsonElement jsonElement = jsonParser.parse(json);
+
+      AlertRule rule = GsonUtil.getGsonBuilder().create().fromJson(jsonElement, AlertRule.class);
+      validate(rule);
+      rule.setCreated();
+      LOGGER.info("Persisting AlertRule...");
+      rule = RestServer.getPersister().save(rule);
+      RestServer.getAlertEngine().putRule(rule);
+      result = gson.toJson(rule);
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+
+  private void validate(AlertRule rule) {
+    if (rule.getOwner() == null) {
+      throw new IllegalArgumentException("Missing owner for persisting AlertRule");
+    }
+    if (rule.getMetric() == null || rule.getCondition() == null) {
+      throw new IllegalArgumentException("Missing metric or condition for persisting AlertRule");
+    }
+    if (rule.getWindowMinutes() < 0) {
+      throw new IllegalArgumentException("The windowMinutes of an AlertRule can't be negative");
+    }
+    if ((rule.getCondition() == AlertRule.Condition.RISE
+        || rule.getCondition() == AlertRule.Condition.DROP) && rule.getWindowMinutes() == 0) {
+      throw new IllegalArgumentException("RISE and DROP AlertRules need a windowMinutes");
+    }
+    if (rule.getWebhookUrl() != null) {
+      RestUtil.checkPublicHttpsUrl(rule.getWebhookUrl());
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Lists;
+import com.google.common.math.LongMath;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+import com.google.devpartners.homemonitor.stats.Completeness;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.DateUtil;
+
+/**
+ * Rest entry point to get the reporting completeness and the gaps of a
+ * Device, or of all the Devices of an owner, between two dates.
+ * 
+ * @author jtoledo@google.com
+ */
+public class CompletenessRest extends AbstractBaseResource {
+
+  private static final int MAX_DAYS = 366;
+
+  // Margin over the reporting interval, so that a late report still falls in
+  // its slot
+  private static final double SLOT_JITTER = 1.25;
+
+  /**
+   * Gets the completeness from the minute bitmaps of the daily rollups,
+   * without loading reports.
+   * 
+   * slotMinutes defaults to the reporting interval of the Device plus a
+   * margin for late reports, and gapMinutes to the time after which the
+   * Device is considered offline. Days whose rollup has no minute bitmap are
+   * unknown and left out of the completeness.
+   * 
+   * @return for a Device, a JSON object with the completeness of the range
+   *         and of every day and the gaps. For an owner, a JSON array with the
+   *         completeness and a summary of the gaps of every Device
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      Long deviceId = getParameterAsLong("deviceId");
+      String owner = getParameter("owner");
+      Date dateStart = getParameterAsDate("dateStart");
+      Date dateEnd = getParameterAsDate("dateEnd");
+      if ((deviceId == null && owner == null) || dateStart == null) {
+        throw new IllegalArgumentException(
+            "Missing deviceId or owner, or dateStart for getting the completeness");
+      }
+      // Minutes still to come are not missing
+      Date now = new Date();
+      if (dateEnd == null || dateEnd.after(now)) {
+        dateEnd = now;
+      }
+      if (dateEnd.before(dateStart) || DateUtil.startOfDayUtc(dateStart).plusDays(MAX_DAYS)
+          .toDate().before(dateEnd)) {
+        throw new IllegalArgumentException(
+            "The dates must be in order and at most " + MAX_DAYS + " days apart");
+      }
+
+      List<Device> devices;
+      if (deviceId != null) {
+        Device device =
+            RestServer.getDeviceRegistry().getDevice(RestServer.getPersister(), deviceId);
+        if (device == null) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+              "No Device with that id was found");
+        }
+        devices = Collections.singletonList(device);
+      } else {
+        devices = RestServer.getDeviceRegistry().getDevices(RestServer.getPersister(), owner,
+            Collections.<Device.type>emptyList());
+        if (devices.isEmpty()) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+              "No Device with that owner was found");
+        }
+      }
+
+      List<Map<String, Object>> completenesses = Lists.newArrayList();
+      for (Device device : devices) {
+        List<DeviceDailyRollup> rollups = RestServer.getPersister().get(DeviceDailyRollup.class,
+            DeviceDailyRollup.DEVICE_ID, device.getId(), DeviceDailyRollup.DAY,
+            DateUtil.startOfDayUtc(dateStart).toDate(), dateEnd);
+        Completeness completeness = new Completeness(rollups, dateStart, dateEnd);
+
+        int slotMinutes = getSlotMinutes(device.getId());
+        int gapMinutes = getGapMinutes(slotMinutes);
+        Map<String, Object> map = deviceId != null
+            ? completeness.toMap(slotMinutes, gapMinutes)
+            : completeness.toSummaryMap(slotMinutes, gapMinutes);
+        map.put("deviceId", device.getId());
+        completenesses.add(map);
+      }
+      result = gson.toJson(deviceId != null ? completenesses.get(0) : completenesses);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+
+  private int getSlotMinutes(Long deviceId) {
+    Integer slotMinutes = getParameterAsInteger("slotMinutes");
+    if (slotMinutes != null && slotMinutes > 0) {
+      return slotMinutes;
+    }
+    DeviceHeartbeat heartbeat =
+        RestServer.getHeartbeatTable().getHeartbeat(RestServer.getPersister(), deviceId);
+    if (heartbeat == null || heartbeat.getIntervalMillis() == null) {
+      return 1;
+    }
+    long slotMillis = Math.round(heartbeat.getIntervalMillis() * SLOT_JITTER);
+    return (int) Math.max(1,
+        LongMath.divide(slotMillis, TimeUnit.MINUTES.toMillis(1), RoundingMode.CEILING));
+  }
+
+  private int getGapMinutes(int slotMinutes) {
+    Integer gapMinutes = getParameterAsInteger("gapMinutes");
+    if (gapMinutes != null && gapMinutes > 0) {
+      return gapMinutes;
+    }
+    return Math.max(slotMinutes * ConfigUtil.getInt(HeartbeatTable.MISSED_INTERVALS, 3),
+        ConfigUtil.getInt(HeartbeatTable.MIN_STALE_MINUTES, 10));
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.base.Splitter;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.series.DerivedMetric;
+import com.google.devpartners.homemonitor.stats.DailyRollup;
+import com.google.devpartners.homemonitor.util.DateUtil;
+
+/**
+ * Rest entry point to get the percentiles of the readings of a Device between
+ * two dates, from its daily rollups.
+ * 
+ * @author jtoledo@google.com
+ */
+public class DevicePercentileRest extends AbstractBaseResource {
+
+  private static final double[] DEFAULT_PERCENTILES = {50, 95, 99};
+
+  private static final int MAX_DAYS = 366;
+
+  /**
+   * Gets the percentiles merging the quantile sketches of every day, so the
+   * cost depends on the number of days and not on the number of reports.
+   * 
+   * The days are whole UTC days, the ones of dateStart and of dateEnd are
+   * included. metrics=dewPoint,heatIndex,absoluteHumidity adds the mean of the
+   * {@link DerivedMetric}s, precomputed in the rollups.
+   * 
+   * @return a JSON object with the count and, for the temperature and the
+   *         humidity, the mean, minimum, maximum and the percentiles, and the
+   *         mean of the derived metrics
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      Long deviceId = getParameterAsLong("deviceId");
+      Date dateStart = getParameterAsDate("dateStart");
+      Date dateEnd = getParameterAsDate("dateEnd");
+      if (deviceId == null || dateStart == null || dateEnd == null) {
+        throw new IllegalArgumentException(
+            "Missing deviceId, dateStart or dateEnd for getting the percentiles");
+      }
+      Date dayStart = DateUtil.startOfDayUtc(dateStart).toDate();
+      Date dayEnd = DateUtil.startOfDayUtc(dateEnd).toDate();
+      if (dayEnd.before(dayStart)
+          || DateUtil.startOfDayUtc(dateStart).plusDays(MAX_DAYS).toDate().before(dayEnd)) {
+        throw new IllegalArgumentException(
+            "The dates must be in order and at most " + MAX_DAYS + " days apart");
+      }
+      if (RestServer.getDeviceRegistry().getDevice(RestServer.getPersister(), deviceId) == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device with that id was found");
+      }
+
+      List<DeviceDailyRollup> rollups = RestServer.getPersister().get(DeviceDailyRollup.class,
+          DeviceDailyRollup.DEVICE_ID, deviceId, DeviceDailyRollup.DAY, dayStart, dayEnd);
+      DailyRollup rollup = new DailyRollup(deviceId, dayStart);
+      for (DeviceDailyRollup dailyRollup : rollups) {
+        rollup.merge(dailyRollup);
+      }
+
+      Map<String, Object> map =
+          rollup.toMap(getPercentiles(), DerivedMetric.parse(getParameter("metrics")));
+      map.put("deviceId", deviceId);
+      map.put("days", rollups.size());
+      result = gson.toJson(map);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+
+  private double[] getPercentiles() {
+    String value = getParameter("percentiles");
+    if (value == null) {
+      return DEFAULT_PERCENTILES;
+    }
+    List<String> values = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(value);
+    double[] percentiles = new double[values.size()];
+    for (int i = 0; i < percentiles.length; i++) {
+      percentiles[i] = Double.parseDouble(values.get(i));
+      if (percentiles[i] < 0 || percentiles[i] > 100) {
+        throw new IllegalArgumentException("The percentiles must be between 0 and 100");
+      }
+    }
+    return percentiles;
+  }
+}
@@ -15,19 +15,24 @@
 package com.google.devpartners.homemonitor.rest;
 
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
 
 import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ResourceException;
 
+import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.devpartners.homemonitor.RestServer;
 import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.series.ChartTiles;
 import com.google.devpartners.homemonitor.util.GsonUtil;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.googlecode.objectify.Key;
 
 /**
  * Rest entry point to get, create or update Devices.
@@ -38,7 +43,8 @@ public class DeviceRest extends AbstractBaseResource {
 
   /**
    * Gets a Device by PartnerId or a complete list of all the user's Devices if no PartnerId
-   * is provided.
+   * is provided. The Devices of an owner can be filtered by their types with
+   * {@code ?type=Temperature,Humidity}, only the Devices with all the types are returned.
    * 
    * @return a JSON array of {@link Device}s. If a Device ID is included in the request, the
    *         single Device will still be returned within an array.
@@ -62,8 +68,10 @@ public class DeviceRest extends AbstractBaseResource {
               "No Device with that id was found");
         }
       } else if (owner != null) {
+        // From the datastore with or without types, so both see the same Devices
         LOGGER.info("Getting Devices by owner");
-        deviceList = RestServer.getPersister().get(Device.class, Device.OWNER, owner);
+        deviceList = RestServer.getDeviceRegistry().getStoredDevices(RestServer.getPersister(),
+            owner, getTypes());
         if (deviceList.size() == 0) {
           throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
               "No Device with that owner was found");
@@ -80,6 +88,24 @@ public class DeviceRest extends AbstractBaseResource {
     return createJsonResult(result);
   }
 
+  /**
+   * @return the types of the comma separated type parameter
+   */
+  private List<Device.type> getTypes() {
+    List<Device.type> types = Lists.newArrayList();
+    String typeParameter = getParameter("type");
+    if (typeParameter != null) {
+      for (String type : Splitter.on(',').trimResults().omitEmptyStrings().split(typeParameter)) {
+        try {
+          types.add(Device.type.valueOf(type));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Unknown Device type: " + type);
+        }
+      }
+    }
+    return types;
+  }
+
   @Override
   public Representation deleteHandler() {
     String result = null;
@@ -95,6 +121,12 @@ public class DeviceRest extends AbstractBaseResource {
               "No Device with that id was found");  
         }
         RestServer.getPersister().remove(device);
+        RestServer.getRecentWindowStore().remove(id);
+        RestServer.getDeviceRegistry().removeDevice(id);
+        RestServer.getHeartbeatTable().remove(id);
+        RestServer.getPersister().removeKeys(
+            Collections.singletonList(Key.create(DeviceHeartbeat.class, id)));
+        ChartTiles.removeAll(RestServer.getPersister(), id);
         result = "OK";
 
       } else {
@@ -131,6 +163,9 @@ public class DeviceRest extends AbstractBaseResource {
         }
         LOGGER.info("Persisting a List of Devices...");
         RestServer.getPersister().save(deviceList);
+        for (Device device : deviceList) {
+          RestServer.getDeviceRegistry().putDevice(device);
+        }
         result = "OK";
 
       } else {
@@ -138,8 +173,9 @@ public class DeviceRest extends AbstractBaseResource {
             GsonUtil.getGsonBuilder().create().fromJson(jsonElement, Device.class);
         device.setCreated();
         LOGGER.info("Persisting Device...");
-        device = RestServer.getPersister().save(device);
+        RestServer.getPersister().save(device);
         result = gson.toJson(device);
+        RestServer.getDeviceRegistry().putDevice(device);
       }
 
     } catch (Exception exception) {
@@ -0,0 +1,65 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.stats.DeviceStatistics;
+
+/**
+ * Rest entry point to get the moving statistics of the readings of a Device.
+ * 
+ * @author jtoledo@google.com
+ */
+public class DeviceStatisticsRest extends AbstractBaseResource {
+
+  /**
+   * Gets the statistics of the Device, computed from the hot tier.
+   * 
+   * @return a JSON object with the EWMA and the count, mean, variance and
+   *         rate of change per hour of every window, for the temperature and
+   *         the humidity
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      Long deviceId = getParameterAsLong("deviceId");
+      if (deviceId == null) {
+        throw new IllegalArgumentException("Missing deviceId for getting the statistics");
+      }
+      // A Device created since the last refresh of the registry is only stored
+      if (RestServer.getDeviceRegistry().getDevice(RestServer.getPersister(), deviceId) == null
+          && RestServer.getPersister().getByPrimaryId(Device.class, deviceId) == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device with that id was found");
+      }
+
+      long now = System.currentTimeMillis();
+      DeviceStatistics statistics =
+          RestServer.getStatisticsStore().get(RestServer.getPersister(), deviceId, now);
+      result = gson.toJson(statistics.toMap(now));
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+}
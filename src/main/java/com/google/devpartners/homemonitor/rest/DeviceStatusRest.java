@@ -0,0 +1,98 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+
+/**
+ * Rest entry point to get the status of the Devices of an owner.
+ * 
+ * @author jtoledo@google.com
+ */
+public class DeviceStatusRest extends AbstractBaseResource {
+
+  /**
+   * Gets the status of all the Devices of the owner from memory, without
+   * querying their reports.
+   * 
+   * @return a JSON array with the last seen date, last reading, reporting
+   *         interval and whether it is online for every Device
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      String owner = getParameter("owner");
+      if (owner == null) {
+        throw new IllegalArgumentException("Missing owner for getting the status of Devices");
+      }
+
+      HeartbeatTable heartbeatTable = RestServer.getHeartbeatTable();
+      long now = System.currentTimeMillis();
+      List<Device> devices = RestServer.getDeviceRegistry().getDevices(
+          RestServer.getPersister(), owner, Collections.<Device.type>emptyList());
+      List<Long> deviceIds = Lists.newArrayList();
+      for (Device device : devices) {
+        deviceIds.add(device.getId());
+      }
+      Map<Long, DeviceHeartbeat> heartbeats =
+          heartbeatTable.getHeartbeats(RestServer.getPersister(), deviceIds);
+      List<Map<String, Object>> statuses = Lists.newArrayList();
+      for (Device device : devices) {
+        DeviceHeartbeat heartbeat = heartbeats.get(device.getId());
+
+        Map<String, Object> status = Maps.newLinkedHashMap();
+        status.put("deviceId", device.getId());
+        status.put("description", device.getDescription());
+        status.put("location", device.getLocation());
+        status.put("online", !heartbeatTable.isStale(heartbeat, now));
+        if (heartbeat != null) {
+          status.put("lastSeen", heartbeat.getLastSeen());
+          status.put("temperature", heartbeat.getLastTemperature());
+          status.put("humidity", heartbeat.getLastHumidity());
+          if (heartbeat.getIntervalMillis() != null) {
+            status.put("intervalSeconds",
+                TimeUnit.MILLISECONDS.toSeconds(heartbeat.getIntervalMillis()));
+          }
+        }
+        statuses.add(status);
+      }
+      if (statuses.isEmpty()) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device with that owner was found");
+      }
+      result = gson.toJson(statuses);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+}
@@ -14,22 +14,39 @@
 
 package com.google.devpartners.homemonitor.rest;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.json.JSONException;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
 import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ResourceException;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.ingest.DuplicateFilter;
+import com.google.devpartners.homemonitor.ingest.ReportSpool;
 import com.google.devpartners.homemonitor.model.DeviceReport;
 import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
-import com.google.devpartners.homemonitor.util.DateUtil;
+import com.google.devpartners.homemonitor.series.ChartTiles;
+import com.google.devpartners.homemonitor.series.DerivedMetric;
+import com.google.devpartners.homemonitor.series.SampleArchiveCodec;
+import com.google.devpartners.homemonitor.series.SampleSeries;
+import com.google.devpartners.homemonitor.series.SeriesJsonWriter;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
 import com.google.devpartners.homemonitor.util.GsonUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 /**
@@ -39,83 +56,175 @@ import com.google.gson.JsonParser;
  */
 public class DeviceTemperatureHumidityReportRest extends AbstractBaseResource {
 
+  // format=gorilla returns the series compressed with the GorillaSeriesCodec
+  public static final String FORMAT_GORILLA = "gorilla";
+
+  public static final String PROJECTION_ENABLED = "homemonitor.projection.enabled";
+
+  private static final Status TOO_MANY_REQUESTS = new Status(429);
+
+  private static final RequestCoalescer<byte[]> COALESCER = new RequestCoalescer<byte[]>();
+
   /**
    * Gets a PageSpeedReport by Id, URL or a complete list
    * of all PageSpeedReports
    * 
    * @return a JSON array of {@link DeviceReport}s. If a PageSpeedReport ID is included in the request,
-   * the single PageSpeedReport will still be returned within an array.
+   * the single PageSpeedReport will still be returned within an array. With format=gorilla the
+   * series is returned as a binary {@link SampleArchiveCodec} blob instead.
+   * metrics=dewPoint,heatIndex,absoluteHumidity adds the {@link DerivedMetric}s
+   * to the reports, or as columns to the graph.
    */
   @Override
   public Representation getHandler() {
-    String result = null;
-
     try {
-      Long deviceId = getParameterAsLong("deviceId");
-      Date dateStart = getParameterAsDate("dateStart");
-      Date dateEnd = getParameterAsDate("dateEnd");
-      Boolean isForGraph = getParameterAsBoolean("graph");
-      Integer limit = getParameterAsInteger("limit");
-      Integer numToSkip = getParameterAsInteger("numToSkip");
-
-      List<DeviceTemperatureHumidityReport> deviceReportList = Lists.newArrayList();
-      if (deviceId != null) {
-        LOGGER.info("Getting DeviceTemperatureHumidityReports by deviceId");
-        deviceReportList = RestServer.getPersister().get(
-            DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID, deviceId,
-            DeviceTemperatureHumidityReport.DATE, dateStart, dateEnd, numToSkip, limit);
-        if (deviceReportList.size() == 0) {
-          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No DeviceTemperatureHumidityReports with that deviceId were found");
+      final String format = getParameter("format");
+      final Long deviceId = getParameterAsLong("deviceId");
+      final Date dateStart = getParameterAsDate("dateStart");
+      final Date dateEnd = getParameterAsDate("dateEnd");
+      final Boolean isForGraph = getParameterAsBoolean("graph");
+      final Integer limit = getParameterAsInteger("limit");
+      final Integer numToSkip = getParameterAsInteger("numToSkip");
+      final List<DerivedMetric> metrics = DerivedMetric.parse(getParameter("metrics"));
+      final List<Long> deviceIds = getParameterAsLongList("deviceIds");
+      final Integer bucketMinutes = getParameterAsInteger("bucketMinutes");
+
+      // The key is built from the parsed values, so requests that only
+      // differ in how they are written share the computation
+      Map<String, Object> parameters = new HashMap<String, Object>();
+      parameters.put("format", format);
+      parameters.put("deviceId", deviceId);
+      parameters.put("dateStart", dateStart == null ? null : dateStart.getTime());
+      parameters.put("dateEnd", dateEnd == null ? null : dateEnd.getTime());
+      parameters.put("graph", isForGraph);
+      parameters.put("limit", limit);
+      parameters.put("numToSkip", numToSkip);
+      parameters.put("metrics", metrics);
+      parameters.put("deviceIds", deviceIds);
+      parameters.put("bucketMinutes", bucketMinutes);
+
+      // Identical concurrent requests wait for the first one and share its bytes
+      byte[] result = COALESCER.execute(getRequestKey(parameters), new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          if (deviceIds.size() > 0) {
+            return getByDevices(deviceIds, dateStart, dateEnd, limit, bucketMinutes, isForGraph,
+                metrics).getBytes(Charsets.UTF_8);
+          }
+          return getSerializedResult(format, deviceId, dateStart, dateEnd, isForGraph, limit,
+              numToSkip, metrics);
         }
+      });
 
-      } else {
-        LOGGER.info("Getting all PageSpeedReport");
-        deviceReportList = RestServer.getPersister().get(DeviceTemperatureHumidityReport.class);
+      addReadOnlyHeaders();
+      if (FORMAT_GORILLA.equals(format)) {
+        return createByteArrayResult(result, MediaType.APPLICATION_OCTET_STREAM);
       }
+      Representation representation = createByteArrayResult(result, MediaType.APPLICATION_JSON);
+      representation.setCharacterSet(CharacterSet.UTF_8);
+      return representation;
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+  }
 
-      if (isForGraph) {
-        // Transform JSON to the google-chart format
-        JSONObject data = new JSONObject();
-        JSONArray columns = new JSONArray();
-        columns.put(new JSONObject("{label: 'Date', type: 'date'}"));
-        columns.put(new JSONObject("{label: 'Humidity', type: 'number'}"));
-        columns.put(new JSONObject("{label: 'Temperature', type: 'number'}"));
-        data.put("cols", columns);
-
-        JSONArray rows = new JSONArray();
-        for (DeviceTemperatureHumidityReport deviceReport : deviceReportList ) {
-          JSONArray cArray = new JSONArray();
-
-          JSONObject date = new JSONObject();
-          date.put("v", DateUtil.getGoogleChartsDateTime(deviceReport.getDate()));
-          cArray.put(date);
-
-          JSONObject humidity = new JSONObject();
-          humidity.put("v", deviceReport.getHumidity());
-          cArray.put(humidity);
-         
-          JSONObject temperature = new JSONObject();
-          temperature.put("v", deviceReport.getTemperature());
-          cArray.put(temperature);
-
-          JSONObject row = new JSONObject();
-          row.put("c", cArray);
-
-          rows.put(row);
+  /**
+   * Loads the reports of the request and serializes them in the requested
+   * format.
+   */
+  private byte[] getSerializedResult(String format, Long deviceId, Date dateStart, Date dateEnd,
+      Boolean isForGraph, Integer limit, Integer numToSkip, List<DerivedMetric> metrics)
+      throws Exception {
+    SampleSeries series = null;
+    if (deviceId != null) {
+      // Recent windows are served from the hot tier, without loading entities
+      series = RestServer.getRecentWindowStore().get(RestServer.getPersister(), deviceId,
+          dateStart, dateEnd, numToSkip, limit);
+      if (series != null) {
+        LOGGER.info("Getting DeviceTemperatureHumidityReports by deviceId from the hot tier");
+        if (series.size() == 0) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No DeviceTemperatureHumidityReports with that deviceId were found");
         }
-        data.put("rows", rows);
+      }
+    }
 
-        result = data.toString();
+    List<DeviceTemperatureHumidityReport> deviceReportList = Lists.newArrayList();
+    if (series != null) {
+      // Already loaded from the hot tier
+    } else if (deviceId != null) {
+      if ((isForGraph || FORMAT_GORILLA.equals(format))
+          && ConfigUtil.getBoolean(PROJECTION_ENABLED, false)) {
+        // Charts only need the values, read them from the index
+        LOGGER.info("Getting DeviceTemperatureHumidityReports by deviceId with a projection");
+        deviceReportList = RestServer.getPersister().getProjection(
+            DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID, deviceId,
+            DeviceTemperatureHumidityReport.DATE, dateStart, dateEnd, numToSkip, limit,
+            DeviceTemperatureHumidityReport.DATE, DeviceTemperatureHumidityReport.TEMPERATURE,
+            DeviceTemperatureHumidityReport.HUMIDITY);
       } else {
-        result = gson.toJson(deviceReportList);  
+        LOGGER.info("Getting DeviceTemperatureHumidityReports by deviceId");
+        deviceReportList = RestServer.getPersister().get(
+            DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID, deviceId,
+            DeviceTemperatureHumidityReport.DATE, dateStart, dateEnd, numToSkip, limit);
+      }
+      if (deviceReportList.size() == 0) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No DeviceTemperatureHumidityReports with that deviceId were found");
       }
 
-    } catch (Exception exception) {
-      return handleException(exception);
+    } else {
+      LOGGER.info("Getting all PageSpeedReport");
+      deviceReportList = RestServer.getPersister().get(DeviceTemperatureHumidityReport.class);
     }
 
-    addReadOnlyHeaders();
-    return createJsonResult(result);
+    String result = null;
+    if (FORMAT_GORILLA.equals(format)) {
+      // Compressed binary series, same encoding as the archives
+      if (series == null) {
+        series = SampleSeries.fromReports(deviceId, deviceReportList);
+      }
+      return SampleArchiveCodec.encode(series);
+
+    } else if (isForGraph) {
+      // Transform JSON to the google-chart format
+      if (series == null) {
+        series = SampleSeries.fromReports(deviceId, deviceReportList);
+      }
+      result = SeriesJsonWriter.toGoogleChart(series, metrics).toString();
+    } else if (series != null) {
+      result = SeriesJsonWriter.toReportsJson(series, metrics);
+    } else if (!metrics.isEmpty()) {
+      // The derived metrics are added while writing, same output otherwise
+      result = SeriesJsonWriter.toReportsJson(deviceReportList, metrics);
+    } else {
+      result = gson.toJson(deviceReportList);  
+    }
+    return result.getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Gets the reports of several Devices in one call, the Devices are queried
+   * concurrently and merged by date. With bucketMinutes, or graph, they are
+   * returned as one google-chart table with the dates aligned to shared buckets.
+   */
+  private String getByDevices(List<Long> deviceIds, Date dateStart, Date dateEnd, Integer limit,
+      Integer bucketMinutes, boolean isForGraph, List<DerivedMetric> metrics)
+      throws JSONException, IOException {
+    LOGGER.info("Getting DeviceTemperatureHumidityReports by deviceIds");
+    List<DeviceTemperatureHumidityReport> deviceReportList = RestServer.getPersister()
+        .getByDevices(DeviceTemperatureHumidityReport.class, deviceIds, dateStart, dateEnd, limit);
+    if (deviceReportList.size() == 0) {
+      throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No DeviceTemperatureHumidityReports with those deviceIds were found");
+    }
+
+    if (isForGraph || (bucketMinutes != null && bucketMinutes > 0)) {
+      long bucketMillis = bucketMinutes == null ? 0 : TimeUnit.MINUTES.toMillis(bucketMinutes);
+      return SeriesJsonWriter.toGoogleChart(deviceIds, deviceReportList, bucketMillis, metrics)
+          .toString();
+    } else if (!metrics.isEmpty()) {
+      return SeriesJsonWriter.toReportsJson(deviceReportList, metrics);
+    }
+    return gson.toJson(deviceReportList);
   }
 
   @Override
@@ -133,9 +242,70 @@ public class DeviceTemperatureHumidityReportRest extends AbstractBaseResource {
 
       DeviceTemperatureHumidityReport deviceReport =
           GsonUtil.getGsonBuilder().create().fromJson(jsonElement, DeviceTemperatureHumidityReport.class);
-      LOGGER.info("Persisting DeviceTemperatureHumidityReport...");
-      deviceReport = RestServer.getPersister().save(deviceReport);
-      result = gson.toJson(deviceReport);
+
+      // A Device stuck in a loop must not drive the writes of everybody
+      if (deviceReport.deviceId() != null) {
+        long wait = RestServer.getRateLimiter().tryAcquire(RestServer.getPersister(),
+            deviceReport.deviceId());
+        if (wait > 0) {
+          getResponse().setRetryAfter(new Date(System.currentTimeMillis() + wait));
+          throw new ResourceException(TOO_MANY_REQUESTS,
+              "Too many DeviceTemperatureHumidityReports from that deviceId");
+        }
+      }
+
+      // Devices retry on timeouts, the sequence or the date they sent identify the report
+      String keyType = null;
+      long key = 0;
+      JsonObject jsonObject = jsonElement.getAsJsonObject();
+      if (deviceReport.deviceId() != null) {
+        if (jsonObject.has(DuplicateFilter.SEQUENCE)) {
+          keyType = DuplicateFilter.SEQUENCE;
+          key = jsonObject.get(DuplicateFilter.SEQUENCE).getAsLong();
+        } else if (jsonObject.has(DeviceReport.DATE)) {
+          keyType = DuplicateFilter.DATE;
+          key = deviceReport.getDate().getTime();
+        }
+      }
+      DuplicateFilter duplicateFilter = RestServer.getDuplicateFilter();
+      if (keyType != null && !duplicateFilter.accept(deviceReport.deviceId(), keyType, key)) {
+        LOGGER.info("Ignoring a duplicate DeviceTemperatureHumidityReport of Device "
+            + deviceReport.deviceId());
+        Metrics.increment("ingest.duplicate");
+        addHeaders();
+        return createJsonResult(gson.toJson(deviceReport));
+      }
+
+      // While the datastore is failing the report goes to the spool and the
+      // Device gets an answer right away, it is saved when the spool drains
+      ReportSpool reportSpool = RestServer.getReportSpool();
+      boolean spooled = reportSpool.isBypassingDatastore();
+      try {
+        if (!spooled) {
+          result = save(deviceReport, reportSpool);
+          spooled = result == null;
+        }
+        if (spooled) {
+          reportSpool.spool(deviceReport);
+          result = gson.toJson(deviceReport);
+        }
+      } catch (RuntimeException exception) {
+        if (keyType != null) {
+          duplicateFilter.forget(deviceReport.deviceId(), keyType, key);
+        }
+        throw exception;
+      }
+      if (spooled) {
+        getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+      } else {
+        RestServer.getRecentWindowStore().add(deviceReport);
+        // A report dated by the Device may belong to a closed tile
+        ChartTiles.invalidateLate(RestServer.getPersister(),
+            Collections.singletonList(deviceReport), System.currentTimeMillis());
+      }
+      RestServer.getHeartbeatTable().record(RestServer.getPersister(), deviceReport);
+      RestServer.getAlertEngine().evaluate(RestServer.getPersister(), deviceReport);
+      RestServer.getDailyRollupStore().add(deviceReport);
 
     } catch (Exception exception) {
       return handleException(exception);
@@ -143,4 +313,29 @@ public class DeviceTemperatureHumidityReportRest extends AbstractBaseResource {
     addHeaders();
     return createJsonResult(result);
   }
+
+  /**
+   * Saves the report, recording the outcome in the circuit breaker of the
+   * spool.
+   *
+   * @return the report as JSON, null if it could not be saved
+   */
+  private String save(DeviceTemperatureHumidityReport deviceReport, ReportSpool reportSpool) {
+    String json;
+    long start = System.currentTimeMillis();
+    try {
+      // The datastore assigns a scattered id, sequential ids would make every
+      // report land on the same tablet
+      LOGGER.info("Persisting DeviceTemperatureHumidityReport...");
+      RestServer.getPersister().save(deviceReport);
+      json = gson.toJson(deviceReport);
+    } catch (RuntimeException exception) {
+      LOGGER.warning("Could not save the DeviceTemperatureHumidityReport, spooling it: "
+          + exception.getMessage());
+      reportSpool.onFailed();
+      return null;
+    }
+    reportSpool.onSaved(System.currentTimeMillis() - start);
+    return json;
+  }
 }
@@ -0,0 +1,127 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.CacheDirective;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.series.ChartTiles;
+import com.google.devpartners.homemonitor.series.DerivedMetric;
+
+/**
+ * Rest entry point to get the history of a Device as google-chart tiles, so
+ * a zoomable graph only loads the tiles of the visible window at the
+ * resolution of its level.
+ * 
+ * @author jtoledo@google.com
+ */
+public class DeviceTileRest extends AbstractBaseResource {
+
+  private static final int DEFAULT_MAX_TILES = 4;
+
+  // Closed tiles only change when old reports are imported, which invalidates
+  // the stored tile, so the caches keep them for a bounded time
+  private static final int CLOSED_MAX_AGE = (int) TimeUnit.DAYS.toSeconds(1);
+
+  /**
+   * With level and index, /devicereport/{deviceId}/tile/{level}/{index}, gets
+   * the google-chart DataTable of the tile, with metrics for the
+   * {@link DerivedMetric}s. The tiles of closed intervals are cached for a day.
+   * 
+   * Without them, /devicereport/{deviceId}/tile, gets the finest level that
+   * covers dateStart to dateEnd (default now) with at most maxTiles tiles,
+   * and its tiles.
+   * 
+   * @return the DataTable JSON object of the tile, or the level and its tiles
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+    boolean closed = false;
+    long bucketMillis = 0;
+
+    try {
+      Long deviceId = getParameterAsLong("deviceId");
+      if (deviceId == null) {
+        throw new IllegalArgumentException("Missing deviceId for getting the tiles");
+      }
+      if (RestServer.getDeviceRegistry().getDevice(RestServer.getPersister(), deviceId) == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device with that id was found");
+      }
+      long now = System.currentTimeMillis();
+
+      if (getParameter("level") == null) {
+        Date dateStart = getParameterAsDate("dateStart");
+        Date dateEnd = getParameterAsDate("dateEnd");
+        if (dateStart == null) {
+          throw new IllegalArgumentException("Missing dateStart for getting the tiles");
+        }
+        if (dateEnd == null) {
+          dateEnd = new Date(now);
+        }
+        if (dateEnd.before(dateStart)) {
+          throw new IllegalArgumentException("The dates must be in order");
+        }
+        Integer maxTiles = getParameterAsInteger("maxTiles");
+        int level = ChartTiles.getLevel(dateStart, dateEnd,
+            maxTiles == null || maxTiles < 1 ? DEFAULT_MAX_TILES : maxTiles);
+
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("deviceId", deviceId);
+        map.put("level", level);
+        map.put("bucketMinutes",
+            TimeUnit.MILLISECONDS.toMinutes(ChartTiles.getBucketMillis(level)));
+        map.put("tiles", ChartTiles.getTiles(level, dateStart, dateEnd, now));
+        result = gson.toJson(map);
+
+      } else {
+        int level = Integer.parseInt(getParameter("level"));
+        long index = Long.parseLong(getParameter("index"));
+        if (ChartTiles.getStart(level, index).getTime() > now) {
+          throw new IllegalArgumentException("The tile starts in the future");
+        }
+        List<DerivedMetric> metrics = DerivedMetric.parse(getParameter("metrics"));
+        result = ChartTiles.getChart(RestServer.getPersister(), deviceId, level, index, metrics);
+        closed = ChartTiles.isClosed(level, index, now);
+        bucketMillis = ChartTiles.getBucketMillis(level);
+      }
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    if (closed) {
+      getResponse().getCacheDirectives().clear();
+      getResponse().getCacheDirectives().add(CacheDirective.maxAge(CLOSED_MAX_AGE));
+      getResponse().getCacheDirectives().add(CacheDirective.publicInfo());
+    } else if (bucketMillis > 0) {
+      // An open tile gets a new bucket every bucketMillis
+      getResponse().getCacheDirectives().clear();
+      getResponse().getCacheDirectives().add(CacheDirective.maxAge(
+          (int) Math.min(MAX_AGE, TimeUnit.MILLISECONDS.toSeconds(bucketMillis))));
+      getResponse().getCacheDirectives().add(CacheDirective.publicInfo());
+    }
+    return createJsonResult(result);
+  }
+}
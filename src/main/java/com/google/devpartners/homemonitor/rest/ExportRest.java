@@ -0,0 +1,218 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Encoding;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.engine.application.EncodeRepresentation;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.ReportPage;
+import com.google.devpartners.homemonitor.series.DerivedMetric;
+import com.google.devpartners.homemonitor.series.ReportExportWriter;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Rest entry point to export the history of a Device, or of all the Devices
+ * of an owner, as CSV or NDJSON.
+ * 
+ * @author jtoledo@google.com
+ */
+public class ExportRest extends AbstractBaseResource {
+
+  private static final MediaType APPLICATION_NDJSON = new MediaType("application/x-ndjson");
+
+  private static final int PAGE_SIZE = 500;
+
+  // A response is buffered whole, at most 32 MB, and must end within 60
+  // seconds. The export stops after the page that reaches any of the limits.
+  private static final int MAX_REPORTS = 100000;
+  private static final long MAX_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private static final String CURSOR_HEADER = "X-Export-Cursor";
+
+  /**
+   * Exports the reports, oldest first and one Device after the other, while
+   * they are scanned with a cursor from both storage tiers. The response is
+   * compressed with gzip when the client accepts it.
+   * 
+   * A response holds about {@value #MAX_REPORTS} reports, or the reports
+   * scanned in 30 seconds. When there are more, the response has an
+   * X-Export-Cursor header, and the export continues by repeating the request
+   * with that cursor parameter. The pages can be concatenated, only the first
+   * one has the CSV header row.
+   * 
+   * Parameters: deviceId or owner, dateStart and dateEnd (optional), format
+   * csv (default) or ndjson, metrics for the {@link DerivedMetric}s, and the
+   * cursor of the previous page.
+   * 
+   * @return the reports as CSV, with a header row, or as one JSON object per
+   *         line
+   */
+  @Override
+  public Representation getHandler() {
+    try {
+      Long deviceId = getParameterAsLong("deviceId");
+      String owner = getParameter("owner");
+      Date dateStart = getParameterAsDate("dateStart");
+      Date dateEnd = getParameterAsDate("dateEnd");
+      String format =
+          getParameter("format") == null ? ReportExportWriter.CSV : getParameter("format");
+      List<DerivedMetric> metrics = DerivedMetric.parse(getParameter("metrics"));
+      String cursor = getParameter("cursor");
+      if (deviceId == null && owner == null) {
+        throw new IllegalArgumentException("Missing deviceId or owner for the export");
+      }
+      if (!ReportExportWriter.CSV.equals(format) && !ReportExportWriter.NDJSON.equals(format)) {
+        throw new IllegalArgumentException("Unknown export format: " + format);
+      }
+
+      List<Device> devices;
+      if (deviceId != null) {
+        Device device =
+            RestServer.getDeviceRegistry().getDevice(RestServer.getPersister(), deviceId);
+        if (device == null) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+              "No Device with that id was found");
+        }
+        devices = Collections.singletonList(device);
+      } else {
+        devices = Lists.newArrayList(RestServer.getDeviceRegistry().getDevices(
+            RestServer.getPersister(), owner, Collections.<Device.type>emptyList()));
+        if (devices.isEmpty()) {
+          throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+              "No Device with that owner was found");
+        }
+        // The cursor resumes by Device id
+        Collections.sort(devices, new Comparator<Device>() {
+          @Override
+          public int compare(Device device1, Device device2) {
+            return device1.getId().compareTo(device2.getId());
+          }
+        });
+      }
+
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      String nextCursor =
+          export(outputStream, devices, dateStart, dateEnd, format, metrics, cursor);
+
+      boolean csv = ReportExportWriter.CSV.equals(format);
+      Representation representation = new ByteArrayRepresentation(outputStream.toByteArray(),
+          csv ? MediaType.TEXT_CSV : APPLICATION_NDJSON);
+      representation.setCharacterSet(CharacterSet.UTF_8);
+
+      addHeaders();
+      getResponse().getAccessControlExposeHeaders().add(CURSOR_HEADER);
+      if (nextCursor != null) {
+        getResponse().getHeaders().add(CURSOR_HEADER, nextCursor);
+      }
+      addFileNameHeader((deviceId != null ? "device-" + deviceId : "owner-" + owner) + "."
+          + format, true);
+      if (acceptsGzip()) {
+        return new EncodeRepresentation(Encoding.GZIP, representation);
+      }
+      return representation;
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+  }
+
+  /**
+   * Writes the reports page by page, from the cursor until the export ends or
+   * the limits of the response are reached.
+   *
+   * @param cursor the cursor of the previous response, null for the first one
+   * @return the cursor of the next response, null if the export ended
+   */
+  private String export(ByteArrayOutputStream outputStream, List<Device> devices,
+      Date dateStart, Date dateEnd, String format, List<DerivedMetric> metrics, String cursor)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + MAX_MILLIS;
+    Long fromDeviceId = null;
+    String scanCursor = null;
+    if (cursor != null) {
+      int separator = cursor.indexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid export cursor: " + cursor);
+      }
+      try {
+        fromDeviceId = Long.valueOf(cursor.substring(0, separator));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid export cursor: " + cursor);
+      }
+      scanCursor = cursor.substring(separator + 1);
+    }
+
+    Writer writer = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+    ReportExportWriter exportWriter = new ReportExportWriter(writer, format, metrics);
+    long exported = 0;
+    try {
+      if (cursor == null) {
+        exportWriter.writeHeader();
+      }
+      for (Device device : devices) {
+        if (fromDeviceId != null && device.getId() < fromDeviceId) {
+          continue;
+        }
+        // A Device removed since the previous response restarts at the next one
+        String deviceCursor = device.getId().equals(fromDeviceId) ? scanCursor : null;
+        do {
+          if (exported >= MAX_REPORTS || System.currentTimeMillis() > deadline) {
+            writer.flush();
+            return device.getId() + ":" + (deviceCursor == null ? "" : deviceCursor);
+          }
+          ReportPage<DeviceTemperatureHumidityReport> page = RestServer.getPersister().scan(
+              DeviceTemperatureHumidityReport.class, device.getId(), dateStart, dateEnd,
+              deviceCursor == null || deviceCursor.isEmpty() ? null : deviceCursor, PAGE_SIZE);
+          for (DeviceTemperatureHumidityReport report : page.getReports()) {
+            exportWriter.write(report);
+          }
+          exported += page.getReports().size();
+          deviceCursor = page.getCursor();
+        } while (deviceCursor != null);
+      }
+      writer.flush();
+    } catch (RuntimeException exception) {
+      LOGGER.severe("Export failed after " + exported + " reports: "
+          + stackTraceToString(exception));
+      Metrics.increment("export.failed");
+      throw exception;
+    } finally {
+      Metrics.add("export.reports", exported);
+      LOGGER.info("Exported " + exported + " DeviceTemperatureHumidityReports");
+    }
+    return null;
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.ingest.ReportImportParser;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.series.ReportExportWriter;
+import com.google.devpartners.homemonitor.task.BulkImportTask;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Rest entry point to start the import of a CSV or NDJSON file of reports,
+ * and to follow its progress.
+ * 
+ * @author jtoledo@google.com
+ */
+public class ImportRest extends AbstractBaseResource {
+
+  /**
+   * Gets the progress of an import.
+   * 
+   * @return the number of reports imported and rejected, the rate of the
+   *         import, and the error if it failed
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      String job = getParameter("job");
+      if (job == null) {
+        throw new IllegalArgumentException("Missing job for getting the import");
+      }
+      JobCheckpoint checkpoint = RestServer.getPersister().getByPrimaryId(JobCheckpoint.class,
+          JobCheckpoint.createId(BulkImportTask.JOB, job));
+      if (checkpoint == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No import with that job was found");
+      }
+      result = gson.toJson(toMap(job, checkpoint));
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+
+  /**
+   * Starts an import, the body has the source as gs://bucket/object, the
+   * format csv or ndjson (default from the extension of the source), and the
+   * deviceIds map from the device ids of the file to the ids of the Devices.
+   * 
+   * @return the job of the import, to get its progress at /import/{job}
+   */
+  @Override
+  public Representation postPutHandler(String json) {
+    String result = null;
+
+    try {
+      if (this.getReference().getSegments().size() != 1) {
+        throw new IllegalArgumentException(
+            "We only support Post/Put in the base url: /import (no additional segments /{job})");
+      }
+
+      JsonElement jsonElement = new JsonParser().parse(json);
+      if (!jsonElement.isJsonObject()) {
+        throw new IllegalArgumentException("The import must be a JSON object");
+      }
+      JsonObject jsonObject = jsonElement.getAsJsonObject();
+      String source = jsonObject.has("source") ? jsonObject.get("source").getAsString() : null;
+      if (source == null || !source.startsWith("gs://") || source.indexOf('/', 5) < 0) {
+        throw new IllegalArgumentException("The source must be gs://bucket/object: " + source);
+      }
+      String format;
+      if (jsonObject.has("format")) {
+        format = jsonObject.get("format").getAsString();
+      } else {
+        format = source.endsWith("." + ReportExportWriter.NDJSON) ? ReportExportWriter.NDJSON
+            : ReportExportWriter.CSV;
+      }
+      Map<String, Long> deviceIds = Maps.newHashMap();
+      if (jsonObject.has("deviceIds")) {
+        for (Map.Entry<String, JsonElement> entry :
+            jsonObject.getAsJsonObject("deviceIds").entrySet()) {
+          deviceIds.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+      }
+      // Fails on an unknown format before anything is enqueued
+      new ReportImportParser(format, deviceIds);
+
+      String job = UUID.randomUUID().toString();
+      JobCheckpoint checkpoint = new JobCheckpoint(BulkImportTask.JOB, job);
+      RestServer.getPersister().save(checkpoint);
+      BulkImportTask.enqueue(new BulkImportTask(job, source, format, deviceIds));
+      LOGGER.info("Started import " + job + " of " + source);
+
+      getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+      result = gson.toJson(toMap(job, checkpoint));
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+
+  private static Map<String, Object> toMap(String job, JobCheckpoint checkpoint) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("job", job);
+    map.put("processed", checkpoint.getProcessed());
+    map.put("rejected", checkpoint.getRejected());
+    map.put("done", checkpoint.isDone());
+    map.put("failed", checkpoint.isFailed());
+    if (checkpoint.isFailed()) {
+      map.put("error", checkpoint.getError());
+    }
+    map.put("created", checkpoint.getCreated());
+    map.put("updated", checkpoint.getUpdated());
+    long seconds = Math.max(1,
+        (checkpoint.getUpdated().getTime() - checkpoint.getCreated().getTime()) / 1000);
+    map.put("reportsPerSecond", checkpoint.getProcessed() / seconds);
+    return map;
+  }
+}
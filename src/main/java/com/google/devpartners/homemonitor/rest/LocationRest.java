@@ -0,0 +1,195 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+
+/**
+ * Rest entry point to get the Devices of a location grouped by location,
+ * like all the rooms of a floor.
+ * 
+ * @author jtoledo@google.com
+ */
+public class LocationRest extends AbstractBaseResource {
+
+  // Reports are aggregated in the request, bounded to fit its time and memory
+  private static final int MAX_DAYS = 7;
+  private static final int MAX_REPORTS = 50000;
+
+  /**
+   * Gets the Devices of the owner in the location of the path parameter, or
+   * under it with {@code ?path=bldg1/floor2/*}, with their latest reading.
+   * With dateStart and dateEnd the reports of the Devices are aggregated by
+   * location, for at most {@value #MAX_DAYS} days and {@value #MAX_REPORTS}
+   * reports. The Devices are loaded one after another, each limited to what
+   * is left of the reports, so no more than that are ever loaded.
+   * 
+   * @return a JSON array with the location, its Devices and its aggregate for
+   *         every location, sorted by location
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      String path = getParameter("path");
+      if (path == null) {
+        throw new IllegalArgumentException("Missing path for getting the Devices of a location");
+      }
+      String owner = getParameter("owner");
+      if (owner == null) {
+        throw new IllegalArgumentException("Missing owner for getting the Devices of a location");
+      }
+      Date dateStart = getParameterAsDate("dateStart");
+      Date dateEnd = getParameterAsDate("dateEnd");
+
+      Map<String, List<Device>> devicesByLocation = RestServer.getDeviceRegistry()
+          .getDevicesByLocation(RestServer.getPersister(), owner, path);
+      Map<Long, String> deviceLocations = Maps.newHashMap();
+      for (Map.Entry<String, List<Device>> entry : devicesByLocation.entrySet()) {
+        for (Device device : entry.getValue()) {
+          deviceLocations.put(device.getId(), entry.getKey());
+        }
+      }
+      if (devicesByLocation.isEmpty()) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device in that location was found");
+      }
+
+      Map<String, Aggregate> aggregates = Maps.newHashMap();
+      if (dateStart != null && dateEnd != null) {
+        if (dateEnd.before(dateStart)
+            || dateEnd.getTime() - dateStart.getTime() > TimeUnit.DAYS.toMillis(MAX_DAYS)) {
+          throw new IllegalArgumentException(
+              "The dates must be in order and at most " + MAX_DAYS + " days apart");
+        }
+        LOGGER.info("Aggregating DeviceTemperatureHumidityReports by location");
+        int left = MAX_REPORTS;
+        for (Map.Entry<Long, String> entry : deviceLocations.entrySet()) {
+          List<DeviceTemperatureHumidityReport> reports = RestServer.getPersister().get(
+              DeviceTemperatureHumidityReport.class, DeviceReport.DEVICE_ID, entry.getKey(),
+              DeviceReport.DATE, dateStart, dateEnd, 0, left + 1);
+          // A partial aggregate would look right, so it is refused
+          if (reports.size() > left) {
+            throw new IllegalArgumentException("More than " + MAX_REPORTS
+                + " DeviceTemperatureHumidityReports in the location, use a shorter date range");
+          }
+          left -= reports.size();
+          Aggregate aggregate = aggregates.get(entry.getValue());
+          if (aggregate == null) {
+            aggregate = new Aggregate();
+            aggregates.put(entry.getValue(), aggregate);
+          }
+          for (DeviceTemperatureHumidityReport report : reports) {
+            aggregate.add(report);
+          }
+        }
+      }
+
+      HeartbeatTable heartbeatTable = RestServer.getHeartbeatTable();
+      long now = System.currentTimeMillis();
+      Map<Long, DeviceHeartbeat> heartbeats = heartbeatTable.getHeartbeats(
+          RestServer.getPersister(), deviceLocations.keySet());
+      List<Map<String, Object>> groups = Lists.newArrayList();
+      for (Map.Entry<String, List<Device>> entry : devicesByLocation.entrySet()) {
+        List<Map<String, Object>> devices = Lists.newArrayList();
+        for (Device device : entry.getValue()) {
+          DeviceHeartbeat heartbeat = heartbeats.get(device.getId());
+          Map<String, Object> latest = Maps.newLinkedHashMap();
+          latest.put("deviceId", device.getId());
+          latest.put("description", device.getDescription());
+          latest.put("online", !heartbeatTable.isStale(heartbeat, now));
+          if (heartbeat != null) {
+            latest.put("lastSeen", heartbeat.getLastSeen());
+            latest.put("temperature", heartbeat.getLastTemperature());
+            latest.put("humidity", heartbeat.getLastHumidity());
+          }
+          devices.add(latest);
+        }
+
+        Map<String, Object> group = Maps.newLinkedHashMap();
+        group.put("location", entry.getKey());
+        group.put("devices", devices);
+        Aggregate aggregate = aggregates.get(entry.getKey());
+        if (aggregate != null) {
+          group.put("aggregate", aggregate.toMap());
+        }
+        groups.add(group);
+      }
+      result = gson.toJson(groups);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+
+  /**
+   * Count, minimum, maximum and mean of the readings of a location.
+   */
+  private static class Aggregate {
+
+    private int reports;
+    private float minTemperature = Float.MAX_VALUE;
+    private float maxTemperature = -Float.MAX_VALUE;
+    private double sumTemperature;
+    private float minHumidity = Float.MAX_VALUE;
+    private float maxHumidity = -Float.MAX_VALUE;
+    private double sumHumidity;
+
+    void add(DeviceTemperatureHumidityReport report) {
+      reports++;
+      minTemperature = Math.min(minTemperature, report.getTemperature());
+      maxTemperature = Math.max(maxTemperature, report.getTemperature());
+      sumTemperature += report.getTemperature();
+      minHumidity = Math.min(minHumidity, report.getHumidity());
+      maxHumidity = Math.max(maxHumidity, report.getHumidity());
+      sumHumidity += report.getHumidity();
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> temperature = Maps.newLinkedHashMap();
+      temperature.put("min", minTemperature);
+      temperature.put("max", maxTemperature);
+      temperature.put("mean", sumTemperature / reports);
+      Map<String, Object> humidity = Maps.newLinkedHashMap();
+      humidity.put("min", minHumidity);
+      humidity.put("max", maxHumidity);
+      humidity.put("mean", sumHumidity / reports);
+
+      Map<String, Object> map = Maps.newLinkedHashMap();
+      map.put("reports", reports);
+      map.put("temperature", temperature);
+      map.put("humidity", humidity);
+      return map;
+    }
+  }
+}
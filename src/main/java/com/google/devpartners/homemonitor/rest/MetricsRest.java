@@ -0,0 +1,52 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Map;
+
+import org.restlet.representation.Representation;
+
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Rest entry point to get the metrics of the instance.
+ * 
+ * @author jtoledo@google.com
+ */
+public class MetricsRest extends AbstractBaseResource {
+
+  /**
+   * Gets the counters, gauges and tables of the instance that serves the
+   * request.
+   * 
+   * @return a JSON object with the counters, the gauges and the tables by name
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      Map<String, Object> metrics = Maps.newLinkedHashMap();
+      metrics.put("counters", Metrics.getCounters());
+      metrics.put("gauges", Metrics.getGauges());
+      metrics.put("tables", Metrics.getTables());
+      result = gson.toJson(metrics);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    return createJsonResult(result);
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Encoding;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.engine.application.EncodeRepresentation;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+import com.google.devpartners.homemonitor.series.SampleSeries;
+import com.google.devpartners.homemonitor.series.SeriesJsonWriter;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Rest entry point to get the dashboard of an owner in one call: the status,
+ * the last reading and a downsampled recent series of every Device.
+ * 
+ * @author jtoledo@google.com
+ */
+public class OwnerDashboardRest extends AbstractBaseResource {
+
+  private static final int DEFAULT_HOURS = 24;
+  private static final int MAX_HOURS = 72;
+
+  private static final int DEFAULT_BUCKETS = 96;
+  private static final int MAX_BUCKETS = 1440;
+
+  /**
+   * Gets the dashboard of the owner. The status and the last reading come
+   * from memory, the series from the hot tier, and the Devices the hot tier
+   * can not answer are read from the datastore with one query per Device
+   * running concurrently.
+   * 
+   * Parameters: hours of the series (default 24, at most 72) and buckets, the
+   * number of averaged points of every series (default 96).
+   * 
+   * @return a JSON object with the dates of the series, the size of the
+   *         buckets and, for every Device, its status, last reading and
+   *         series, newest bucket first
+   */
+  @Override
+  public Representation getHandler() {
+    try {
+      final String owner = getParameter("owner");
+      if (owner == null) {
+        throw new IllegalArgumentException("Missing owner for getting the dashboard");
+      }
+      Integer hours = getParameterAsInteger("hours");
+      Integer buckets = getParameterAsInteger("buckets");
+      // An absent parameter is read as 0
+      if (hours == null || hours <= 0) {
+        hours = DEFAULT_HOURS;
+      }
+      if (buckets == null || buckets <= 0) {
+        buckets = DEFAULT_BUCKETS;
+      }
+      if (hours > MAX_HOURS || buckets > MAX_BUCKETS) {
+        throw new IllegalArgumentException("The hours must be at most " + MAX_HOURS
+            + " and the buckets at most " + MAX_BUCKETS);
+      }
+
+      EntityPersister persister = RestServer.getPersister();
+      final List<Device> devices = RestServer.getDeviceRegistry().getDevices(persister, owner,
+          Collections.<Device.type>emptyList());
+      if (devices.isEmpty()) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No Device with that owner was found");
+      }
+
+      final long now = System.currentTimeMillis();
+      final Date dateStart = new Date(now - TimeUnit.HOURS.toMillis(hours));
+      final Date dateEnd = new Date(now);
+      final long bucketMillis = Math.max(1, TimeUnit.HOURS.toMillis(hours) / buckets);
+      final Map<Long, SampleSeries> series = getSeries(persister, devices, dateStart, dateEnd);
+
+      Representation representation = new OutputRepresentation(MediaType.APPLICATION_JSON) {
+        @Override
+        public void write(OutputStream outputStream) throws IOException {
+          writeDashboard(outputStream, owner, devices, series, dateStart, dateEnd, bucketMillis,
+              now);
+        }
+      };
+      representation.setCharacterSet(CharacterSet.UTF_8);
+
+      addReadOnlyHeaders();
+      if (acceptsGzip()) {
+        return new EncodeRepresentation(Encoding.GZIP, representation);
+      }
+      return representation;
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+  }
+
+  /**
+   * Gets the series of every Device from the hot tier, and the ones it can
+   * not answer in one concurrent datastore read. The hot tier warms and syncs
+   * all the Devices at once too.
+   */
+  private Map<Long, SampleSeries> getSeries(EntityPersister persister, List<Device> devices,
+      Date dateStart, Date dateEnd) {
+    List<Long> deviceIds = Lists.newArrayList();
+    for (Device device : devices) {
+      deviceIds.add(device.getId());
+    }
+    Map<Long, SampleSeries> series =
+        RestServer.getRecentWindowStore().get(persister, deviceIds, dateStart, dateEnd);
+    List<Long> missing = Lists.newArrayList();
+    for (Long deviceId : deviceIds) {
+      if (!series.containsKey(deviceId)) {
+        missing.add(deviceId);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      ListMultimap<Long, DeviceTemperatureHumidityReport> reports = ArrayListMultimap.create();
+      for (DeviceTemperatureHumidityReport report : persister.getByDevices(
+          DeviceTemperatureHumidityReport.class, missing, dateStart, dateEnd, 0)) {
+        reports.put(report.deviceId(), report);
+      }
+      for (Long deviceId : missing) {
+        series.put(deviceId, SampleSeries.fromReports(deviceId, reports.get(deviceId)));
+      }
+      Metrics.add("dashboard.datastoreDevices", missing.size());
+    }
+    return series;
+  }
+
+  private void writeDashboard(OutputStream outputStream, String owner, List<Device> devices,
+      Map<Long, SampleSeries> series, Date dateStart, Date dateEnd, long bucketMillis, long now)
+      throws IOException {
+    DateFormat dateFormat = DateUtil.newFullDateTimeFormat();
+    HeartbeatTable heartbeatTable = RestServer.getHeartbeatTable();
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, Charsets.UTF_8));
+    writer.beginObject();
+    writer.name("owner").value(owner);
+    writer.name("dateStart").value(dateFormat.format(dateStart));
+    writer.name("dateEnd").value(dateFormat.format(dateEnd));
+    writer.name("bucketMinutes").value(bucketMillis / (double) TimeUnit.MINUTES.toMillis(1));
+    List<Long> deviceIds = Lists.newArrayList();
+    for (Device device : devices) {
+      deviceIds.add(device.getId());
+    }
+    Map<Long, DeviceHeartbeat> heartbeats =
+        heartbeatTable.getHeartbeats(RestServer.getPersister(), deviceIds);
+    writer.name("devices").beginArray();
+    for (Device device : devices) {
+      DeviceHeartbeat heartbeat = heartbeats.get(device.getId());
+      writer.beginObject();
+      writer.name("deviceId").value(device.getId());
+      writer.name("description").value(device.getDescription());
+      writer.name("location").value(device.getLocation());
+      writer.name("online").value(!heartbeatTable.isStale(heartbeat, now));
+      if (heartbeat != null) {
+        writer.name("lastSeen").value(dateFormat.format(heartbeat.getLastSeen()));
+        writer.name("temperature").value(heartbeat.getLastTemperature());
+        writer.name("humidity").value(heartbeat.getLastHumidity());
+      }
+      writer.name("series");
+      SeriesJsonWriter.writeBuckets(writer, dateFormat, series.get(device.getId()), bucketMillis);
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.OwnerSettings;
+import com.google.devpartners.homemonitor.util.GsonUtil;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Rest entry point to get, create or update the OwnerSettings.
+ * 
+ * @author jtoledo@google.com
+ */
+public class OwnerSettingsRest extends AbstractBaseResource {
+
+  /**
+   * Gets the OwnerSettings of an owner.
+   * 
+   * @return a JSON {@link OwnerSettings}
+   */
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      String owner = getParameter("owner");
+      if (owner == null) {
+        throw new IllegalArgumentException("Missing owner for getting OwnerSettings");
+      }
+
+      LOGGER.info("Getting OwnerSettings by owner");
+      OwnerSettings settings = RestServer.getPersister().getByPrimaryId(OwnerSettings.class, owner);
+      if (settings == null) {
+        throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+            "No OwnerSettings with that owner were found");
+      }
+      result = gson.toJson(settings);
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addReadOnlyHeaders();
+    return createJsonResult(result);
+  }
+
+  @Override
+  public Representation postPutHandler(String json) {
+    String result = null;
+
+    try {
+      if (this.getReference().getSegments().size() != 1) {
+        throw new IllegalArgumentException(
+            "We only support Post/Put in the base url: /ownersettings (no additional segments /{owner})");
+      }
+
+      JsonParser jsonParser = new JsonParser();
+      JsonElement jsonElement = jsonParser.parse(json);
+
+      OwnerSettings settings =
+          GsonUtil.getGsonBuilder().create().fromJson(jsonElement, OwnerSettings.class);
+      if (settings.getOwner() == null) {
+        throw new IllegalArgumentException("Missing owner for persisting OwnerSettings");
+      }
+      settings.setCreated();
+      LOGGER.info("Persisting OwnerSettings...");
+      settings = RestServer.getPersister().save(settings);
+      RestServer.getDeviceRegistry().putOwnerSettings(settings);
+      result = gson.toJson(settings);
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * Coalesces identical concurrent requests into a single computation.
+ *
+ * The first request for a key computes the result, the requests for the same
+ * key that arrive while it is in flight wait for it and share the result.
+ * Nothing is kept once the computation finishes, so the next request
+ * computes it again. A request waits for the shared computation at most the
+ * configured timeout, then computes the result itself.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ *
+ * @param <V> the type of the results, shared between requests so it should be
+ *        immutable or never modified
+ */
+public class RequestCoalescer<V> {
+
+  private static final Logger LOGGER = Logger.getLogger(RequestCoalescer.class.getName());
+
+  public static final String TIMEOUT_SECONDS = "homemonitor.coalescer.timeoutSeconds";
+
+  private final ConcurrentMap<String, SettableFuture<V>> inFlight =
+      new ConcurrentHashMap<String, SettableFuture<V>>();
+
+  private final AtomicLong computed = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final long timeoutMillis;
+
+  public RequestCoalescer() {
+    this(TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(TIMEOUT_SECONDS, 20)));
+  }
+
+  public RequestCoalescer(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the result of the computation for the key, computing it in the
+   * calling thread unless there is already one in flight for the same key.
+   *
+   * @param key the normalized request
+   * @param computation computes the result of the request
+   * @return the result, shared with the other requests for the key
+   * @throws Exception the exception thrown by the computation
+   */
+  public V execute(String key, Callable<V> computation) throws Exception {
+    SettableFuture<V> future = SettableFuture.create();
+    SettableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      try {
+        return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      } catch (TimeoutException e) {
+        // A stuck computation must not hold every request until the deadline
+        LOGGER.warning("Gave up waiting for " + key + " after " + timeoutMillis + " ms");
+        computed.incrementAndGet();
+        return computation.call();
+      }
+    }
+
+    computed.incrementAndGet();
+    try {
+      V result = computation.call();
+      future.set(result);
+      return result;
+    } catch (Exception e) {
+      future.setException(e);
+      throw e;
+    } catch (Error e) {
+      future.setException(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * @return the number of requests that were computed
+   */
+  public long getComputed() {
+    return computed.get();
+  }
+
+  /**
+   * @return the number of requests that shared the result of another one
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+}
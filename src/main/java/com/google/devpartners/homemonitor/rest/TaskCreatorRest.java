@@ -0,0 +1,154 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.rest;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import org.restlet.representation.Representation;
+
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.migration.Migration;
+import com.google.devpartners.homemonitor.migration.Migrations;
+import com.google.devpartners.homemonitor.model.Device;
+import com.google.devpartners.homemonitor.model.OwnerSettings;
+import com.google.devpartners.homemonitor.task.ArchiveCompactionTask;
+import com.google.devpartners.homemonitor.task.DailyRollupTask;
+import com.google.devpartners.homemonitor.task.MigrationTask;
+import com.google.devpartners.homemonitor.task.RetentionPurgeTask;
+import com.google.devpartners.homemonitor.task.SpoolDrainTask;
+import com.google.devpartners.homemonitor.task.StalenessCheckTask;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * Rest entry point for the cron jobs, it enqueues the background tasks.
+ *
+ * Access is restricted to admins in web.xml (/taskcreator*).
+ * 
+ * @author jtoledo@google.com
+ */
+public class TaskCreatorRest extends AbstractBaseResource {
+
+  public static final String ARCHIVE = "archive";
+  public static final String MIGRATE = "migrate";
+  public static final String RETENTION = "retention";
+  public static final String ROLLUP = "rollup";
+  public static final String SPOOL = "spool";
+  public static final String STALENESS = "staleness";
+
+  // Days of reports to keep when neither the Device nor the owner define it
+  public static final String DEFAULT_RETENTION_DAYS = "homemonitor.retention.defaultDays";
+
+  @Override
+  public Representation getHandler() {
+    String result = null;
+
+    try {
+      String task = getParameter("task");
+      HashMap<String, Object> tasks = Maps.newHashMap();
+
+      if (ARCHIVE.equals(task)) {
+        LOGGER.info("Enqueuing ArchiveCompactionTasks");
+        List<Device> devices = RestServer.getPersister().get(Device.class);
+        for (Device device : devices) {
+          ArchiveCompactionTask.enqueue(device.getId());
+        }
+        tasks.put(ARCHIVE, devices.size());
+
+      } else if (MIGRATE.equals(task)) {
+        Migration<?> migration = Migrations.forName(getParameter("name"));
+        // An absent parameter is 0, the configured ranges are used
+        Integer ranges = getParameterAsInteger("ranges");
+        boolean hasRanges = ranges != null && ranges > 0;
+        if (hasRanges && ranges > MigrationTask.MAX_RANGES) {
+          throw new IllegalArgumentException(
+              "The ranges must be between 1 and " + MigrationTask.MAX_RANGES);
+        }
+        LOGGER.info("Enqueuing the MigrationTask of " + migration.getName());
+        MigrationTask.enqueue(migration.getName(),
+            hasRanges ? ranges : ConfigUtil.getInt(MigrationTask.RANGES, 8));
+        tasks.put(MIGRATE, 1);
+
+      } else if (RETENTION.equals(task)) {
+        LOGGER.info("Enqueuing RetentionPurgeTasks");
+        tasks.put(RETENTION, enqueueRetentionPurgeTasks());
+
+      } else if (ROLLUP.equals(task)) {
+        LOGGER.info("Enqueuing DailyRollupTasks");
+        Date yesterday =
+            new DateTime(DateTimeZone.UTC).withTimeAtStartOfDay().minusDays(1).toDate();
+        List<Device> devices = RestServer.getPersister().get(Device.class);
+        for (Device device : devices) {
+          DailyRollupTask.enqueue(device.getId(), yesterday);
+        }
+        tasks.put(ROLLUP, devices.size());
+
+      } else if (SPOOL.equals(task)) {
+        SpoolDrainTask.enqueue();
+        tasks.put(SPOOL, 1);
+
+      } else if (STALENESS.equals(task)) {
+        StalenessCheckTask.enqueue();
+        tasks.put(STALENESS, 1);
+
+      } else {
+        throw new IllegalArgumentException("Unknown task: " + task);
+      }
+      result = gson.toJson(tasks);
+
+    } catch (Exception exception) {
+      return handleException(exception);
+    }
+    addHeaders();
+    return createJsonResult(result);
+  }
+
+  /**
+   * Enqueues a purge for every Device with a retention, the Device setting
+   * wins over the owner one.
+   *
+   * @return the number of tasks enqueued
+   */
+  private int enqueueRetentionPurgeTasks() {
+    Map<String, Integer> ownerRetentionDays = Maps.newHashMap();
+    for (OwnerSettings settings : RestServer.getPersister().get(OwnerSettings.class)) {
+      ownerRetentionDays.put(settings.getOwner(), settings.getRetentionDays());
+    }
+    int defaultRetentionDays = ConfigUtil.getInt(DEFAULT_RETENTION_DAYS, 0);
+
+    int enqueued = 0;
+    DateTime today = new DateTime(DateTimeZone.UTC).withTimeAtStartOfDay();
+    for (Device device : RestServer.getPersister().get(Device.class)) {
+      Integer retentionDays = device.getRetentionDays();
+      if (retentionDays == null) {
+        retentionDays = ownerRetentionDays.get(device.getOwner());
+      }
+      if (retentionDays == null) {
+        retentionDays = defaultRetentionDays;
+      }
+      if (retentionDays > 0) {
+        RetentionPurgeTask.enqueue(device.getId(), today.minusDays(retentionDays).toDate(), false);
+        enqueued++;
+      }
+    }
+    return enqueued;
+  }
+}
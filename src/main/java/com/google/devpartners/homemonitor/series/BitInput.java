@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.io.IOException;
+
+/**
+ * Reads the bits written by a {@link BitOutput}.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class BitInput {
+
+  private final byte[] bytes;
+  private final int offset;
+  private final long bitLimit;
+  private long position;
+
+  BitInput(byte[] bytes, int offset) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.bitLimit = (long) (bytes.length - offset) * 8;
+  }
+
+  /**
+   * @return the number of bits left to read
+   */
+  long remaining() {
+    return bitLimit - position;
+  }
+
+  boolean readBit() throws IOException {
+    if (position >= bitLimit) {
+      throw new IOException("Unexpected end of the series");
+    }
+    boolean bit = (bytes[offset + (int) (position >>> 3)] & (0x80 >>> (position & 7))) != 0;
+    position++;
+    return bit;
+  }
+
+  long readBits(int bits) throws IOException {
+    if (position + bits > bitLimit) {
+      throw new IOException("Unexpected end of the series");
+    }
+    long value = 0;
+    for (int i = 0; i < bits; i++) {
+      value = (value << 1)
+          | ((bytes[offset + (int) (position >>> 3)] >>> (7 - (position & 7))) & 1);
+      position++;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.util.Arrays;
+
+/**
+ * Growable buffer of bits, written most significant bit first.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class BitOutput {
+
+  private byte[] bytes;
+  private long bitCount;
+
+  BitOutput(int initialBytes) {
+    bytes = new byte[Math.max(initialBytes, 8)];
+  }
+
+  void writeBit(boolean bit) {
+    ensureCapacity(1);
+    if (bit) {
+      bytes[(int) (bitCount >>> 3)] |= 0x80 >>> (bitCount & 7);
+    }
+    bitCount++;
+  }
+
+  /**
+   * Writes the lowest bits of the value.
+   */
+  void writeBits(long value, int bits) {
+    ensureCapacity(bits);
+    for (int i = bits - 1; i >= 0; i--) {
+      if (((value >>> i) & 1) != 0) {
+        bytes[(int) (bitCount >>> 3)] |= 0x80 >>> (bitCount & 7);
+      }
+      bitCount++;
+    }
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(bytes, (int) ((bitCount + 7) >>> 3));
+  }
+
+  private void ensureCapacity(int bits) {
+    int needed = (int) ((bitCount + bits + 7) >>> 3);
+    if (needed > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+    }
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+import com.google.devpartners.homemonitor.model.ChartTile;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.ReportPage;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.googlecode.objectify.Key;
+
+/**
+ * Util class to render the history of a Device as chart tiles, like map
+ * tiles: every zoom level splits the time since the epoch into tiles of a
+ * fixed span, with the same number of buckets per tile.
+ *
+ * A tile is closed once its end is older than the reports that can still
+ * arrive late, the closed tiles with reports are rendered once and stored as
+ * {@link ChartTile}s, the open ones are rendered on every request. The reports
+ * saved later than that, drained from the spool, sent with an old date or
+ * imported, delete the stored tiles of their dates.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class ChartTiles {
+
+  // Minutes after the end of a tile when it is closed
+  public static final String CLOSE_MINUTES = "homemonitor.tiles.closeMinutes";
+
+  public static final int BUCKETS_PER_TILE = 240;
+
+  private static final int PAGE_SIZE = 1000;
+
+  // Span of the tiles of every level, finest first: 4 hours, 1 day, 1 week
+  // and 4 weeks, with buckets of 1, 6, 42 and 168 minutes
+  private static final long[] SPAN_MILLIS = {TimeUnit.HOURS.toMillis(4),
+      TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7), TimeUnit.DAYS.toMillis(28)};
+
+  /**
+   * Private constructor.
+   */
+  private ChartTiles() {}
+
+  public static int getLevelCount() {
+    return SPAN_MILLIS.length;
+  }
+
+  /**
+   * @throws IllegalArgumentException when the level does not exist
+   */
+  public static long getSpanMillis(int level) {
+    if (level < 0 || level >= SPAN_MILLIS.length) {
+      throw new IllegalArgumentException("Unknown tile level: " + level);
+    }
+    return SPAN_MILLIS[level];
+  }
+
+  public static long getBucketMillis(int level) {
+    return getSpanMillis(level) / BUCKETS_PER_TILE;
+  }
+
+  /**
+   * @return the index of the tile of the level that contains the date
+   */
+  public static long getIndex(int level, Date date) {
+    return LongMath.divide(date.getTime(), getSpanMillis(level), RoundingMode.FLOOR);
+  }
+
+  public static Date getStart(int level, long index) {
+    return new Date(index * getSpanMillis(level));
+  }
+
+  /**
+   * @return the first instant after the tile
+   */
+  public static Date getEnd(int level, long index) {
+    return new Date((index + 1) * getSpanMillis(level));
+  }
+
+  public static boolean isClosed(int level, long index, long now) {
+    long closeMillis = TimeUnit.MINUTES.toMillis(ConfigUtil.getInt(CLOSE_MINUTES, 60));
+    return getEnd(level, index).getTime() + closeMillis <= now;
+  }
+
+  /**
+   * @return the finest level that covers the dates with at most maxTiles
+   *         tiles, the coarsest level when none does
+   */
+  public static int getLevel(Date dateStart, Date dateEnd, int maxTiles) {
+    for (int level = 0; level < SPAN_MILLIS.length - 1; level++) {
+      if (getIndex(level, dateEnd) - getIndex(level, dateStart) < maxTiles) {
+        return level;
+      }
+    }
+    return SPAN_MILLIS.length - 1;
+  }
+
+  /**
+   * Describes the tiles of the level that cover the dates, oldest first.
+   *
+   * @return the index, start, end and closed state of every tile
+   */
+  public static List<Map<String, Object>> getTiles(int level, Date dateStart, Date dateEnd,
+      long now) {
+    List<Map<String, Object>> tiles = Lists.newArrayList();
+    for (long index = getIndex(level, dateStart); index <= getIndex(level, dateEnd); index++) {
+      Map<String, Object> tile = Maps.newLinkedHashMap();
+      tile.put("index", index);
+      tile.put("start", getStart(level, index));
+      tile.put("end", getEnd(level, index));
+      tile.put("closed", isClosed(level, index, now));
+      tiles.add(tile);
+    }
+    return tiles;
+  }
+
+  /**
+   * Gets the google-chart DataTable of a tile, the one stored when the tile is
+   * closed and was already rendered.
+   *
+   * @param persister the persister of the reports and of the tiles
+   * @param deviceId the Device
+   * @param level the zoom level
+   * @param index the index of the tile in the level
+   * @param metrics the derived metrics, a column each in the order of their
+   *        names, so that every order of the parameter shares the stored tile
+   * @return the DataTable JSON, newest bucket first
+   * @throws JSONException error creating the JSON
+   */
+  public static String getChart(EntityPersister persister, Long deviceId, int level,
+      long index, List<DerivedMetric> metrics) throws JSONException {
+    boolean closed = isClosed(level, index, System.currentTimeMillis());
+    List<DerivedMetric> sorted = Lists.newArrayList(metrics);
+    Collections.sort(sorted, new Comparator<DerivedMetric>() {
+      @Override
+      public int compare(DerivedMetric metric1, DerivedMetric metric2) {
+        return metric1.getName().compareTo(metric2.getName());
+      }
+    });
+    metrics = sorted;
+    StringBuilder names = new StringBuilder();
+    for (DerivedMetric metric : metrics) {
+      names.append(names.length() == 0 ? "" : ".").append(metric.getName());
+    }
+    if (closed) {
+      ChartTile tile = persister.getByPrimaryId(ChartTile.class,
+          ChartTile.createId(deviceId, level, index, names.toString()));
+      if (tile != null) {
+        Metrics.increment("tiles.stored");
+        return tile.getChart();
+      }
+    }
+
+    // Scanned a page at a time through both tiers, the old tiles are archived
+    Date start = getStart(level, index);
+    Date end = new Date(getEnd(level, index).getTime() - 1);
+    List<DeviceTemperatureHumidityReport> reports = Lists.newArrayList();
+    String cursor = null;
+    do {
+      ReportPage<DeviceTemperatureHumidityReport> page = persister.scan(
+          DeviceTemperatureHumidityReport.class, deviceId, start, end, cursor, PAGE_SIZE);
+      reports.addAll(page.getReports());
+      cursor = page.getCursor();
+    } while (cursor != null);
+    String chart = SeriesJsonWriter.toGoogleChart(Collections.singletonList(deviceId), reports,
+        getBucketMillis(level), metrics).toString();
+    Metrics.increment("tiles.rendered");
+    // An empty tile is not stored, its reports may still be imported
+    if (closed && !reports.isEmpty()) {
+      persister.save(new ChartTile(deviceId, level, index, names.toString(), start, chart));
+    }
+    return chart;
+  }
+
+  /**
+   * Deletes the stored tiles of a Device that overlap the dates, after its
+   * reports of those dates changed.
+   *
+   * @return the number of tiles deleted
+   */
+  public static int invalidate(EntityPersister persister, Long deviceId, Date dateStart,
+      Date dateEnd) {
+    long maxSpanMillis = SPAN_MILLIS[SPAN_MILLIS.length - 1];
+    Map<String, Object> filters = Maps.newHashMap();
+    filters.put(ChartTile.DEVICE_ID, deviceId);
+    filters.put(ChartTile.START + " >", new Date(dateStart.getTime() - maxSpanMillis));
+    filters.put(ChartTile.START + " <=", dateEnd);
+    List<Key<ChartTile>> keys = persister.getKeys(ChartTile.class, filters, 0, 0);
+    if (!keys.isEmpty()) {
+      persister.removeKeys(keys);
+    }
+    return keys.size();
+  }
+
+  /**
+   * Deletes the stored tiles of the dates of the reports that were saved after
+   * their tiles closed.
+   *
+   * @return the number of tiles deleted
+   */
+  public static int invalidateLate(EntityPersister persister,
+      List<DeviceTemperatureHumidityReport> reports, long now) {
+    // The finest tile of a date closes first
+    Map<Long, Date[]> ranges = Maps.newHashMap();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      Date date = report.getDate();
+      if (report.deviceId() == null || date == null
+          || !isClosed(0, getIndex(0, date), now)) {
+        continue;
+      }
+      Date[] range = ranges.get(report.deviceId());
+      if (range == null) {
+        ranges.put(report.deviceId(), new Date[] {date, date});
+      } else if (date.before(range[0])) {
+        range[0] = date;
+      } else if (date.after(range[1])) {
+        range[1] = date;
+      }
+    }
+    int deleted = 0;
+    for (Map.Entry<Long, Date[]> range : ranges.entrySet()) {
+      deleted += invalidate(persister, range.getKey(), range.getValue()[0],
+          range.getValue()[1]);
+    }
+    if (deleted > 0) {
+      Metrics.add("tiles.invalidated", deleted);
+    }
+    return deleted;
+  }
+
+  /**
+   * Deletes all the stored tiles of a Device, when it is deleted.
+   *
+   * @return the number of tiles deleted
+   */
+  public static int removeAll(EntityPersister persister, Long deviceId) {
+    List<Key<ChartTile>> keys = persister.getKeys(ChartTile.class, ChartTile.DEVICE_ID, deviceId);
+    if (!keys.isEmpty()) {
+      persister.removeKeys(keys);
+    }
+    return keys.size();
+  }
+}
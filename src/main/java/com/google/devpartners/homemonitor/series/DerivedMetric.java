@@ -0,0 +1,143 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+/**
+ * Metrics computed from the temperature, in Celsius, and the relative
+ * humidity, in percent, of a sample. They are computed while the series is
+ * written, so they need no storage.
+ *
+ * The relative humidity is taken as at least 1%, a reading of 0 is a sensor
+ * error and would make the dew point undefined.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public enum DerivedMetric {
+
+  // Magnus formula, Sonntag 1990 constants
+  DEW_POINT("dewPoint", "Dew point") {
+    @Override
+    public double compute(double temperature, double humidity) {
+      double gamma = Math.log(relativeHumidity(humidity) / 100)
+          + MAGNUS_A * temperature / (MAGNUS_B + temperature);
+      return MAGNUS_B * gamma / (MAGNUS_A - gamma);
+    }
+  },
+
+  // NWS Rothfusz regression, with the simple formula below 80F
+  HEAT_INDEX("heatIndex", "Heat index") {
+    @Override
+    public double compute(double temperature, double humidity) {
+      double t = temperature * 9 / 5 + 32;
+      double rh = relativeHumidity(humidity);
+      double index = 0.5 * (t + 61 + (t - 68) * 1.2 + rh * 0.094);
+      if ((index + t) / 2 >= 80) {
+        index = -42.379 + 2.04901523 * t + 10.14333127 * rh - 0.22475541 * t * rh
+            - 0.00683783 * t * t - 0.05481717 * rh * rh + 0.00122874 * t * t * rh
+            + 0.00085282 * t * rh * rh - 0.00000199 * t * t * rh * rh;
+        if (rh < 13 && t >= 80 && t <= 112) {
+          index -= (13 - rh) / 4 * Math.sqrt((17 - Math.abs(t - 95)) / 17);
+        } else if (rh > 85 && t >= 80 && t <= 87) {
+          index += (rh - 85) / 10 * (87 - t) / 5;
+        }
+      }
+      return (index - 32) * 5 / 9;
+    }
+  },
+
+  // Grams of water vapour per cubic meter
+  ABSOLUTE_HUMIDITY("absoluteHumidity", "Absolute humidity") {
+    @Override
+    public double compute(double temperature, double humidity) {
+      return 6.112 * Math.exp(17.67 * temperature / (temperature + 243.5))
+          * relativeHumidity(humidity) * 2.1674 / (273.15 + temperature);
+    }
+  };
+
+  private static final double MAGNUS_A = 17.62;
+  private static final double MAGNUS_B = 243.12;
+
+  private final String name;
+
+  private final String label;
+
+  private DerivedMetric(String name, String label) {
+    this.name = name;
+    this.label = label;
+  }
+
+  /**
+   * @param temperature the temperature in Celsius
+   * @param humidity the relative humidity in percent
+   * @return the value of the metric
+   */
+  public abstract double compute(double temperature, double humidity);
+
+  /**
+   * @return the name of the metric in the requests and in the JSON
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the label of the google-chart column
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  private static double relativeHumidity(double humidity) {
+    return Math.min(100, Math.max(1, humidity));
+  }
+
+  /**
+   * Parses the metrics parameter, a comma separated list of metric names.
+   *
+   * @param value the parameter, may be null
+   * @return the metrics, in the order of the parameter, empty for null
+   */
+  public static List<DerivedMetric> parse(String value) {
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    List<DerivedMetric> metrics = Lists.newArrayList();
+    for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+      DerivedMetric metric = forName(name);
+      if (metric == null) {
+        throw new IllegalArgumentException("Unknown metric: " + name);
+      }
+      if (!metrics.contains(metric)) {
+        metrics.add(metric);
+      }
+    }
+    return metrics;
+  }
+
+  public static DerivedMetric forName(String name) {
+    for (DerivedMetric metric : values()) {
+      if (metric.name.equals(name)) {
+        return metric;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size ring buffer with the most recent samples of one Device.
+ *
+ * Samples are packed as (long date, long id, float temperature, float
+ * humidity) records in a direct {@link ByteBuffer}, so they live outside of
+ * the Java heap. Records are kept sorted by date, the oldest record is
+ * overwritten when the buffer is full.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DeviceSampleRingBuffer {
+
+  static final int RECORD_SIZE = 8 + 8 + 4 + 4;
+
+  private static final int DATE_OFFSET = 0;
+  private static final int ID_OFFSET = 8;
+  private static final int TEMPERATURE_OFFSET = 16;
+  private static final int HUMIDITY_OFFSET = 20;
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+
+  // Position of the oldest record and number of records
+  private int head;
+  private int size;
+
+  // Samples older than this date may have been evicted
+  private long evictedThrough = Long.MIN_VALUE;
+
+  public DeviceSampleRingBuffer(int capacity) {
+    this.capacity = capacity;
+    this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+  }
+
+  /**
+   * Adds a sample keeping the records sorted by date. Samples older than the
+   * oldest record of a full buffer, or already in the buffer, are ignored.
+   *
+   * @return true if the sample was added
+   */
+  public synchronized boolean add(long id, long date, float temperature, float humidity) {
+    if (id != 0 && contains(id, date)) {
+      return false;
+    }
+    if (size == capacity) {
+      long oldest = getDateAt(0);
+      if (date < oldest) {
+        return false;
+      }
+      evictedThrough = Math.max(evictedThrough, oldest);
+      head = (head + 1) % capacity;
+      size--;
+    }
+
+    // Readings arrive mostly in order, so this shift is usually a no-op
+    int position = size;
+    while (position > 0 && getDateAt(position - 1) > date) {
+      copyRecord(position - 1, position);
+      position--;
+    }
+    int offset = offset(position);
+    buffer.putLong(offset + DATE_OFFSET, date);
+    buffer.putLong(offset + ID_OFFSET, id);
+    buffer.putFloat(offset + TEMPERATURE_OFFSET, temperature);
+    buffer.putFloat(offset + HUMIDITY_OFFSET, humidity);
+    size++;
+    return true;
+  }
+
+  /**
+   * Copies the samples between the dates (both inclusive) into a series in
+   * descending date order, skipping the first numToSkip samples.
+   *
+   * @param limit the maximum number of samples, 0 for no limit
+   */
+  public synchronized SampleSeries getDescending(Long deviceId, long dateStart, long dateEnd,
+      int numToSkip, int limit) {
+    SampleSeries series = new SampleSeries(deviceId, limit > 0 ? limit : size);
+    int skipped = 0;
+    for (int i = size - 1; i >= 0; i--) {
+      int offset = offset(i);
+      long date = buffer.getLong(offset + DATE_OFFSET);
+      if (date > dateEnd) {
+        continue;
+      }
+      if (date < dateStart) {
+        break;
+      }
+      if (skipped < numToSkip) {
+        skipped++;
+        continue;
+      }
+      series.add(buffer.getLong(offset + ID_OFFSET), date,
+          buffer.getFloat(offset + TEMPERATURE_OFFSET), buffer.getFloat(offset + HUMIDITY_OFFSET));
+      if (limit > 0 && series.size() == limit) {
+        break;
+      }
+    }
+    return series;
+  }
+
+  /**
+   * @return the last date that may be missing from the buffer because it was
+   *         overwritten, {@code Long.MIN_VALUE} if nothing was evicted yet
+   */
+  public synchronized long getEvictedThrough() {
+    return evictedThrough;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private boolean contains(long id, long date) {
+    for (int i = size - 1; i >= 0; i--) {
+      int offset = offset(i);
+      long recordDate = buffer.getLong(offset + DATE_OFFSET);
+      if (recordDate < date) {
+        return false;
+      }
+      if (recordDate == date && buffer.getLong(offset + ID_OFFSET) == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long getDateAt(int position) {
+    return buffer.getLong(offset(position) + DATE_OFFSET);
+  }
+
+  private void copyRecord(int from, int to) {
+    int fromOffset = offset(from);
+    int toOffset = offset(to);
+    buffer.putLong(toOffset + DATE_OFFSET, buffer.getLong(fromOffset + DATE_OFFSET));
+    buffer.putLong(toOffset + ID_OFFSET, buffer.getLong(fromOffset + ID_OFFSET));
+    buffer.putFloat(toOffset + TEMPERATURE_OFFSET, buffer.getFloat(fromOffset + TEMPERATURE_OFFSET));
+    buffer.putFloat(toOffset + HUMIDITY_OFFSET, buffer.getFloat(fromOffset + HUMIDITY_OFFSET));
+  }
+
+  private int offset(int position) {
+    return ((head + position) % capacity) * RECORD_SIZE;
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.io.IOException;
+
+/**
+ * Gorilla style compression of a {@link SampleSeries}.
+ *
+ * Dates are stored as the delta of the delta with the previous sample, which
+ * is zero or close to zero for readings that arrive at a regular cadence.
+ * Temperature and humidity are stored as the XOR with the previous value,
+ * a single bit when the value did not change and only the meaningful bits
+ * otherwise. Slowly changing readings take 1 to 2 bytes per sample.
+ *
+ * Samples are encoded in the order of the series and entity ids are not
+ * kept.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class GorillaSeriesCodec {
+
+  /**
+   * Private constructor.
+   */
+  private GorillaSeriesCodec() {}
+
+  /**
+   * @param series the samples to encode
+   * @return the encoded bits
+   */
+  public static byte[] encode(SampleSeries series) {
+    BitOutput out = new BitOutput(series.size() * 2 + 20);
+    out.writeBits(series.size(), 32);
+    if (series.size() == 0) {
+      return out.toByteArray();
+    }
+
+    long previousDate = series.getDate(0);
+    long previousDelta = 0;
+    out.writeBits(previousDate, 64);
+    ValueState temperature = new ValueState(Float.floatToIntBits(series.getTemperature(0)));
+    ValueState humidity = new ValueState(Float.floatToIntBits(series.getHumidity(0)));
+    out.writeBits(temperature.previous, 32);
+    out.writeBits(humidity.previous, 32);
+
+    for (int i = 1; i < series.size(); i++) {
+      long delta = series.getDate(i) - previousDate;
+      writeDeltaOfDelta(out, delta - previousDelta);
+      previousDate = series.getDate(i);
+      previousDelta = delta;
+
+      temperature.write(out, Float.floatToIntBits(series.getTemperature(i)));
+      humidity.write(out, Float.floatToIntBits(series.getHumidity(i)));
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param deviceId the Device of the samples
+   * @param data the encoded bits
+   * @param offset the position of the first byte of the series in data
+   * @return the decoded samples
+   * @throws IOException if the data is truncated or its size is corrupt
+   */
+  public static SampleSeries decode(Long deviceId, byte[] data, int offset) throws IOException {
+    BitInput in = new BitInput(data, offset);
+    int size = (int) in.readBits(32);
+    // The first sample takes 128 bits and every other one at least 3, a corrupt
+    // size must not allocate more than the data can hold
+    if (size < 0 || (size > 0 && (size - 1) * 3L + 128 > in.remaining())) {
+      throw new IOException("Corrupt series size: " + size);
+    }
+    SampleSeries series = new SampleSeries(deviceId, size);
+    if (size == 0) {
+      return series;
+    }
+
+    long date = in.readBits(64);
+    long delta = 0;
+    ValueState temperature = new ValueState((int) in.readBits(32));
+    ValueState humidity = new ValueState((int) in.readBits(32));
+    series.add(0, date, Float.intBitsToFloat(temperature.previous),
+        Float.intBitsToFloat(humidity.previous));
+
+    for (int i = 1; i < size; i++) {
+      delta += readDeltaOfDelta(in);
+      date += delta;
+      series.add(0, date, Float.intBitsToFloat(temperature.read(in)),
+          Float.intBitsToFloat(humidity.read(in)));
+    }
+    return series;
+  }
+
+  private static void writeDeltaOfDelta(BitOutput out, long deltaOfDelta) {
+    if (deltaOfDelta == 0) {
+      out.writeBit(false);
+    } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+      out.writeBits(0x2, 2);
+      out.writeBits(deltaOfDelta + 63, 7);
+    } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+      out.writeBits(0x6, 3);
+      out.writeBits(deltaOfDelta + 255, 9);
+    } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+      out.writeBits(0xE, 4);
+      out.writeBits(deltaOfDelta + 2047, 12);
+    } else if (deltaOfDelta >= Integer.MIN_VALUE && deltaOfDelta <= Integer.MAX_VALUE) {
+      out.writeBits(0x1E, 5);
+      out.writeBits(deltaOfDelta, 32);
+    } else {
+      out.writeBits(0x1F, 5);
+      out.writeBits(deltaOfDelta, 64);
+    }
+  }
+
+  private static long readDeltaOfDelta(BitInput in) throws IOException {
+    if (!in.readBit()) {
+      return 0;
+    }
+    if (!in.readBit()) {
+      return in.readBits(7) - 63;
+    }
+    if (!in.readBit()) {
+      return in.readBits(9) - 255;
+    }
+    if (!in.readBit()) {
+      return in.readBits(12) - 2047;
+    }
+    if (!in.readBit()) {
+      return (int) in.readBits(32);
+    }
+    return in.readBits(64);
+  }
+
+  /**
+   * XOR encoding state of one of the float columns.
+   */
+  private static class ValueState {
+
+    private int previous;
+    private int leadingZeros = -1;
+    private int trailingZeros;
+
+    ValueState(int first) {
+      previous = first;
+    }
+
+    void write(BitOutput out, int bits) {
+      int xor = bits ^ previous;
+      previous = bits;
+      if (xor == 0) {
+        out.writeBit(false);
+        return;
+      }
+      out.writeBit(true);
+
+      int leading = Integer.numberOfLeadingZeros(xor);
+      int trailing = Integer.numberOfTrailingZeros(xor);
+      if (leadingZeros >= 0 && leading >= leadingZeros && trailing >= trailingZeros) {
+        // Fits in the window of the previous value
+        out.writeBit(false);
+        out.writeBits(xor >>> trailingZeros, 32 - leadingZeros - trailingZeros);
+      } else {
+        out.writeBit(true);
+        int length = 32 - leading - trailing;
+        out.writeBits(leading, 5);
+        out.writeBits(length - 1, 5);
+        out.writeBits(xor >>> trailing, length);
+        leadingZeros = leading;
+        trailingZeros = trailing;
+      }
+    }
+
+    int read(BitInput in) throws IOException {
+      if (!in.readBit()) {
+        return previous;
+      }
+      if (in.readBit()) {
+        leadingZeros = (int) in.readBits(5);
+        int length = (int) in.readBits(5) + 1;
+        trailingZeros = 32 - leadingZeros - length;
+      }
+      int xor = (int) in.readBits(32 - leadingZeros - trailingZeros) << trailingZeros;
+      previous ^= xor;
+      return previous;
+    }
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.DeviceReport;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.PersisterOverloadedException;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * Hot tier with the most recent window of samples of every Device.
+ *
+ * The store is populated on ingest and the window of a Device is loaded with
+ * one query the first time it is read, after that the queries that fall
+ * inside the window are answered from the {@link DeviceSampleRingBuffer}s
+ * without loading entities.
+ *
+ * Each instance keeps its own store, so the reports saved by other instances
+ * are pulled with a small incremental query on their saved date at most once
+ * per sync interval. That also pulls the reports saved late with old dates,
+ * drained from the spool, retried or imported.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class RecentWindowStore {
+
+  public static final String WINDOW_HOURS = "homemonitor.hotTier.windowHours";
+  public static final String CAPACITY = "homemonitor.hotTier.capacity";
+  public static final String SYNC_SECONDS = "homemonitor.hotTier.syncSeconds";
+
+  // Allowance for reports saved by other instances while this one synced, and
+  // for the index of the saved dates to catch up
+  private static final long SYNC_OVERLAP_MILLIS = 10 * 1000;
+
+  private final ConcurrentMap<Long, DeviceSampleRingBuffer> buffers =
+      new ConcurrentHashMap<Long, DeviceSampleRingBuffer>();
+
+  // Saved date of the last sync of every Device
+  private final ConcurrentMap<Long, Long> lastSynced = new ConcurrentHashMap<Long, Long>();
+
+  // Samples of a Device newer than this date are complete in its buffer, set
+  // when the Device is warmed
+  private final ConcurrentMap<Long, Long> warmedFrom = new ConcurrentHashMap<Long, Long>();
+
+  private final long windowMillis;
+  private final int capacity;
+  private final long syncMillis;
+
+  public RecentWindowStore() {
+    this(ConfigUtil.getLong(WINDOW_HOURS, 48) * 60 * 60 * 1000,
+        ConfigUtil.getInt(CAPACITY, 2880),
+        ConfigUtil.getLong(SYNC_SECONDS, 60) * 1000);
+  }
+
+  public RecentWindowStore(long windowMillis, int capacity, long syncMillis) {
+    this.windowMillis = windowMillis;
+    this.capacity = capacity;
+    this.syncMillis = syncMillis;
+  }
+
+  public void add(DeviceTemperatureHumidityReport report) {
+    if (report == null || report.deviceId() == null || report.getDate() == null) {
+      return;
+    }
+    getBuffer(report.deviceId()).add(report.getId() == null ? 0 : report.getId(),
+        report.getDate().getTime(), report.getTemperature(), report.getHumidity());
+  }
+
+  public void remove(Long deviceId) {
+    buffers.remove(deviceId);
+    lastSynced.remove(deviceId);
+    warmedFrom.remove(deviceId);
+  }
+
+  /**
+   * Gets the samples of a Device from the store, with the same semantics as
+   * the date range query of the {@link EntityPersister}.
+   *
+   * @return the samples in descending date order, or {@code null} if the
+   *         store can not answer the query
+   */
+  public SampleSeries get(EntityPersister persister, Long deviceId, Date dateStart,
+      Date dateEnd, int numToSkip, int limit) {
+    if (deviceId == null) {
+      return null;
+    }
+
+    boolean isRange = dateStart != null && dateEnd != null;
+    if (!isRange && (dateStart != null || limit <= 0)) {
+      // A single date, or the whole history of the device
+      return null;
+    }
+
+    DeviceSampleRingBuffer buffer = getBuffer(deviceId);
+    Long from = warmedFrom.get(deviceId);
+    if (from == null) {
+      from = warm(persister, Collections.singletonList(deviceId)).get(deviceId);
+    } else {
+      sync(persister, Collections.singletonMap(deviceId, from));
+    }
+
+    long coveredFrom = Math.max(from, buffer.getEvictedThrough() + 1);
+    if (isRange) {
+      if (dateStart.getTime() < coveredFrom) {
+        return null;
+      }
+      return buffer.getDescending(deviceId, dateStart.getTime(), dateEnd.getTime(), numToSkip,
+          limit);
+    }
+
+    // Latest samples, only if the page is complete inside the window
+    SampleSeries series =
+        buffer.getDescending(deviceId, coveredFrom, Long.MAX_VALUE, numToSkip, limit);
+    return series.size() == limit ? series : null;
+  }
+
+  /**
+   * Gets the samples of several Devices between the dates. The Devices read
+   * for the first time are warmed, and the others synced, with concurrent
+   * queries for all of them.
+   *
+   * @return the samples of every Device the store can answer, in descending
+   *         date order. The Devices missing have to be read from the
+   *         datastore
+   */
+  public Map<Long, SampleSeries> get(EntityPersister persister, List<Long> deviceIds,
+      Date dateStart, Date dateEnd) {
+    Map<Long, Long> froms = Maps.newLinkedHashMap();
+    List<Long> cold = Lists.newArrayList();
+    for (Long deviceId : deviceIds) {
+      Long from = warmedFrom.get(deviceId);
+      if (from == null) {
+        cold.add(deviceId);
+      } else {
+        froms.put(deviceId, from);
+      }
+    }
+    sync(persister, froms);
+    if (!cold.isEmpty()) {
+      froms.putAll(warm(persister, cold));
+    }
+
+    Map<Long, SampleSeries> series = Maps.newHashMap();
+    for (Entry<Long, Long> from : froms.entrySet()) {
+      DeviceSampleRingBuffer buffer = getBuffer(from.getKey());
+      long coveredFrom = Math.max(from.getValue(), buffer.getEvictedThrough() + 1);
+      if (dateStart.getTime() >= coveredFrom) {
+        series.put(from.getKey(), buffer.getDescending(from.getKey(), dateStart.getTime(),
+            dateEnd.getTime(), 0, 0));
+      }
+    }
+    return series;
+  }
+
+  /**
+   * Loads the last window of the Devices the first time they are read, at
+   * most a buffer of samples of every Device.
+   *
+   * @return the date from which the samples of every Device are complete
+   */
+  private Map<Long, Long> warm(EntityPersister persister, List<Long> deviceIds) {
+    long now = System.currentTimeMillis();
+    long windowStart = now - windowMillis;
+    Map<Long, List<DeviceTemperatureHumidityReport>> reports = persister.getPerDevice(
+        DeviceTemperatureHumidityReport.class, deviceIds, DeviceTemperatureHumidityReport.DATE,
+        new Date(windowStart), new Date(now), capacity);
+
+    Map<Long, Long> froms = Maps.newHashMap();
+    for (Entry<Long, List<DeviceTemperatureHumidityReport>> entry : reports.entrySet()) {
+      List<DeviceTemperatureHumidityReport> deviceReports = entry.getValue();
+      // Reports come in descending date order
+      for (int i = deviceReports.size() - 1; i >= 0; i--) {
+        add(deviceReports.get(i));
+      }
+      long from = windowStart;
+      if (deviceReports.size() == capacity) {
+        from = deviceReports.get(deviceReports.size() - 1).getDate().getTime() + 1;
+      }
+      lastSynced.put(entry.getKey(), now);
+      Long current = warmedFrom.putIfAbsent(entry.getKey(), from);
+      froms.put(entry.getKey(), current == null ? from : current);
+    }
+    return froms;
+  }
+
+  /**
+   * Pulls the reports of the Devices saved since their last sync, whatever
+   * their date, for the Devices whose sync interval has passed. Samples
+   * already in the buffers are skipped by their id.
+   *
+   * @param froms the date from which the samples of every Device are complete
+   */
+  private void sync(EntityPersister persister, Map<Long, Long> froms) {
+    long now = System.currentTimeMillis();
+    Map<Long, Long> claimed = Maps.newHashMap();
+    long oldest = now;
+    for (Long deviceId : froms.keySet()) {
+      Long synced = lastSynced.get(deviceId);
+      if (synced != null && now - synced >= syncMillis
+          && lastSynced.replace(deviceId, synced, now)) {
+        claimed.put(deviceId, synced);
+        oldest = Math.min(oldest, synced);
+      }
+    }
+    if (claimed.isEmpty()) {
+      return;
+    }
+
+    // The Devices share the oldest of their sync dates, the reports some of
+    // them already have are skipped by their id
+    Map<Long, List<DeviceTemperatureHumidityReport>> reports;
+    try {
+      reports = persister.getPerDevice(DeviceTemperatureHumidityReport.class,
+          Lists.newArrayList(claimed.keySet()), DeviceReport.SAVED,
+          new Date(oldest - SYNC_OVERLAP_MILLIS), new Date(now), 0);
+    } catch (PersisterOverloadedException e) {
+      // Serve the buffers as they were last synced, the next read tries again
+      for (Entry<Long, Long> synced : claimed.entrySet()) {
+        lastSynced.replace(synced.getKey(), now, synced.getValue());
+      }
+      return;
+    }
+    for (Entry<Long, List<DeviceTemperatureHumidityReport>> entry : reports.entrySet()) {
+      long from = froms.get(entry.getKey());
+      List<DeviceTemperatureHumidityReport> deviceReports = entry.getValue();
+      for (int i = deviceReports.size() - 1; i >= 0; i--) {
+        // Older samples than the window would only take the place of newer ones
+        if (deviceReports.get(i).getDate().getTime() >= from) {
+          add(deviceReports.get(i));
+        }
+      }
+    }
+  }
+
+  private DeviceSampleRingBuffer getBuffer(Long deviceId) {
+    DeviceSampleRingBuffer buffer = buffers.get(deviceId);
+    if (buffer == null) {
+      buffers.putIfAbsent(deviceId, new DeviceSampleRingBuffer(capacity));
+      buffer = buffers.get(deviceId);
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes {@link DeviceTemperatureHumidityReport}s one at a time as CSV rows or
+ * as NDJSON lines, one JSON object per line, so an export never holds more
+ * than the report being written.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ReportExportWriter {
+
+  public static final String CSV = "csv";
+  public static final String NDJSON = "ndjson";
+
+  private final Writer writer;
+
+  private final boolean csv;
+
+  private final List<DerivedMetric> metrics;
+
+  private final DateFormat dateFormat = DateUtil.newFullDateTimeFormat();
+
+  /**
+   * @param writer the output, it is not flushed nor closed
+   * @param format csv or ndjson
+   * @param metrics the derived metrics to add to every report
+   */
+  public ReportExportWriter(Writer writer, String format, List<DerivedMetric> metrics) {
+    if (!CSV.equals(format) && !NDJSON.equals(format)) {
+      throw new IllegalArgumentException("Unknown export format: " + format);
+    }
+    this.writer = writer;
+    this.csv = CSV.equals(format);
+    this.metrics = metrics;
+  }
+
+  /**
+   * Writes the CSV header row, nothing for NDJSON.
+   */
+  public void writeHeader() throws IOException {
+    if (!csv) {
+      return;
+    }
+    writer.write(DeviceTemperatureHumidityReport.DEVICE_ID + ","
+        + DeviceTemperatureHumidityReport.ID + "," + DeviceTemperatureHumidityReport.DATE
+        + "," + DeviceTemperatureHumidityReport.TEMPERATURE + ","
+        + DeviceTemperatureHumidityReport.HUMIDITY);
+    for (DerivedMetric metric : metrics) {
+      writer.write(',');
+      writer.write(metric.getName());
+    }
+    writer.write('\n');
+  }
+
+  public void write(DeviceTemperatureHumidityReport report) throws IOException {
+    long id = report.getId() == null ? 0 : report.getId();
+    if (!csv) {
+      // JsonWriter writes straight to the writer, it is not closed to keep it open
+      SeriesJsonWriter.writeReport(new JsonWriter(writer), dateFormat, id, report.deviceId(),
+          report.getDate().getTime(), report.getTemperature(), report.getHumidity(), metrics);
+      writer.write('\n');
+      return;
+    }
+    writer.write(String.valueOf(report.deviceId()));
+    writer.write(',');
+    // Archived reports have no id
+    if (id != 0) {
+      writer.write(Long.toString(id));
+    }
+    writer.write(',');
+    writer.write(dateFormat.format(new Date(report.getDate().getTime())));
+    writer.write(',');
+    writer.write(Float.toString(report.getTemperature()));
+    writer.write(',');
+    writer.write(Float.toString(report.getHumidity()));
+    for (DerivedMetric metric : metrics) {
+      writer.write(',');
+      writer.write(Double.toString(
+          metric.compute(report.getTemperature(), report.getHumidity())));
+    }
+    writer.write('\n');
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the samples stored in the archive blobs, also used as the binary
+ * wire format of the series.
+ *
+ * The first byte of a blob is the format version. Version 1 blobs are the
+ * deflated sample count followed by the (long date, float temperature, float
+ * humidity) records, version 2 blobs use the {@link GorillaSeriesCodec}.
+ * Entity ids are not encoded.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class SampleArchiveCodec {
+
+  static final byte VERSION_DEFLATE = 1;
+  static final byte VERSION_GORILLA = 2;
+
+  // Size of the version 1 records, and the best ratio deflate can reach
+  private static final int RECORD_BYTES = 8 + 4 + 4;
+  private static final int MAX_DEFLATE_RATIO = 1032;
+
+  /**
+   * Private constructor.
+   */
+  private SampleArchiveCodec() {}
+
+  /**
+   * @param series the samples to encode
+   * @return the encoded blob
+   */
+  public static byte[] encode(SampleSeries series) {
+    byte[] gorilla = GorillaSeriesCodec.encode(series);
+    byte[] data = new byte[gorilla.length + 1];
+    data[0] = VERSION_GORILLA;
+    System.arraycopy(gorilla, 0, data, 1, gorilla.length);
+    return data;
+  }
+
+  /**
+   * @param deviceId the Device of the samples
+   * @param data the encoded blob
+   * @return the samples in the order they were encoded
+   * @throws IOException error decompressing the samples, unknown version or
+   *         corrupt size
+   */
+  public static SampleSeries decode(Long deviceId, byte[] data) throws IOException {
+    if (data == null || data.length == 0) {
+      return new SampleSeries(deviceId);
+    }
+    if (data[0] == VERSION_GORILLA) {
+      return GorillaSeriesCodec.decode(deviceId, data, 1);
+    }
+    if (data[0] != VERSION_DEFLATE) {
+      throw new IOException("Unknown archive version: " + data[0]);
+    }
+    DataInputStream in = new DataInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1)));
+    try {
+      int size = in.readInt();
+      if (size < 0 || (long) size * RECORD_BYTES > (long) (data.length - 1) * MAX_DEFLATE_RATIO) {
+        throw new IOException("Corrupt archive size: " + size);
+      }
+      SampleSeries series = new SampleSeries(deviceId, size);
+      for (int i = 0; i < size; i++) {
+        series.add(0, in.readLong(), in.readFloat(), in.readFloat());
+      }
+      return series;
+    } finally {
+      in.close();
+    }
+  }
+}
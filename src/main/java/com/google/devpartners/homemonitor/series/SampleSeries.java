@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+
+/**
+ * Columnar holder of the temperature/humidity samples of one Device.
+ *
+ * Used to move samples between the storage tiers and the writers without
+ * creating one {@link DeviceTemperatureHumidityReport} per sample. An id of
+ * {@code 0} means the sample has no entity id.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class SampleSeries {
+
+  private final Long deviceId;
+
+  private long[] ids;
+  private long[] dates;
+  private float[] temperatures;
+  private float[] humidities;
+  private int size;
+
+  public SampleSeries(Long deviceId) {
+    this(deviceId, 16);
+  }
+
+  public SampleSeries(Long deviceId, int initialCapacity) {
+    this.deviceId = deviceId;
+    int capacity = Math.max(initialCapacity, 1);
+    ids = new long[capacity];
+    dates = new long[capacity];
+    temperatures = new float[capacity];
+    humidities = new float[capacity];
+  }
+
+  /**
+   * Creates a series from a list of reports, keeping the list order.
+   */
+  public static SampleSeries fromReports(Long deviceId,
+      List<DeviceTemperatureHumidityReport> reports) {
+    SampleSeries series = new SampleSeries(deviceId, reports.size());
+    for (DeviceTemperatureHumidityReport report : reports) {
+      series.add(report.getId() == null ? 0 : report.getId(), report.getDate().getTime(),
+          report.getTemperature(), report.getHumidity());
+    }
+    return series;
+  }
+
+  public void add(long id, long date, float temperature, float humidity) {
+    if (size == dates.length) {
+      int capacity = size * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      dates = Arrays.copyOf(dates, capacity);
+      temperatures = Arrays.copyOf(temperatures, capacity);
+      humidities = Arrays.copyOf(humidities, capacity);
+    }
+    ids[size] = id;
+    dates[size] = date;
+    temperatures[size] = temperature;
+    humidities[size] = humidity;
+    size++;
+  }
+
+  public Long getDeviceId() {
+    return deviceId;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getId(int index) {
+    return ids[index];
+  }
+
+  public long getDate(int index) {
+    return dates[index];
+  }
+
+  public float getTemperature(int index) {
+    return temperatures[index];
+  }
+
+  public float getHumidity(int index) {
+    return humidities[index];
+  }
+}
@@ -0,0 +1,329 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.math.LongMath;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a {@link SampleSeries} in the formats returned by the Rest entry
+ * points.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class SeriesJsonWriter {
+
+  /**
+   * Private constructor.
+   */
+  private SeriesJsonWriter() {}
+
+  /**
+   * Writes the series as a JSON array of {@link DeviceTemperatureHumidityReport}s,
+   * the same output that {@code Gson} produces for the entities.
+   *
+   * @param series the samples to write
+   * @return the JSON array as a String
+   * @throws IOException error writing the JSON
+   */
+  public static String toReportsJson(SampleSeries series) throws IOException {
+    return toReportsJson(series, Collections.<DerivedMetric>emptyList());
+  }
+
+  /**
+   * Writes the series as a JSON array of {@link DeviceTemperatureHumidityReport}s,
+   * adding the derived metrics to every report.
+   *
+   * @param series the samples to write
+   * @param metrics the derived metrics, computed while writing
+   * @return the JSON array as a String
+   * @throws IOException error writing the JSON
+   */
+  public static String toReportsJson(SampleSeries series, List<DerivedMetric> metrics)
+      throws IOException {
+    StringWriter stringWriter = new StringWriter();
+    JsonWriter writer = new JsonWriter(stringWriter);
+    DateFormat dateFormat = DateUtil.newFullDateTimeFormat();
+    writer.beginArray();
+    for (int i = 0; i < series.size(); i++) {
+      writeReport(writer, dateFormat, series.getId(i), series.getDeviceId(), series.getDate(i),
+          series.getTemperature(i), series.getHumidity(i), metrics);
+    }
+    writer.endArray();
+    writer.close();
+    return stringWriter.toString();
+  }
+
+  /**
+   * Writes the reports, of one or several Devices, as a JSON array of
+   * {@link DeviceTemperatureHumidityReport}s, adding the derived metrics to
+   * every report.
+   *
+   * @param reports the reports to write
+   * @param metrics the derived metrics, computed while writing
+   * @return the JSON array as a String
+   * @throws IOException error writing the JSON
+   */
+  public static String toReportsJson(List<DeviceTemperatureHumidityReport> reports,
+      List<DerivedMetric> metrics) throws IOException {
+    StringWriter stringWriter = new StringWriter();
+    JsonWriter writer = new JsonWriter(stringWriter);
+    DateFormat dateFormat = DateUtil.newFullDateTimeFormat();
+    writer.beginArray();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      writeReport(writer, dateFormat, report.getId() == null ? 0 : report.getId(),
+          report.deviceId(), report.getDate().getTime(), report.getTemperature(),
+          report.getHumidity(), metrics);
+    }
+    writer.endArray();
+    writer.close();
+    return stringWriter.toString();
+  }
+
+  /**
+   * Writes the series averaged in buckets, as a JSON array of objects with the
+   * date of the bucket, the temperature, the humidity and the number of
+   * samples, newest bucket first. Buckets without samples are skipped.
+   *
+   * @param writer the writer, positioned where the array goes
+   * @param dateFormat the format of the dates
+   * @param series the samples, in any order
+   * @param bucketMillis the size of the buckets
+   * @throws IOException error writing the JSON
+   */
+  public static void writeBuckets(JsonWriter writer, DateFormat dateFormat, SampleSeries series,
+      long bucketMillis) throws IOException {
+    // Per bucket: temperature sum, humidity sum and count
+    TreeMap<Long, double[]> buckets = new TreeMap<Long, double[]>();
+    for (int i = 0; i < series.size(); i++) {
+      long date = series.getDate(i);
+      long bucket = date - LongMath.mod(date, bucketMillis);
+      double[] sums = buckets.get(bucket);
+      if (sums == null) {
+        sums = new double[3];
+        buckets.put(bucket, sums);
+      }
+      sums[0] += series.getTemperature(i);
+      sums[1] += series.getHumidity(i);
+      sums[2]++;
+    }
+
+    writer.beginArray();
+    for (Map.Entry<Long, double[]> bucket : buckets.descendingMap().entrySet()) {
+      double[] sums = bucket.getValue();
+      writer.beginObject();
+      writer.name(DeviceTemperatureHumidityReport.DATE)
+          .value(dateFormat.format(new Date(bucket.getKey())));
+      writer.name(DeviceTemperatureHumidityReport.TEMPERATURE).value(sums[0] / sums[2]);
+      writer.name(DeviceTemperatureHumidityReport.HUMIDITY).value(sums[1] / sums[2]);
+      writer.name("count").value((long) sums[2]);
+      writer.endObject();
+    }
+    writer.endArray();
+  }
+
+  static void writeReport(JsonWriter writer, DateFormat dateFormat, long id,
+      Long deviceId, long date, float temperature, float humidity, List<DerivedMetric> metrics)
+      throws IOException {
+    writer.beginObject();
+    writer.name("temperature").value(Float.valueOf(temperature));
+    writer.name("humidity").value(Float.valueOf(humidity));
+    for (DerivedMetric metric : metrics) {
+      writer.name(metric.getName()).value(metric.compute(temperature, humidity));
+    }
+    if (id != 0) {
+      writer.name(DeviceTemperatureHumidityReport.ID).value(id);
+    }
+    if (deviceId != null) {
+      writer.name(DeviceTemperatureHumidityReport.DEVICE_ID).value(deviceId);
+    }
+    writer.name(DeviceTemperatureHumidityReport.DATE).value(dateFormat.format(new Date(date)));
+    writer.endObject();
+  }
+
+  /**
+   * Transforms the series to the google-chart DataTable format.
+   *
+   * @param series the samples to write
+   * @return the DataTable JSON object
+   * @throws JSONException error creating the JSON
+   */
+  public static JSONObject toGoogleChart(SampleSeries series) throws JSONException {
+    return toGoogleChart(series, Collections.<DerivedMetric>emptyList());
+  }
+
+  /**
+   * Transforms the series to the google-chart DataTable format, with a column
+   * per derived metric after the Temperature.
+   *
+   * @param series the samples to write
+   * @param metrics the derived metrics, computed while writing
+   * @return the DataTable JSON object
+   * @throws JSONException error creating the JSON
+   */
+  public static JSONObject toGoogleChart(SampleSeries series, List<DerivedMetric> metrics)
+      throws JSONException {
+    JSONObject data = new JSONObject();
+    JSONArray columns = new JSONArray();
+    columns.put(new JSONObject("{label: 'Date', type: 'date'}"));
+    columns.put(new JSONObject("{label: 'Humidity', type: 'number'}"));
+    columns.put(new JSONObject("{label: 'Temperature', type: 'number'}"));
+    for (DerivedMetric metric : metrics) {
+      columns.put(new JSONObject().put("label", metric.getLabel()).put("type", "number"));
+    }
+    data.put("cols", columns);
+
+    JSONArray rows = new JSONArray();
+    for (int i = 0; i < series.size(); i++) {
+      JSONArray cArray = new JSONArray();
+
+      JSONObject date = new JSONObject();
+      date.put("v", DateUtil.getGoogleChartsDateTime(new Date(series.getDate(i))));
+      cArray.put(date);
+
+      JSONObject humidity = new JSONObject();
+      humidity.put("v", series.getHumidity(i));
+      cArray.put(humidity);
+
+      JSONObject temperature = new JSONObject();
+      temperature.put("v", series.getTemperature(i));
+      cArray.put(temperature);
+
+      for (DerivedMetric metric : metrics) {
+        cArray.put(new JSONObject().put("v",
+            metric.compute(series.getTemperature(i), series.getHumidity(i))));
+      }
+
+      JSONObject row = new JSONObject();
+      row.put("c", cArray);
+
+      rows.put(row);
+    }
+    data.put("rows", rows);
+    return data;
+  }
+
+  /**
+   * Transforms the reports of several Devices to one google-chart DataTable,
+   * with a Humidity and a Temperature column per Device. The dates are
+   * aligned to buckets shared by all the Devices, every cell is the average
+   * of the samples of the Device in the bucket, or null when it has none.
+   *
+   * @param deviceIds the Devices, in the order of the columns
+   * @param reports the reports of all the Devices
+   * @param bucketMillis the size of the buckets, 0 to use the dates as they are
+   * @return the DataTable JSON object, newest bucket first
+   * @throws JSONException error creating the JSON
+   */
+  public static JSONObject toGoogleChart(List<Long> deviceIds,
+      List<DeviceTemperatureHumidityReport> reports, long bucketMillis) throws JSONException {
+    return toGoogleChart(deviceIds, reports, bucketMillis,
+        Collections.<DerivedMetric>emptyList());
+  }
+
+  /**
+   * Transforms the reports of several Devices to one google-chart DataTable,
+   * with a column per derived metric after the Temperature of every Device.
+   * The derived metrics of a bucket are the average of the ones of its
+   * samples.
+   *
+   * @param deviceIds the Devices, in the order of the columns
+   * @param reports the reports of all the Devices
+   * @param bucketMillis the size of the buckets, 0 to use the dates as they are
+   * @param metrics the derived metrics, computed while bucketing
+   * @return the DataTable JSON object, newest bucket first
+   * @throws JSONException error creating the JSON
+   */
+  public static JSONObject toGoogleChart(List<Long> deviceIds,
+      List<DeviceTemperatureHumidityReport> reports, long bucketMillis,
+      List<DerivedMetric> metrics) throws JSONException {
+    JSONObject data = new JSONObject();
+    JSONArray columns = new JSONArray();
+    columns.put(new JSONObject("{label: 'Date', type: 'date'}"));
+    for (Long deviceId : deviceIds) {
+      columns.put(new JSONObject().put("label", "Humidity " + deviceId).put("type", "number"));
+      columns.put(new JSONObject().put("label", "Temperature " + deviceId).put("type", "number"));
+      for (DerivedMetric metric : metrics) {
+        columns.put(new JSONObject().put("label", metric.getLabel() + " " + deviceId)
+            .put("type", "number"));
+      }
+    }
+    data.put("cols", columns);
+
+    // Per bucket and Device: humidity sum, temperature sum, count and the sum
+    // of every derived metric
+    TreeMap<Long, double[][]> buckets = new TreeMap<Long, double[][]>();
+    for (DeviceTemperatureHumidityReport report : reports) {
+      int column = deviceIds.indexOf(report.deviceId());
+      if (column < 0) {
+        continue;
+      }
+      long date = report.getDate().getTime();
+      long bucket = bucketMillis > 0 ? date - LongMath.mod(date, bucketMillis) : date;
+      double[][] sums = buckets.get(bucket);
+      if (sums == null) {
+        sums = new double[deviceIds.size()][3 + metrics.size()];
+        buckets.put(bucket, sums);
+      }
+      sums[column][0] += report.getHumidity();
+      sums[column][1] += report.getTemperature();
+      sums[column][2]++;
+      for (int i = 0; i < metrics.size(); i++) {
+        sums[column][3 + i] +=
+            metrics.get(i).compute(report.getTemperature(), report.getHumidity());
+      }
+    }
+
+    JSONArray rows = new JSONArray();
+    for (Map.Entry<Long, double[][]> bucket : buckets.descendingMap().entrySet()) {
+      JSONArray cArray = new JSONArray();
+
+      JSONObject date = new JSONObject();
+      date.put("v", DateUtil.getGoogleChartsDateTime(new Date(bucket.getKey())));
+      cArray.put(date);
+
+      for (double[] sums : bucket.getValue()) {
+        cArray.put(new JSONObject().put("v", sums[2] == 0 ? JSONObject.NULL : sums[0] / sums[2]));
+        cArray.put(new JSONObject().put("v", sums[2] == 0 ? JSONObject.NULL : sums[1] / sums[2]));
+        for (int i = 0; i < metrics.size(); i++) {
+          cArray.put(
+              new JSONObject().put("v", sums[2] == 0 ? JSONObject.NULL : sums[3 + i] / sums[2]));
+        }
+      }
+
+      JSONObject row = new JSONObject();
+      row.put("c", cArray);
+
+      rows.put(row);
+    }
+    data.put("rows", rows);
+    return data;
+  }
+}
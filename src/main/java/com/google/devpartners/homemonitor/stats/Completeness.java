@@ -0,0 +1,194 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.util.DateUtil;
+
+/**
+ * Reporting completeness of a Device between two dates, from the minute
+ * bitmaps of its {@link DeviceDailyRollup}s.
+ *
+ * The range is split in slots of the reporting interval of the Device, the
+ * completeness is the percentage of slots with at least one report. A gap is
+ * a run of minutes without reports at least as long as the gap minutes.
+ *
+ * The minutes of a rollup saved without a bitmap are unknown: their slots are
+ * left out of the completeness, and they end the gaps.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class Completeness {
+
+  private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final long start;
+
+  private final int minutes;
+
+  // Bit n is the minute n of the range
+  private final BitSet bits;
+
+  // Minutes of the range whose rollup has no bitmap
+  private final BitSet unknown;
+
+  /**
+   * @param rollups the rollups of the days of the range, in any order
+   * @param dateStart the first minute of the range
+   * @param dateEnd the end of the range, excluded
+   */
+  public Completeness(List<DeviceDailyRollup> rollups, Date dateStart, Date dateEnd) {
+    start = dateStart.getTime() - dateStart.getTime() % MINUTE_MILLIS;
+    minutes = (int) Math.max(0, (dateEnd.getTime() - start) / MINUTE_MILLIS);
+    bits = new BitSet(minutes);
+    unknown = new BitSet(minutes);
+    for (DeviceDailyRollup rollup : rollups) {
+      long offset = (rollup.getDay().getTime() - start) / MINUTE_MILLIS;
+      if (rollup.getMinutes() == null) {
+        int from = (int) Math.max(0, Math.min(minutes, offset));
+        int to = (int) Math.max(0, Math.min(minutes, offset + DailyRollup.MINUTES_PER_DAY));
+        unknown.set(from, to);
+        continue;
+      }
+      BitSet day = BitSet.valueOf(rollup.getMinutes());
+      for (int i = day.nextSetBit(0); i >= 0; i = day.nextSetBit(i + 1)) {
+        long minute = offset + i;
+        if (minute >= 0 && minute < minutes) {
+          bits.set((int) minute);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the percentage of the known slots of the range with reports, or
+   *         null if no slot is known
+   */
+  public Double getCompleteness(int slotMinutes) {
+    return getCompleteness(0, minutes, slotMinutes);
+  }
+
+  private Double getCompleteness(int from, int to, int slotMinutes) {
+    int slots = 0;
+    int reported = 0;
+    for (int slot = from; slot < to; slot += slotMinutes) {
+      int end = Math.min(to, slot + slotMinutes);
+      int next = bits.nextSetBit(slot);
+      if (next >= 0 && next < end) {
+        reported++;
+      } else {
+        int nextUnknown = unknown.nextSetBit(slot);
+        if (nextUnknown >= 0 && nextUnknown < end) {
+          continue;
+        }
+      }
+      slots++;
+    }
+    return slots == 0 ? null : 100.0 * reported / slots;
+  }
+
+  /**
+   * @return the completeness of every UTC day of the range
+   */
+  public List<Map<String, Object>> getDays(int slotMinutes) {
+    List<Map<String, Object>> days = Lists.newArrayList();
+    DateTime day = DateUtil.startOfDayUtc(new Date(start));
+    while (day.getMillis() < start + minutes * MINUTE_MILLIS) {
+      int from = (int) Math.max(0, (day.getMillis() - start) / MINUTE_MILLIS);
+      DateTime next = day.plusDays(1);
+      int to = (int) Math.min(minutes, (next.getMillis() - start) / MINUTE_MILLIS);
+
+      Map<String, Object> map = Maps.newLinkedHashMap();
+      map.put("day", day.toDate());
+      map.put("completeness", getCompleteness(from, to, slotMinutes));
+      days.add(map);
+      day = next;
+    }
+    return days;
+  }
+
+  /**
+   * @return the gaps of the range, oldest first, with their start, end and
+   *         length in minutes
+   */
+  public List<Map<String, Object>> getGaps(int gapMinutes) {
+    List<Map<String, Object>> gaps = Lists.newArrayList();
+    BitSet known = (BitSet) bits.clone();
+    known.or(unknown);
+    int from = known.nextClearBit(0);
+    while (from < minutes) {
+      int to = known.nextSetBit(from);
+      if (to < 0 || to > minutes) {
+        to = minutes;
+      }
+      if (to - from >= gapMinutes) {
+        Map<String, Object> gap = Maps.newLinkedHashMap();
+        gap.put("start", new Date(start + from * MINUTE_MILLIS));
+        gap.put("end", new Date(start + to * MINUTE_MILLIS));
+        gap.put("minutes", to - from);
+        gaps.add(gap);
+      }
+      from = known.nextClearBit(to);
+    }
+    return gaps;
+  }
+
+  /**
+   * @return the completeness of the range and of every day, and the gaps
+   */
+  public Map<String, Object> toMap(int slotMinutes, int gapMinutes) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("completeness", getCompleteness(slotMinutes));
+    map.put("slotMinutes", slotMinutes);
+    map.put("gapMinutes", gapMinutes);
+    map.put("unknownMinutes", unknown.cardinality());
+    map.put("days", getDays(slotMinutes));
+    map.put("gaps", getGaps(gapMinutes));
+    return map;
+  }
+
+  /**
+   * @return the completeness of the range, and the number, total and longest
+   *         length of the gaps
+   */
+  public Map<String, Object> toSummaryMap(int slotMinutes, int gapMinutes) {
+    int total = 0;
+    int longest = 0;
+    List<Map<String, Object>> gaps = getGaps(gapMinutes);
+    for (Map<String, Object> gap : gaps) {
+      int length = (Integer) gap.get("minutes");
+      total += length;
+      longest = Math.max(longest, length);
+    }
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("completeness", getCompleteness(slotMinutes));
+    map.put("slotMinutes", slotMinutes);
+    map.put("unknownMinutes", unknown.cardinality());
+    map.put("gaps", gaps.size());
+    map.put("totalGapMinutes", total);
+    map.put("longestGapMinutes", longest);
+    return map;
+  }
+}
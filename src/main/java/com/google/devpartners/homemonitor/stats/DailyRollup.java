@@ -0,0 +1,183 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.series.DerivedMetric;
+import com.google.devpartners.homemonitor.util.DateUtil;
+
+/**
+ * Mergeable summary of the readings of a Device, the values of one or more
+ * {@link DeviceDailyRollup}s.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DailyRollup {
+
+  public static final int MINUTES_PER_DAY = 1440;
+
+  private final Long deviceId;
+
+  private final Date day;
+
+  private long count;
+
+  private double temperatureSum;
+
+  private double humiditySum;
+
+  private final TDigest temperature = new TDigest();
+
+  private final TDigest humidity = new TDigest();
+
+  // Reports with the derived metrics, the rollups stored before they were
+  // added have none
+  private long derivedCount;
+
+  private final double[] derivedSums = new double[DerivedMetric.values().length];
+
+  // Minutes of the day with at least one report
+  private final BitSet minutes = new BitSet(MINUTES_PER_DAY);
+
+  public DailyRollup(Long deviceId, Date day) {
+    this.deviceId = deviceId;
+    this.day = DateUtil.startOfDayUtc(day).toDate();
+  }
+
+  public void add(Date date, float temperatureValue, float humidityValue) {
+    long minute = TimeUnit.MILLISECONDS.toMinutes(date.getTime() - day.getTime());
+    if (minute >= 0 && minute < MINUTES_PER_DAY) {
+      minutes.set((int) minute);
+    }
+    count++;
+    temperatureSum += temperatureValue;
+    humiditySum += humidityValue;
+    temperature.add(temperatureValue);
+    humidity.add(humidityValue);
+    derivedCount++;
+    for (DerivedMetric metric : DerivedMetric.values()) {
+      derivedSums[metric.ordinal()] += metric.compute(temperatureValue, humidityValue);
+    }
+  }
+
+  /**
+   * Adds the values of the stored rollup to this one.
+   */
+  public void merge(DeviceDailyRollup rollup) {
+    if (rollup.getCount() == 0) {
+      return;
+    }
+    count += rollup.getCount();
+    temperatureSum += rollup.getTemperatureSum();
+    humiditySum += rollup.getHumiditySum();
+    temperature.merge(TDigest.fromBytes(rollup.getTemperatureDigest()));
+    humidity.merge(TDigest.fromBytes(rollup.getHumidityDigest()));
+    if (rollup.getMinutes() != null) {
+      minutes.or(BitSet.valueOf(rollup.getMinutes()));
+    }
+    if (rollup.getDerivedCount() > 0) {
+      derivedCount += rollup.getDerivedCount();
+      for (DerivedMetric metric : DerivedMetric.values()) {
+        Double sum = rollup.getDerivedSums().get(metric.getName());
+        derivedSums[metric.ordinal()] += sum == null ? 0 : sum;
+      }
+    }
+  }
+
+  /**
+   * Adds the values of this rollup to the stored one.
+   */
+  public void mergeInto(DeviceDailyRollup rollup) {
+    DailyRollup sum = new DailyRollup(deviceId, day);
+    sum.merge(rollup);
+    sum.count += count;
+    sum.temperatureSum += temperatureSum;
+    sum.humiditySum += humiditySum;
+    sum.temperature.merge(temperature);
+    sum.humidity.merge(humidity);
+    sum.minutes.or(minutes);
+    sum.derivedCount += derivedCount;
+    Map<String, Double> sums = Maps.newHashMap();
+    for (DerivedMetric metric : DerivedMetric.values()) {
+      sums.put(metric.getName(), sum.derivedSums[metric.ordinal()] + derivedSums[metric.ordinal()]);
+    }
+    rollup.setValues(sum.count, sum.temperatureSum, sum.humiditySum, sum.temperature.toBytes(),
+        sum.humidity.toBytes());
+    rollup.setDerivedValues(sum.derivedCount, sums);
+    rollup.setMinutes(sum.minutes.toByteArray());
+  }
+
+  /**
+   * @return the rollup of the day as a new entity
+   */
+  public DeviceDailyRollup toEntity() {
+    DeviceDailyRollup rollup = new DeviceDailyRollup(deviceId, day);
+    mergeInto(rollup);
+    return rollup;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @param percentiles the percentiles, between 0 and 100
+   * @param metrics the derived metrics to include
+   * @return the count, the mean, minimum, maximum and percentiles of the
+   *         temperature and of the humidity, and the mean of the derived
+   *         metrics
+   */
+  public Map<String, Object> toMap(double[] percentiles, List<DerivedMetric> metrics) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("count", count);
+    if (count > 0) {
+      map.put("temperature", toMap(temperature, temperatureSum, percentiles));
+      map.put("humidity", toMap(humidity, humiditySum, percentiles));
+    }
+    if (derivedCount > 0) {
+      for (DerivedMetric metric : metrics) {
+        Map<String, Object> derived = Maps.newLinkedHashMap();
+        derived.put("mean", derivedSums[metric.ordinal()] / derivedCount);
+        map.put(metric.getName(), derived);
+      }
+    }
+    return map;
+  }
+
+  private Map<String, Object> toMap(TDigest digest, double sum, double[] percentiles) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("mean", sum / count);
+    map.put("min", digest.getMin());
+    map.put("max", digest.getMax());
+    Map<String, Double> values = Maps.newLinkedHashMap();
+    for (double percentile : percentiles) {
+      values.put(formatPercentile(percentile), digest.quantile(percentile / 100));
+    }
+    map.put("percentiles", values);
+    return map;
+  }
+
+  private static String formatPercentile(double percentile) {
+    return percentile == Math.rint(percentile) ? Long.toString((long) percentile)
+        : Double.toString(percentile);
+  }
+}
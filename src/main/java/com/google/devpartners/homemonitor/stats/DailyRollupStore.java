@@ -0,0 +1,139 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.task.RollupMergeTask;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+
+/**
+ * Accumulates the reports received by the instance into {@link DailyRollup}s
+ * per Device and day, and merges them into the stored
+ * {@link DeviceDailyRollup}s once per flush interval.
+ *
+ * Every rollup is merged by its own {@link RollupMergeTask}, out of the
+ * request path. The rollups of a day are rebuilt from its reports the next
+ * day, which fixes the readings of the rollups that could not be merged.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DailyRollupStore {
+
+  private static final Logger LOGGER = Logger.getLogger(DailyRollupStore.class.getName());
+
+  public static final String FLUSH_SECONDS = "homemonitor.rollup.flushSeconds";
+
+  private final long flushMillis;
+
+  private final ConcurrentMap<String, Delta> deltas = new ConcurrentHashMap<String, Delta>();
+
+  private volatile long flushed = System.currentTimeMillis();
+
+  private final AtomicBoolean flushing = new AtomicBoolean();
+
+  public DailyRollupStore() {
+    this(TimeUnit.SECONDS.toMillis(ConfigUtil.getInt(FLUSH_SECONDS, 60)));
+  }
+
+  public DailyRollupStore(long flushMillis) {
+    this.flushMillis = flushMillis;
+  }
+
+  /**
+   * Adds the report to the rollup of its Device and day, and merges the
+   * rollups if the flush is due.
+   */
+  public void add(DeviceTemperatureHumidityReport report) {
+    if (report.deviceId() == null || report.getDate() == null) {
+      return;
+    }
+    String id = DeviceDailyRollup.createId(report.deviceId(), report.getDate());
+    while (true) {
+      Delta delta = deltas.get(id);
+      if (delta == null) {
+        Delta newDelta = new Delta(new DailyRollup(report.deviceId(), report.getDate()));
+        delta = deltas.putIfAbsent(id, newDelta);
+        if (delta == null) {
+          delta = newDelta;
+        }
+      }
+      synchronized (delta) {
+        // A delta taken by a flush is replaced by a new one
+        if (!delta.flushed) {
+          delta.rollup.add(report.getDate(), report.getTemperature(), report.getHumidity());
+          break;
+        }
+      }
+    }
+    flushIfDue();
+  }
+
+  private void flushIfDue() {
+    if (System.currentTimeMillis() - flushed < flushMillis || deltas.isEmpty()
+        || !flushing.compareAndSet(false, true)) {
+      return;
+    }
+    List<RollupMergeTask> tasks = Lists.newArrayList();
+    try {
+      for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+        Delta delta = entry.getValue();
+        deltas.remove(entry.getKey(), delta);
+        synchronized (delta) {
+          delta.flushed = true;
+          tasks.add(new RollupMergeTask(delta.rollup.toEntity(), UUID.randomUUID().toString(),
+              new Date(delta.started)));
+        }
+      }
+      RollupMergeTask.enqueue(tasks);
+    } catch (RuntimeException e) {
+      // The rollups are rebuilt from the reports the next day
+      LOGGER.warning("Could not merge " + tasks.size() + " DeviceDailyRollups: "
+          + e.getMessage());
+      Metrics.increment("rollup.lost");
+    } finally {
+      flushed = System.currentTimeMillis();
+      flushing.set(false);
+    }
+  }
+
+  /**
+   * Rollup being accumulated, until a flush takes it.
+   */
+  private static class Delta {
+
+    private final DailyRollup rollup;
+
+    private final long started = System.currentTimeMillis();
+
+    private boolean flushed;
+
+    Delta(DailyRollup rollup) {
+      this.rollup = rollup;
+    }
+  }
+}
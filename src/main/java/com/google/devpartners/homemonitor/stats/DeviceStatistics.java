@@ -0,0 +1,123 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Incremental statistics of the readings of one Device: the exponentially
+ * weighted moving average, and the {@link WindowStatistics} of every window,
+ * for the temperature and the humidity.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DeviceStatistics {
+
+  private final Long deviceId;
+
+  private long lastDate = Long.MIN_VALUE;
+
+  private final MetricStatistics temperature;
+
+  private final MetricStatistics humidity;
+
+  DeviceStatistics(Long deviceId, List<Long> windowsMillis, long ewmaMillis) {
+    this.deviceId = deviceId;
+    this.temperature = new MetricStatistics(windowsMillis, ewmaMillis);
+    this.humidity = new MetricStatistics(windowsMillis, ewmaMillis);
+  }
+
+  /**
+   * Adds a reading, readings that are not newer than the last one are ignored.
+   *
+   * @return true if the reading was added
+   */
+  synchronized boolean add(long date, float temperatureValue, float humidityValue) {
+    if (date <= lastDate) {
+      return false;
+    }
+    long elapsed = lastDate == Long.MIN_VALUE ? 0 : date - lastDate;
+    lastDate = date;
+    temperature.add(date, elapsed, temperatureValue);
+    humidity.add(date, elapsed, humidityValue);
+    return true;
+  }
+
+  /**
+   * @param now the end of the windows
+   * @return the statistics of the windows ending now
+   */
+  public synchronized Map<String, Object> toMap(long now) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("deviceId", deviceId);
+    if (lastDate != Long.MIN_VALUE) {
+      map.put("lastDate", new Date(lastDate));
+    }
+    map.put("temperature", temperature.toMap(now));
+    map.put("humidity", humidity.toMap(now));
+    return map;
+  }
+
+  /**
+   * Statistics of one metric.
+   */
+  private static class MetricStatistics {
+
+    private final long ewmaMillis;
+
+    private final List<WindowStatistics> windows = Lists.newArrayList();
+
+    private double ewma = Double.NaN;
+
+    MetricStatistics(List<Long> windowsMillis, long ewmaMillis) {
+      this.ewmaMillis = ewmaMillis;
+      for (Long windowMillis : windowsMillis) {
+        windows.add(new WindowStatistics(windowMillis));
+      }
+    }
+
+    void add(long date, long elapsed, float value) {
+      if (Double.isNaN(ewma)) {
+        ewma = value;
+      } else {
+        // The weight of the reading depends on the time since the last one,
+        // so irregular reporting doesn't bias the average
+        double alpha = 1 - Math.exp(-(double) elapsed / ewmaMillis);
+        ewma += alpha * (value - ewma);
+      }
+      for (WindowStatistics window : windows) {
+        window.add(date, value);
+      }
+    }
+
+    Map<String, Object> toMap(long now) {
+      Map<String, Object> map = Maps.newLinkedHashMap();
+      if (!Double.isNaN(ewma)) {
+        map.put("ewma", ewma);
+      }
+      List<Map<String, Object>> windowMaps = Lists.newArrayList();
+      for (WindowStatistics window : windows) {
+        windowMaps.add(window.toMap(now));
+      }
+      map.put("windows", windowMaps);
+      return map;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.series.RecentWindowStore;
+import com.google.devpartners.homemonitor.series.SampleSeries;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+
+/**
+ * Computes the {@link DeviceStatistics} of a Device when they are read, so
+ * that trends are served without keeping state per Device.
+ *
+ * The statistics are computed from the samples of the hot tier, that are
+ * synced with the reports received by every instance. When the hot tier can
+ * not answer, the reports of the longest window are loaded instead.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class StatisticsStore {
+
+  public static final String WINDOW_MINUTES = "homemonitor.stats.windowMinutes";
+  public static final String EWMA_MINUTES = "homemonitor.stats.ewmaMinutes";
+
+  private final RecentWindowStore recentWindowStore;
+
+  private final List<Long> windowsMillis;
+
+  private final long ewmaMillis;
+
+  public StatisticsStore(RecentWindowStore recentWindowStore) {
+    this(recentWindowStore, parseMinutes(ConfigUtil.getString(WINDOW_MINUTES, "15,60,1440")),
+        TimeUnit.MINUTES.toMillis(ConfigUtil.getInt(EWMA_MINUTES, 15)));
+  }
+
+  public StatisticsStore(RecentWindowStore recentWindowStore, List<Long> windowsMillis,
+      long ewmaMillis) {
+    this.recentWindowStore = recentWindowStore;
+    this.windowsMillis = windowsMillis;
+    this.ewmaMillis = ewmaMillis;
+  }
+
+  /**
+   * @param now the end of the windows
+   * @return the statistics of the Device for the windows ending now
+   */
+  public DeviceStatistics get(EntityPersister persister, Long deviceId, long now) {
+    DeviceStatistics deviceStatistics = new DeviceStatistics(deviceId, windowsMillis, ewmaMillis);
+    Date dateStart = new Date(now - Collections.max(windowsMillis));
+    Date dateEnd = new Date(now);
+    SampleSeries series = recentWindowStore.get(persister, deviceId, dateStart, dateEnd, 0, 0);
+    if (series == null) {
+      series = SampleSeries.fromReports(deviceId, persister.get(
+          DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID,
+          deviceId, DeviceTemperatureHumidityReport.DATE, dateStart, dateEnd));
+    }
+    // Oldest first
+    for (int i = series.size() - 1; i >= 0; i--) {
+      deviceStatistics.add(series.getDate(i), series.getTemperature(i), series.getHumidity(i));
+    }
+    return deviceStatistics;
+  }
+
+  private static List<Long> parseMinutes(String minutes) {
+    List<Long> millis = Lists.newArrayList();
+    for (String value : Splitter.on(',').trimResults().omitEmptyStrings().split(minutes)) {
+      millis.add(TimeUnit.MINUTES.toMillis(Long.parseLong(value)));
+    }
+    return millis;
+  }
+}
@@ -0,0 +1,263 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Mergeable sketch of a distribution to estimate its quantiles, a merging
+ * t-digest.
+ *
+ * The values are summarized in centroids, a mean and a weight, that are
+ * small near the tails and large near the median, so the extreme quantiles
+ * are the most accurate. The size of the digest depends on the compression
+ * and not on the number of values, and two digests merge into the digest of
+ * all their values.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class TDigest {
+
+  public static final double DEFAULT_COMPRESSION = 100;
+
+  private static final int VERSION = 1;
+
+  private final double compression;
+
+  private double[] means;
+  private double[] weights;
+  private int centroids;
+
+  // Values and digests added since the last compression
+  private double[] bufferMeans;
+  private double[] bufferWeights;
+  private int buffered;
+
+  private double totalWeight;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public TDigest() {
+    this(DEFAULT_COMPRESSION);
+  }
+
+  public TDigest(double compression) {
+    this.compression = compression;
+    int capacity = (int) Math.ceil(compression) * 2 + 10;
+    this.means = new double[capacity];
+    this.weights = new double[capacity];
+    this.bufferMeans = new double[capacity * 5];
+    this.bufferWeights = new double[capacity * 5];
+  }
+
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  public void add(double value, double weight) {
+    if (buffered == bufferMeans.length) {
+      compress();
+    }
+    bufferMeans[buffered] = value;
+    bufferWeights[buffered] = weight;
+    buffered++;
+    totalWeight += weight;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds all the values of the other digest to this one.
+   */
+  public void merge(TDigest other) {
+    other.compress();
+    for (int i = 0; i < other.centroids; i++) {
+      add(other.means[i], other.weights[i]);
+    }
+    // The centroids of the other digest may not contain its exact extremes
+    if (other.totalWeight > 0) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  public long size() {
+    return Math.round(totalWeight);
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * @param q the quantile, between 0 and 1
+   * @return the estimated value of the quantile, NaN if the digest is empty
+   */
+  public double quantile(double q) {
+    if (q < 0 || q > 1) {
+      throw new IllegalArgumentException("The quantile must be between 0 and 1: " + q);
+    }
+    compress();
+    if (centroids == 0) {
+      return Double.NaN;
+    }
+    if (centroids == 1) {
+      return means[0];
+    }
+
+    double index = q * totalWeight;
+    // Every centroid is centered on the middle of its weight
+    double left = weights[0] / 2;
+    if (index <= left) {
+      return min + (means[0] - min) * (left == 0 ? 0 : index / left);
+    }
+    double cumulative = left;
+    for (int i = 0; i < centroids - 1; i++) {
+      double step = (weights[i] + weights[i + 1]) / 2;
+      if (index <= cumulative + step) {
+        double fraction = (index - cumulative) / step;
+        return means[i] + fraction * (means[i + 1] - means[i]);
+      }
+      cumulative += step;
+    }
+    double right = weights[centroids - 1] / 2;
+    double fraction = right == 0 ? 1 : Math.min(1, (index - cumulative) / right);
+    return means[centroids - 1] + fraction * (max - means[centroids - 1]);
+  }
+
+  /**
+   * Merges the buffered values into the centroids, a centroid at quantile q
+   * holds at most 4 * n * q * (1 - q) / compression of the n values.
+   */
+  private void compress() {
+    if (buffered == 0) {
+      return;
+    }
+    int count = centroids + buffered;
+    double[] allMeans = Arrays.copyOf(means, count);
+    double[] allWeights = Arrays.copyOf(weights, count);
+    System.arraycopy(bufferMeans, 0, allMeans, centroids, buffered);
+    System.arraycopy(bufferWeights, 0, allWeights, centroids, buffered);
+    sort(allMeans, allWeights, count);
+    buffered = 0;
+
+    int merged = 0;
+    double mergedMean = allMeans[0];
+    double mergedWeight = allWeights[0];
+    double cumulative = 0;
+    for (int i = 1; i < count; i++) {
+      double proposed = mergedWeight + allWeights[i];
+      double q = (cumulative + proposed / 2) / totalWeight;
+      if (proposed <= Math.max(1, 4 * totalWeight * q * (1 - q) / compression)) {
+        mergedMean += (allMeans[i] - mergedMean) * allWeights[i] / proposed;
+        mergedWeight = proposed;
+      } else {
+        cumulative += mergedWeight;
+        append(merged++, mergedMean, mergedWeight);
+        mergedMean = allMeans[i];
+        mergedWeight = allWeights[i];
+      }
+    }
+    append(merged++, mergedMean, mergedWeight);
+    centroids = merged;
+  }
+
+  private void append(int index, double mean, double weight) {
+    if (index == means.length) {
+      means = Arrays.copyOf(means, index * 2);
+      weights = Arrays.copyOf(weights, index * 2);
+    }
+    means[index] = mean;
+    weights[index] = weight;
+  }
+
+  private static void sort(double[] values, double[] weights, int count) {
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    final double[] keys = values;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return Double.compare(keys[i1], keys[i2]);
+      }
+    });
+    double[] sortedValues = new double[count];
+    double[] sortedWeights = new double[count];
+    for (int i = 0; i < count; i++) {
+      sortedValues[i] = values[order[i]];
+      sortedWeights[i] = weights[order[i]];
+    }
+    System.arraycopy(sortedValues, 0, values, 0, count);
+    System.arraycopy(sortedWeights, 0, weights, 0, count);
+  }
+
+  /**
+   * @return the digest as bytes, the means are stored as floats
+   */
+  public byte[] toBytes() {
+    compress();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + centroids * 8);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      out.writeDouble(compression);
+      out.writeDouble(min);
+      out.writeDouble(max);
+      out.writeInt(centroids);
+      for (int i = 0; i < centroids; i++) {
+        out.writeFloat((float) means[i]);
+        out.writeFloat((float) weights[i]);
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not encode the digest", e);
+    }
+  }
+
+  public static TDigest fromBytes(byte[] data) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      int version = in.readByte();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unknown digest version " + version);
+      }
+      TDigest digest = new TDigest(in.readDouble());
+      double min = in.readDouble();
+      double max = in.readDouble();
+      int centroids = in.readInt();
+      for (int i = 0; i < centroids; i++) {
+        digest.add(in.readFloat(), in.readFloat());
+      }
+      digest.min = min;
+      digest.max = max;
+      return digest;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not decode the digest", e);
+    }
+  }
+}
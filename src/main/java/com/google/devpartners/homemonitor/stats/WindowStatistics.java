@@ -0,0 +1,127 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.stats;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+
+/**
+ * Count, mean, variance and rate of change of the values of the last window,
+ * in constant memory.
+ *
+ * The window is split in a fixed number of buckets that keep the sums of the
+ * values, their squares and their times, so the statistics are accurate to
+ * one bucket. The rate of change is the slope of the least squares line of
+ * the values. The times are kept relative to the start of every bucket, so
+ * the sums don't lose precision with epoch dates.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+class WindowStatistics {
+
+  static final int BUCKETS = 12;
+
+  private static final double MILLIS_PER_HOUR = TimeUnit.HOURS.toMillis(1);
+
+  private final long windowMillis;
+
+  private final long bucketMillis;
+
+  private final long[] bucketIds = new long[BUCKETS];
+  private final int[] counts = new int[BUCKETS];
+  private final double[] sums = new double[BUCKETS];
+  private final double[] squareSums = new double[BUCKETS];
+  // Hours since the start of the bucket
+  private final double[] timeSums = new double[BUCKETS];
+  private final double[] timeSquareSums = new double[BUCKETS];
+  private final double[] timeValueSums = new double[BUCKETS];
+
+  WindowStatistics(long windowMillis) {
+    this.windowMillis = windowMillis;
+    this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+    Arrays.fill(bucketIds, Long.MIN_VALUE);
+  }
+
+  void add(long date, double value) {
+    long bucketId = LongMath.divide(date, bucketMillis, RoundingMode.FLOOR);
+    int index = LongMath.mod(bucketId, BUCKETS);
+    if (bucketIds[index] != bucketId) {
+      bucketIds[index] = bucketId;
+      counts[index] = 0;
+      sums[index] = 0;
+      squareSums[index] = 0;
+      timeSums[index] = 0;
+      timeSquareSums[index] = 0;
+      timeValueSums[index] = 0;
+    }
+    double time = (date - bucketId * bucketMillis) / MILLIS_PER_HOUR;
+    counts[index]++;
+    sums[index] += value;
+    squareSums[index] += value * value;
+    timeSums[index] += time;
+    timeSquareSums[index] += time * time;
+    timeValueSums[index] += time * value;
+  }
+
+  /**
+   * @param now the end of the window
+   * @return the statistics of the window ending now
+   */
+  Map<String, Object> toMap(long now) {
+    long newestId = LongMath.divide(now, bucketMillis, RoundingMode.FLOOR);
+    long newestStart = newestId * bucketMillis;
+
+    long count = 0;
+    double sum = 0;
+    double squareSum = 0;
+    double timeSum = 0;
+    double timeSquareSum = 0;
+    double timeValueSum = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (bucketIds[i] > newestId - BUCKETS && bucketIds[i] <= newestId) {
+        // Moves the times of the bucket to hours since the start of the newest one
+        double offset = (bucketIds[i] * bucketMillis - newestStart) / MILLIS_PER_HOUR;
+        count += counts[i];
+        sum += sums[i];
+        squareSum += squareSums[i];
+        timeSum += timeSums[i] + offset * counts[i];
+        timeSquareSum += timeSquareSums[i] + 2 * offset * timeSums[i]
+            + offset * offset * counts[i];
+        timeValueSum += timeValueSums[i] + offset * sums[i];
+      }
+    }
+
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("minutes", TimeUnit.MILLISECONDS.toMinutes(windowMillis));
+    map.put("count", count);
+    if (count > 0) {
+      double mean = sum / count;
+      double variance = Math.max(0, squareSum / count - mean * mean);
+      map.put("mean", mean);
+      map.put("variance", variance);
+      map.put("stdDev", Math.sqrt(variance));
+      double timeVariance = count * timeSquareSum - timeSum * timeSum;
+      if (count > 1 && timeVariance > 0) {
+        map.put("ratePerHour", (count * timeValueSum - timeSum * sum) / timeVariance);
+      }
+    }
+    return map;
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Maps;
+import com.google.devpartners.homemonitor.model.AlertRule;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.util.GsonUtil;
+import com.google.devpartners.homemonitor.util.RestUtil;
+
+/**
+ * Task that posts a fired alert to the webhook of its {@link AlertRule}, a
+ * failed post is retried by the queue.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class AlertNotificationTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(AlertNotificationTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  private final String webhookUrl;
+  private final String json;
+
+  public AlertNotificationTask(String webhookUrl, String json) {
+    this.webhookUrl = webhookUrl;
+    this.json = json;
+  }
+
+  public static void enqueue(AlertRule rule, DeviceTemperatureHumidityReport report) {
+    Map<String, Object> alert = Maps.newLinkedHashMap();
+    alert.put("rule", rule);
+    alert.put("deviceId", report.deviceId());
+    alert.put("date", report.getDate());
+    alert.put("value", rule.getValue(report));
+    alert.put("report", report);
+    String json = GsonUtil.getGsonBuilder().create().toJson(alert);
+
+    QueueFactory.getQueue(QUEUE).add(
+        TaskOptions.Builder.withPayload(new AlertNotificationTask(rule.getWebhookUrl(), json)));
+  }
+
+  @Override
+  public void run() {
+    // Checked again, the host may resolve elsewhere since the rule was saved
+    try {
+      RestUtil.checkPublicHttpsUrl(webhookUrl);
+    } catch (IllegalArgumentException e) {
+      LOGGER.severe("Not posting an alert: " + e.getMessage());
+      return;
+    }
+    try {
+      RestUtil.restPost(webhookUrl, json);
+      LOGGER.info("Posted an alert to " + webhookUrl);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not post the alert to " + webhookUrl, e);
+    }
+  }
+}
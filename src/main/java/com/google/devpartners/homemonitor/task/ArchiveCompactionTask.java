@@ -0,0 +1,112 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.ForwardingEntityPersister;
+import com.google.devpartners.homemonitor.persistence.objectify.TieredEntityPersister;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that compacts the old reports of one Device into the monthly archive
+ * blobs of the {@link TieredEntityPersister}.
+ *
+ * The reports are processed in batches, when there is more work left than
+ * fits in one task, the task enqueues itself again.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class ArchiveCompactionTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(ArchiveCompactionTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  private static final int BATCH_SIZE = 5000;
+  private static final int BATCHES_PER_TASK = 10;
+
+  private final Long deviceId;
+
+  public ArchiveCompactionTask(Long deviceId) {
+    this.deviceId = deviceId;
+  }
+
+  public static void enqueue(Long deviceId) {
+    QueueFactory.getQueue(QUEUE)
+        .add(TaskOptions.Builder.withPayload(new ArchiveCompactionTask(deviceId)));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        compact();
+      }
+    });
+  }
+
+  private void compact() {
+    TieredEntityPersister tieredPersister = getTieredPersister();
+    if (tieredPersister == null) {
+      LOGGER.warning("The persister has no archive tier, nothing to compact");
+      return;
+    }
+
+    Date boundary = tieredPersister.getArchiveBoundary();
+    int archived = 0;
+    for (int batch = 0; batch < BATCHES_PER_TASK; batch++) {
+      List<DeviceTemperatureHumidityReport> reports = tieredPersister.getDelegate().get(
+          DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID,
+          deviceId, DeviceTemperatureHumidityReport.DATE, new Date(0),
+          new Date(boundary.getTime() - 1), 0, BATCH_SIZE);
+      if (reports.isEmpty()) {
+        break;
+      }
+
+      int batchArchived = tieredPersister.archive(deviceId, reports);
+      archived += batchArchived;
+      if (batchArchived == 0) {
+        // Nothing could be archived, retrying would loop over the same reports
+        break;
+      }
+      if (batch == BATCHES_PER_TASK - 1) {
+        enqueue(deviceId);
+      }
+    }
+    LOGGER.info("Archived " + archived + " reports of Device " + deviceId);
+  }
+
+  private TieredEntityPersister getTieredPersister() {
+    EntityPersister persister = RestServer.getPersister();
+    while (!(persister instanceof TieredEntityPersister)
+        && persister instanceof ForwardingEntityPersister) {
+      persister = ((ForwardingEntityPersister) persister).getDelegate();
+    }
+    return persister instanceof TieredEntityPersister ? (TieredEntityPersister) persister : null;
+  }
+}
@@ -0,0 +1,436 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.DeferredTaskContext;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.ingest.ReportImportParser;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.persistence.objectify.EntityPersister;
+import com.google.devpartners.homemonitor.series.ChartTiles;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that imports the {@link DeviceTemperatureHumidityReport}s of a CSV or
+ * NDJSON file in Cloud Storage.
+ *
+ * The valid reports are saved in batches of the size of a datastore put,
+ * with several batches in flight. The byte offset after the last completed
+ * batch is saved in a {@link JobCheckpoint}, when the time budget runs out the
+ * task enqueues itself to resume from there. The batches that were in flight
+ * when a task failed may have been saved, so after a resume the first
+ * reports are compared with the ones already saved.
+ *
+ * An import that can't go on, because the file is not valid or the last
+ * retry of the task failed, is marked as failed in its checkpoint.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class BulkImportTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(BulkImportTask.class.getName());
+
+  public static final String JOB = "import";
+  public static final String QUEUE = "deferred";
+
+  // Entities per datastore put
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+  // Deferred tasks have a 10 minutes deadline
+  private static final long TIME_BUDGET_MILLIS = 5 * 60 * 1000;
+
+  private static final int MAX_LOGGED_REJECTIONS = 10;
+
+  // The task-retry-limit of the deferred queue
+  private static final int TASK_RETRY_LIMIT = 3;
+
+  private static final String RETRY_COUNT_HEADER = "X-AppEngine-TaskRetryCount";
+
+  private final String key;
+  private final String source;
+  private final String format;
+  private final HashMap<String, Long> deviceIds;
+
+  /**
+   * @param key the key of the job
+   * @param source the file, as gs://bucket/object
+   * @param format csv or ndjson
+   * @param deviceIds the Device of every device id of the file that is not the
+   *        id of the Device
+   */
+  public BulkImportTask(String key, String source, String format, Map<String, Long> deviceIds) {
+    this.key = key;
+    this.source = source;
+    this.format = format;
+    this.deviceIds = Maps.newHashMap(deviceIds);
+  }
+
+  public static void enqueue(BulkImportTask task) {
+    QueueFactory.getQueue(QUEUE).add(TaskOptions.Builder.withPayload(task));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        try {
+          importReports();
+        } catch (IllegalArgumentException e) {
+          // The file can't be imported, a retry would fail the same way
+          fail(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+          if (isLastRetry()) {
+            fail("Could not import " + source + ": " + e);
+          }
+          // Retried by the queue from the checkpoint
+          throw new IllegalStateException("Could not read " + source, e);
+        }
+      }
+    });
+  }
+
+  private void fail(String error) {
+    LOGGER.severe("Import " + key + " of " + source + " failed: " + error);
+    EntityPersister persister = RestServer.getPersister();
+    JobCheckpoint checkpoint =
+        persister.getByPrimaryId(JobCheckpoint.class, JobCheckpoint.createId(JOB, key));
+    if (checkpoint == null) {
+      checkpoint = new JobCheckpoint(JOB, key);
+    }
+    checkpoint.setFailed(error);
+    persister.save(checkpoint);
+  }
+
+  private static boolean isLastRetry() {
+    HttpServletRequest request = DeferredTaskContext.getCurrentRequest();
+    String retries = request == null ? null : request.getHeader(RETRY_COUNT_HEADER);
+    return retries != null && Integer.parseInt(retries) >= TASK_RETRY_LIMIT;
+  }
+
+  private void importReports() throws IOException {
+    long started = System.currentTimeMillis();
+    EntityPersister persister = RestServer.getPersister();
+    JobCheckpoint checkpoint =
+        persister.getByPrimaryId(JobCheckpoint.class, JobCheckpoint.createId(JOB, key));
+    if (checkpoint == null) {
+      checkpoint = new JobCheckpoint(JOB, key);
+    }
+    if (checkpoint.isDone() || checkpoint.isFailed()) {
+      return;
+    }
+
+    long offset = checkpoint.getCursor() == null ? 0 : Long.parseLong(checkpoint.getCursor());
+    ReportImportParser parser = new ReportImportParser(format, deviceIds);
+    if (parser.hasHeader() && offset > 0) {
+      LineInput header = new LineInput(open(0), 0);
+      try {
+        parser.setHeader(header.readLine());
+      } finally {
+        header.close();
+      }
+    }
+
+    // Batches after the checkpoint that may have been saved by a failed task,
+    // the one being added and the ones in flight
+    int batchesToCheck = offset > 0 ? MAX_BATCHES_IN_FLIGHT + 1 : 0;
+    long imported = checkpoint.getProcessed();
+    Deque<PendingBatch> saves = new ArrayDeque<PendingBatch>();
+    List<DeviceTemperatureHumidityReport> batch = Lists.newArrayList();
+    // Dates of every Device in the batch, including the reports already saved
+    Map<Long, Date[]> batchDates = Maps.newHashMap();
+    int rejected = 0;
+    LineInput input = new LineInput(open(offset), offset);
+    try {
+      if (parser.hasHeader() && offset == 0) {
+        String header = input.readLine();
+        if (header == null) {
+          throw new IllegalArgumentException("Empty file " + source);
+        }
+        parser.setHeader(header);
+      }
+
+      String line;
+      while ((line = input.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          DeviceTemperatureHumidityReport report = parser.parse(line);
+          if (RestServer.getDeviceRegistry().getDevice(persister, report.deviceId()) == null) {
+            throw new IllegalArgumentException("Unknown Device " + report.deviceId());
+          }
+          batch.add(report);
+          addToRange(batchDates, report);
+        } catch (IllegalArgumentException e) {
+          if (checkpoint.getRejected() + rejected < MAX_LOGGED_REJECTIONS) {
+            LOGGER.warning("Rejected line at byte " + input.getOffset() + " of " + source + ": "
+                + e.getMessage());
+          }
+          rejected++;
+        }
+
+        if (batch.size() == BATCH_SIZE) {
+          int size = batch.size();
+          if (batchesToCheck > 0) {
+            batchesToCheck--;
+            removeSaved(persister, batch);
+          }
+          saves.add(new PendingBatch(persister, batch, batchDates, size, input.getOffset(),
+              rejected));
+          batch = Lists.newArrayList();
+          batchDates = Maps.newHashMap();
+          rejected = 0;
+          while (saves.size() > MAX_BATCHES_IN_FLIGHT) {
+            saves.poll().complete(persister, checkpoint);
+          }
+
+          if (System.currentTimeMillis() - started > TIME_BUDGET_MILLIS) {
+            while (!saves.isEmpty()) {
+              saves.poll().complete(persister, checkpoint);
+            }
+            enqueue(this);
+            logThroughput(checkpoint, imported, started, "so far, continuing in a new task");
+            return;
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // The saves in flight hold datastore slots until they complete
+      for (PendingBatch pending : saves) {
+        pending.abandon();
+      }
+      throw e;
+    } finally {
+      input.close();
+    }
+
+    int size = batch.size();
+    if (batchesToCheck > 0) {
+      removeSaved(persister, batch);
+    }
+    saves.add(new PendingBatch(persister, batch, batchDates, size, input.getOffset(),
+        rejected));
+    while (!saves.isEmpty()) {
+      saves.poll().complete(persister, checkpoint);
+    }
+    checkpoint.setDone();
+    persister.save(checkpoint);
+    logThroughput(checkpoint, imported, started, "done");
+  }
+
+  /**
+   * Opens the file at the given byte offset.
+   */
+  protected InputStream open(long offset) throws IOException {
+    BlobKey blobKey = BlobstoreServiceFactory.getBlobstoreService()
+        .createGsBlobKey("/gs/" + source.substring("gs://".length()));
+    return new BlobstoreInputStream(blobKey, offset);
+  }
+
+  /**
+   * Removes from the batch the reports that were already saved, the ones with
+   * the date of a saved report of their Device.
+   */
+  private void removeSaved(EntityPersister persister,
+      List<DeviceTemperatureHumidityReport> batch) {
+    Map<Long, Date[]> ranges = Maps.newHashMap();
+    for (DeviceTemperatureHumidityReport report : batch) {
+      addToRange(ranges, report);
+    }
+    Set<String> saved = Sets.newHashSet();
+    for (Map.Entry<Long, Date[]> range : ranges.entrySet()) {
+      for (DeviceTemperatureHumidityReport report : persister.get(
+          DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID,
+          range.getKey(), DeviceTemperatureHumidityReport.DATE, range.getValue()[0],
+          range.getValue()[1])) {
+        saved.add(report.deviceId() + ":" + report.getDate().getTime());
+      }
+    }
+    for (Iterator<DeviceTemperatureHumidityReport> it = batch.iterator(); it.hasNext();) {
+      DeviceTemperatureHumidityReport report = it.next();
+      if (saved.contains(report.deviceId() + ":" + report.getDate().getTime())) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Extends the range of dates of the Device of the report to its date.
+   */
+  private static void addToRange(Map<Long, Date[]> ranges,
+      DeviceTemperatureHumidityReport report) {
+    Date[] range = ranges.get(report.deviceId());
+    if (range == null) {
+      ranges.put(report.deviceId(), new Date[] {report.getDate(), report.getDate()});
+    } else if (report.getDate().before(range[0])) {
+      range[0] = report.getDate();
+    } else if (report.getDate().after(range[1])) {
+      range[1] = report.getDate();
+    }
+  }
+
+  private void logThroughput(JobCheckpoint checkpoint, long importedBefore, long started,
+      String state) {
+    long imported = checkpoint.getProcessed() - importedBefore;
+    long millis = Math.max(1, System.currentTimeMillis() - started);
+    Metrics.add("import.reports", imported);
+    LOGGER.info("Import " + key + " of " + source + ": " + checkpoint.getProcessed()
+        + " reports imported and " + checkpoint.getRejected() + " rejected " + state + ", "
+        + (imported * 1000 / millis) + " reports/s in this task");
+  }
+
+  /**
+   * Asynchronous save of one batch of reports.
+   */
+  private static class PendingBatch {
+
+    private final Result<Map<Key<DeviceTemperatureHumidityReport>,
+        DeviceTemperatureHumidityReport>> result;
+    private final Map<Long, Date[]> dates;
+    private final long offset;
+    private final int size;
+    private final int rejected;
+
+    /**
+     * @param size the number of reports of the batch, including the ones that
+     *        were already saved
+     */
+    PendingBatch(EntityPersister persister, List<DeviceTemperatureHumidityReport> reports,
+        Map<Long, Date[]> dates, int size, long offset, int rejected) {
+      this.result = reports.isEmpty() ? null : persister.saveAsync(reports);
+      this.dates = dates;
+      this.offset = offset;
+      this.size = size;
+      this.rejected = rejected;
+    }
+
+    /**
+     * Waits for the save, deletes the stored chart tiles of its dates, enqueues
+     * the rebuild of the daily rollups of its days and moves the checkpoint
+     * past this batch, so a retry does both again.
+     */
+    void complete(EntityPersister persister, JobCheckpoint checkpoint) {
+      if (result != null) {
+        result.now();
+      }
+      List<DailyRollupTask> rollups = Lists.newArrayList();
+      for (Map.Entry<Long, Date[]> range : dates.entrySet()) {
+        ChartTiles.invalidate(persister, range.getKey(), range.getValue()[0],
+            range.getValue()[1]);
+        rollups.addAll(DailyRollupTask.forDays(range.getKey(), range.getValue()[0],
+            range.getValue()[1]));
+      }
+      DailyRollupTask.enqueue(rollups);
+      checkpoint.advance(Long.toString(offset), size, rejected);
+      persister.save(checkpoint);
+      // The session would keep every report of the file
+      ofy().clear();
+    }
+
+    /**
+     * Waits for the save without moving the checkpoint, the batch is checked
+     * again by the retry.
+     */
+    void abandon() {
+      try {
+        if (result != null) {
+          result.now();
+        }
+      } catch (RuntimeException e) {
+        LOGGER.warning("Batch before byte " + offset + " failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads the lines of the file keeping the byte offset of the next line.
+   */
+  private static class LineInput {
+
+    private final InputStream input;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private long offset;
+
+    LineInput(InputStream input, long offset) {
+      this.input = new BufferedInputStream(input, 64 * 1024);
+      this.offset = offset;
+    }
+
+    /**
+     * @return the next line without the line terminator, null at the end
+     */
+    String readLine() throws IOException {
+      line.reset();
+      int b;
+      while ((b = input.read()) >= 0) {
+        offset++;
+        if (b == '\n') {
+          break;
+        }
+        line.write(b);
+      }
+      if (b < 0 && line.size() == 0) {
+        return null;
+      }
+      String value = new String(line.toByteArray(), Charsets.UTF_8);
+      return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    void close() throws IOException {
+      input.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.stats.DailyRollup;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that rebuilds the {@link DeviceDailyRollup} of one Device and day from
+ * its reports, replacing the one merged on ingest.
+ *
+ * The rollup is replaced in a transaction and marked with the time the
+ * reports were read, so the {@link RollupMergeTask}s of older deltas, already
+ * counted in the reports, are dropped instead of counted twice.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class DailyRollupTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(DailyRollupTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  // Most tasks added to a queue in one call
+  private static final int TASKS_PER_ADD = 100;
+
+  private final Long deviceId;
+  private final Date day;
+
+  public DailyRollupTask(Long deviceId, Date day) {
+    this.deviceId = deviceId;
+    this.day = day;
+  }
+
+  public static void enqueue(Long deviceId, Date day) {
+    QueueFactory.getQueue(QUEUE)
+        .add(TaskOptions.Builder.withPayload(new DailyRollupTask(deviceId, day)));
+  }
+
+  public static void enqueue(List<DailyRollupTask> tasks) {
+    for (List<DailyRollupTask> batch : Lists.partition(tasks, TASKS_PER_ADD)) {
+      List<TaskOptions> options = Lists.newArrayList();
+      for (DailyRollupTask task : batch) {
+        options.add(TaskOptions.Builder.withPayload(task));
+      }
+      QueueFactory.getQueue(QUEUE).add(options);
+    }
+  }
+
+  /**
+   * @return the tasks that rebuild every UTC day of the Device from the first
+   *         to the last date
+   */
+  public static List<DailyRollupTask> forDays(Long deviceId, Date first, Date last) {
+    List<DailyRollupTask> tasks = Lists.newArrayList();
+    for (DateTime day = DateUtil.startOfDayUtc(first); !day.toDate().after(last);
+        day = day.plusDays(1)) {
+      tasks.add(new DailyRollupTask(deviceId, day.toDate()));
+    }
+    return tasks;
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        rebuild();
+      }
+    });
+  }
+
+  private void rebuild() {
+    DateTime start = DateUtil.startOfDayUtc(day);
+    final Date rebuilt = new Date();
+    List<DeviceTemperatureHumidityReport> reports = RestServer.getPersister().get(
+        DeviceTemperatureHumidityReport.class, DeviceTemperatureHumidityReport.DEVICE_ID, deviceId,
+        DeviceTemperatureHumidityReport.DATE, start.toDate(),
+        new Date(start.plusDays(1).getMillis() - 1));
+
+    DailyRollup rollup = new DailyRollup(deviceId, start.toDate());
+    for (DeviceTemperatureHumidityReport report : reports) {
+      rollup.add(report.getDate(), report.getTemperature(), report.getHumidity());
+    }
+    if (rollup.getCount() > 0) {
+      final DeviceDailyRollup entity = rollup.toEntity();
+      entity.setRebuilt(rebuilt);
+      ofy().transact(new VoidWork() {
+        @Override
+        public void vrun() {
+          DeviceDailyRollup stored =
+              ofy().load().type(DeviceDailyRollup.class).id(entity.getId()).now();
+          // A newer rebuild already replaced it
+          if (stored == null || stored.getRebuilt() == null
+              || stored.getRebuilt().before(rebuilt)) {
+            ofy().save().entity(entity).now();
+          }
+        }
+      });
+    }
+    LOGGER.info("Rebuilt the DeviceDailyRollup of Device " + deviceId + " for " + start
+        + " from " + rollup.getCount() + " reports");
+  }
+}
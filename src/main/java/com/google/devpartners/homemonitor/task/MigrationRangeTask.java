@@ -0,0 +1,263 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.migration.Migration;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.util.ConfigUtil;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Task that migrates the entities of one key range of a {@link Migration}.
+ *
+ * The entities are read in key order with a cursor, in batches. Every entity
+ * is read again and migrated in its own transaction, so an entity deleted or
+ * changed since the query read it, by the archive or the retention purge, is
+ * not saved back. The cursor of the last completed batch is saved in a
+ * {@link JobCheckpoint}, when the time budget runs out the task enqueues
+ * itself to resume from there. The task waits between the batches while the
+ * datastore is slower than the target latency, so the migration does not
+ * compete with the Devices. The last range to finish ends the migration.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class MigrationRangeTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(MigrationRangeTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  // Time the task waits on the datastore per entity before it slows down
+  public static final String TARGET_LATENCY_MILLIS = "homemonitor.migration.targetLatencyMillis";
+
+  // Entities are loaded whole, the batches are smaller than a datastore put
+  private static final int BATCH_SIZE = 100;
+
+  private static final long MIN_DELAY_MILLIS = 100;
+  private static final long MAX_DELAY_MILLIS = 10 * 1000;
+
+  // Deferred tasks have a 10 minutes deadline
+  private static final long TIME_BUDGET_MILLIS = 5 * 60 * 1000;
+
+  private final Migration<?> migration;
+  private final int range;
+  private final String start;
+  private final String end;
+
+  /**
+   * @param migration the migration
+   * @param range the index of the key range
+   * @param start the first key of the range as a web safe string, null for the
+   *        first key of the kind
+   * @param end the key after the range as a web safe string, null for the end
+   *        of the kind
+   */
+  public MigrationRangeTask(Migration<?> migration, int range, String start, String end) {
+    this.migration = migration;
+    this.range = range;
+    this.start = start;
+    this.end = end;
+  }
+
+  public static void enqueue(MigrationRangeTask task, long countdownMillis) {
+    QueueFactory.getQueue(QUEUE)
+        .add(TaskOptions.Builder.withPayload(task).countdownMillis(countdownMillis));
+  }
+
+  public static String getRangeKey(String name, int range) {
+    return name + "-" + range;
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        migrate(migration);
+      }
+    });
+  }
+
+  private <T> void migrate(Migration<T> migration) {
+    long started = System.currentTimeMillis();
+    String rangeKey = getRangeKey(migration.getName(), range);
+    JobCheckpoint checkpoint = RestServer.getPersister().getByPrimaryId(JobCheckpoint.class,
+        JobCheckpoint.createId(Migration.JOB, rangeKey));
+    if (checkpoint == null) {
+      checkpoint = new JobCheckpoint(Migration.JOB, rangeKey);
+    }
+    if (checkpoint.isDone()) {
+      return;
+    }
+
+    Query<T> query = ofy().load().type(migration.getKind()).chunk(BATCH_SIZE);
+    if (start != null) {
+      query = query.filterKey(">=", Key.create(start));
+    }
+    if (end != null) {
+      query = query.filterKey("<", Key.create(end));
+    }
+    if (checkpoint.getCursor() != null) {
+      query = query.startAt(Cursor.fromWebSafeString(checkpoint.getCursor()));
+    }
+
+    long targetLatencyMillis = ConfigUtil.getLong(TARGET_LATENCY_MILLIS, 100);
+    long delayMillis = 0;
+    List<Key<T>> batch = Lists.newArrayList();
+    long batchStarted = System.nanoTime();
+    QueryResultIterator<Key<T>> iterator = query.keys().iterator();
+
+    while (iterator.hasNext()) {
+      batch.add(iterator.next());
+      if (batch.size() == BATCH_SIZE) {
+        migrateBatch(migration, batch, iterator.getCursor().toWebSafeString(), checkpoint);
+        batch = Lists.newArrayList();
+
+        // The read of the batch and its transactions, per entity
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStarted)
+            / BATCH_SIZE;
+        delayMillis = throttle(delayMillis, latencyMillis, targetLatencyMillis);
+        if (delayMillis > 0) {
+          sleep(delayMillis);
+        }
+
+        if (System.currentTimeMillis() - started > TIME_BUDGET_MILLIS) {
+          enqueue(this, 0);
+          LOGGER.info("Migrated " + checkpoint.getProcessed() + " entities of range " + rangeKey
+              + " so far, continuing in a new task");
+          return;
+        }
+        batchStarted = System.nanoTime();
+      }
+    }
+    if (!batch.isEmpty()) {
+      migrateBatch(migration, batch, null, checkpoint);
+    }
+    checkpoint.setDone();
+    ofy().save().entity(checkpoint).now();
+    LOGGER.info("Migrated " + checkpoint.getProcessed() + " entities of range " + rangeKey);
+
+    finishIfLast(migration.getName());
+  }
+
+  /**
+   * Doubles the pause between batches while they are slower than the target,
+   * and halves it while they are faster.
+   */
+  private static long throttle(long delayMillis, long latencyMillis, long targetLatencyMillis) {
+    if (latencyMillis > targetLatencyMillis) {
+      Metrics.increment("migration.throttled");
+      return Math.min(MAX_DELAY_MILLIS, Math.max(MIN_DELAY_MILLIS, delayMillis * 2));
+    }
+    return delayMillis / 2 < MIN_DELAY_MILLIS ? 0 : delayMillis / 2;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Marks the migration as done when all its ranges are, which ends the dual
+   * read on every instance at its next refresh.
+   */
+  private static void finishIfLast(String name) {
+    JobCheckpoint checkpoint = RestServer.getPersister().getByPrimaryId(JobCheckpoint.class,
+        JobCheckpoint.createId(Migration.JOB, name));
+    if (checkpoint == null || checkpoint.isDone()) {
+      return;
+    }
+    int rangeCount = MigrationTask.getSplits(checkpoint).size() + 1;
+    long processed = 0;
+    for (int range = 0; range < rangeCount; range++) {
+      JobCheckpoint rangeCheckpoint = RestServer.getPersister().getByPrimaryId(
+          JobCheckpoint.class, JobCheckpoint.createId(Migration.JOB, getRangeKey(name, range)));
+      if (rangeCheckpoint == null || !rangeCheckpoint.isDone()) {
+        return;
+      }
+      processed += rangeCheckpoint.getProcessed();
+    }
+    checkpoint.advance(checkpoint.getCursor(), processed);
+    checkpoint.setDone();
+    ofy().save().entity(checkpoint).now();
+    LOGGER.info("Finished migration " + name + " of " + processed + " entities");
+  }
+
+  /**
+   * Migrates the entities of a batch and moves the checkpoint past it.
+   */
+  private static <T> void migrateBatch(Migration<T> migration, List<Key<T>> keys, String cursor,
+      JobCheckpoint checkpoint) {
+    for (Key<T> key : keys) {
+      migrate(migration, key);
+    }
+    checkpoint.advance(cursor, keys.size());
+    ofy().save().entity(checkpoint).now();
+    // The session would keep every entity of the range
+    ofy().clear();
+    Metrics.add("migration.entities", keys.size());
+  }
+
+  /**
+   * Reads the entity and saves its migrated entities in a transaction, an
+   * entity deleted since the query is skipped. The entities replaced by
+   * entities with other keys are deleted in the same transaction.
+   */
+  private static <T> void migrate(final Migration<T> migration, final Key<T> key) {
+    ofy().transact(new VoidWork() {
+      @Override
+      public void vrun() {
+        T entity = ofy().load().key(key).now();
+        if (entity == null) {
+          return;
+        }
+        List<?> newEntities = migration.migrate(entity);
+        if (newEntities.isEmpty()) {
+          return;
+        }
+        boolean kept = false;
+        for (Object newEntity : newEntities) {
+          kept |= key.equals(Key.create(newEntity));
+        }
+        ofy().save().entities(newEntities).now();
+        if (!kept) {
+          ofy().delete().key(key).now();
+        }
+      }
+    });
+  }
+}
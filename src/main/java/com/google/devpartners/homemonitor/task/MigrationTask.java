@@ -0,0 +1,194 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.migration.Migration;
+import com.google.devpartners.homemonitor.migration.Migrations;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.persistence.objectify.MigratingEntityPersister;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that starts a {@link Migration}, splitting its kind into key ranges
+ * that are migrated in parallel by {@link MigrationRangeTask}s.
+ *
+ * The split points come from a sample of the keys ordered by the
+ * __scatter__ property of the datastore, so the ranges have about the same
+ * number of entities without reading the whole kind. The ranges start after
+ * the instances had the time to see the migration and switch to dual read.
+ *
+ * The split points are saved in the checkpoint of the migration, and the
+ * tasks of the ranges are named after the migration and the progress of their
+ * range. A retry, or a new start while the migration runs, adds the tasks of
+ * the ranges that are not done again. The ones with the name of a task
+ * already added are skipped, while a range whose continuation ran out of
+ * retries has made progress since its named task and is enqueued again.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class MigrationTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(MigrationTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  // Number of key ranges, and so of tasks running in parallel
+  public static final String RANGES = "homemonitor.migration.ranges";
+
+  // The tasks of all the ranges are added to the queue in one call
+  public static final int MAX_RANGES = 100;
+
+  // Sampled keys per key range
+  private static final int OVERSAMPLING = 32;
+
+  private final String name;
+  private final int ranges;
+
+  public MigrationTask(String name, int ranges) {
+    this.name = name;
+    this.ranges = Math.max(1, Math.min(MAX_RANGES, ranges));
+  }
+
+  public static void enqueue(String name, int ranges) {
+    QueueFactory.getQueue(QUEUE)
+        .add(TaskOptions.Builder.withPayload(new MigrationTask(name, ranges)));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        start(Migrations.forName(name));
+      }
+    });
+  }
+
+  private <T> void start(Migration<T> migration) {
+    JobCheckpoint checkpoint = RestServer.getPersister().getByPrimaryId(JobCheckpoint.class,
+        JobCheckpoint.createId(Migration.JOB, name));
+    if (checkpoint != null && !checkpoint.isDone()) {
+      LOGGER.info("Migration " + name + " is already running, enqueuing its missing ranges");
+      enqueueRanges(migration, checkpoint);
+      return;
+    }
+
+    List<String> splits = split(migration.getKind());
+
+    // The cursor of the migration has its split points
+    checkpoint = new JobCheckpoint(Migration.JOB, name);
+    checkpoint.advance(Joiner.on(',').join(splits), 0);
+    List<JobCheckpoint> checkpoints = Lists.newArrayList(checkpoint);
+    for (int range = 0; range <= splits.size(); range++) {
+      checkpoints.add(
+          new JobCheckpoint(Migration.JOB, MigrationRangeTask.getRangeKey(name, range)));
+    }
+    ofy().save().entities(checkpoints).now();
+
+    enqueueRanges(migration, checkpoint);
+    LOGGER.info("Started migration " + name + " of " + migration.getKind().getSimpleName()
+        + " in " + (splits.size() + 1) + " key ranges");
+  }
+
+  /**
+   * @return the split points saved in the checkpoint of the migration
+   */
+  static List<String> getSplits(JobCheckpoint checkpoint) {
+    return checkpoint.getCursor() == null ? Lists.<String>newArrayList()
+        : Splitter.on(',').omitEmptyStrings().splitToList(checkpoint.getCursor());
+  }
+
+  /**
+   * Adds the tasks of the ranges that are not done in one call, the names of
+   * the tasks already added at the same progress are taken so they are
+   * skipped.
+   */
+  private static <T> void enqueueRanges(Migration<T> migration, JobCheckpoint checkpoint) {
+    List<String> splits = getSplits(checkpoint);
+    int rangeCount = splits.size() + 1;
+    List<String> ids = Lists.newArrayList();
+    for (int range = 0; range < rangeCount; range++) {
+      ids.add(JobCheckpoint.createId(Migration.JOB,
+          MigrationRangeTask.getRangeKey(migration.getName(), range)));
+    }
+    Map<String, JobCheckpoint> rangeCheckpoints =
+        ofy().load().type(JobCheckpoint.class).ids(ids);
+
+    long countdownMillis = MigratingEntityPersister.getRefreshMillis();
+    List<TaskOptions> tasks = Lists.newArrayList();
+    for (int range = 0; range < rangeCount; range++) {
+      JobCheckpoint rangeCheckpoint = rangeCheckpoints.get(ids.get(range));
+      if (rangeCheckpoint != null && rangeCheckpoint.isDone()) {
+        continue;
+      }
+      long processed = rangeCheckpoint == null ? 0 : rangeCheckpoint.getProcessed();
+      MigrationRangeTask task = new MigrationRangeTask(migration, range,
+          range == 0 ? null : splits.get(range - 1),
+          range == rangeCount - 1 ? null : splits.get(range));
+      tasks.add(TaskOptions.Builder.withPayload(task).countdownMillis(countdownMillis)
+          .taskName(migration.getName() + "-" + checkpoint.getCreated().getTime() + "-" + range
+              + "-" + processed));
+    }
+    if (tasks.isEmpty()) {
+      return;
+    }
+    try {
+      QueueFactory.getQueue(MigrationRangeTask.QUEUE).add(tasks);
+    } catch (TaskAlreadyExistsException e) {
+      // The other tasks were added
+      LOGGER.info("Some ranges of migration " + migration.getName() + " were already enqueued");
+    }
+  }
+
+  /**
+   * @return the keys that split the kind into ranges, as web safe strings in
+   *         ascending order, fewer than ranges - 1 when the kind is small
+   */
+  private <T> List<String> split(Class<T> kind) {
+    List<Key<T>> sample = Ordering.natural().sortedCopy(ofy().load().type(kind)
+        .order("__scatter__").limit(ranges * OVERSAMPLING).keys().list());
+
+    List<String> splits = Lists.newArrayList();
+    Key<T> previous = null;
+    for (int range = 1; range < ranges; range++) {
+      int index = range * sample.size() / ranges;
+      if (index == 0 || index >= sample.size() || sample.get(index).equals(previous)) {
+        continue;
+      }
+      previous = sample.get(index);
+      splits.add(previous.toWebSafeString());
+    }
+    return splits;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.DeviceReportArchive;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.model.JobCheckpoint;
+import com.google.devpartners.homemonitor.series.ChartTiles;
+import com.google.devpartners.homemonitor.util.DateUtil;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Task that deletes the reports of one Device older than the retention
+ * cutoff.
+ *
+ * The reports are found with a keys-only cursor query and deleted in bounded
+ * parallel batches, so entity bodies are never loaded. The cursor of the last
+ * completed batch is saved in a {@link JobCheckpoint}, when the time budget
+ * runs out the task enqueues itself to resume from there.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class RetentionPurgeTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(RetentionPurgeTask.class.getName());
+
+  public static final String JOB = "retention";
+  public static final String QUEUE = "deferred";
+
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+  // Deferred tasks have a 10 minutes deadline
+  private static final long TIME_BUDGET_MILLIS = 5 * 60 * 1000;
+
+  private final Long deviceId;
+  private final Date cutoff;
+  private final boolean resume;
+
+  public RetentionPurgeTask(Long deviceId, Date cutoff, boolean resume) {
+    this.deviceId = deviceId;
+    this.cutoff = cutoff;
+    this.resume = resume;
+  }
+
+  public static void enqueue(Long deviceId, Date cutoff, boolean resume) {
+    QueueFactory.getQueue(QUEUE)
+        .add(TaskOptions.Builder.withPayload(new RetentionPurgeTask(deviceId, cutoff, resume)));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        purge();
+      }
+    });
+  }
+
+  private void purge() {
+    long started = System.currentTimeMillis();
+    JobCheckpoint checkpoint = null;
+    if (resume) {
+      checkpoint = RestServer.getPersister().getByPrimaryId(JobCheckpoint.class,
+          JobCheckpoint.createId(JOB, deviceId.toString()));
+    }
+    if (checkpoint == null) {
+      checkpoint = new JobCheckpoint(JOB, deviceId.toString());
+    }
+
+    Query<DeviceTemperatureHumidityReport> query = ofy().load()
+        .type(DeviceTemperatureHumidityReport.class)
+        .filter(DeviceTemperatureHumidityReport.DEVICE_ID, deviceId)
+        .filter(DeviceTemperatureHumidityReport.DATE + " <", cutoff)
+        .chunk(BATCH_SIZE);
+    if (checkpoint.getCursor() != null) {
+      query = query.startAt(Cursor.fromWebSafeString(checkpoint.getCursor()));
+    }
+
+    Deque<PendingBatch> deletes = new ArrayDeque<PendingBatch>();
+    List<Key<DeviceTemperatureHumidityReport>> batch = Lists.newArrayList();
+    QueryResultIterator<Key<DeviceTemperatureHumidityReport>> iterator =
+        query.keys().iterator();
+
+    while (iterator.hasNext()) {
+      batch.add(iterator.next());
+      if (batch.size() == BATCH_SIZE) {
+        deletes.add(new PendingBatch(batch, iterator.getCursor().toWebSafeString()));
+        batch = Lists.newArrayList();
+        while (deletes.size() > MAX_BATCHES_IN_FLIGHT) {
+          deletes.poll().complete(checkpoint);
+        }
+
+        if (System.currentTimeMillis() - started > TIME_BUDGET_MILLIS) {
+          while (!deletes.isEmpty()) {
+            deletes.poll().complete(checkpoint);
+          }
+          ofy().save().entity(checkpoint).now();
+          enqueue(deviceId, cutoff, true);
+          LOGGER.info("Purged " + checkpoint.getProcessed() + " reports of Device " + deviceId
+              + " so far, continuing in a new task");
+          return;
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      deletes.add(new PendingBatch(batch, null));
+    }
+    while (!deletes.isEmpty()) {
+      deletes.poll().complete(checkpoint);
+    }
+
+    int archives = purgeArchives();
+    int tiles = ChartTiles.invalidate(RestServer.getPersister(), deviceId, new Date(0), cutoff);
+    checkpoint.setDone();
+    ofy().save().entity(checkpoint).now();
+    LOGGER.info("Purged " + checkpoint.getProcessed() + " reports, " + archives
+        + " archives and " + tiles + " chart tiles of Device " + deviceId + " older than "
+        + cutoff);
+  }
+
+  /**
+   * Deletes the archives of the months that ended before the month of the
+   * cutoff, a month that is only partially expired is kept until it is whole.
+   */
+  private int purgeArchives() {
+    Date month = DateUtil.startOfMonthUtc(cutoff).toDate();
+    List<Key<DeviceReportArchive>> keys = ofy().load().type(DeviceReportArchive.class)
+        .filter(DeviceReportArchive.DEVICE_ID, deviceId)
+        .filter(DeviceReportArchive.MONTH + " <", month)
+        .keys().list();
+    if (!keys.isEmpty()) {
+      ofy().delete().keys(keys).now();
+    }
+    return keys.size();
+  }
+
+  /**
+   * Asynchronous delete of one batch of keys.
+   */
+  private static class PendingBatch {
+
+    private final Result<Void> result;
+    private final String cursor;
+    private final int size;
+
+    PendingBatch(List<Key<DeviceTemperatureHumidityReport>> keys, String cursor) {
+      this.result = ofy().delete().keys(keys);
+      this.cursor = cursor;
+      this.size = keys.size();
+    }
+
+    /**
+     * Waits for the delete and moves the checkpoint past this batch.
+     */
+    void complete(JobCheckpoint checkpoint) {
+      result.now();
+      checkpoint.advance(cursor, size);
+      ofy().save().entity(checkpoint).now();
+    }
+  }
+}
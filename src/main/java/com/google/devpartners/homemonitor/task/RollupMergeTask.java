@@ -0,0 +1,106 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.Date;
+import java.util.List;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.model.DeviceDailyRollup;
+import com.google.devpartners.homemonitor.stats.DailyRollup;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that merges one rollup accumulated by an instance, a delta, into the
+ * stored {@link DeviceDailyRollup} in a transaction.
+ *
+ * The id of the delta is saved with the stored rollup, so a retry after the
+ * transaction committed does not count it twice. Deltas started before the
+ * stored rollup was rebuilt from the reports are dropped, the rebuild already
+ * counted them.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class RollupMergeTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String QUEUE = "deferred";
+
+  // Most tasks added to a queue in one call
+  private static final int TASKS_PER_ADD = 100;
+
+  private final DeviceDailyRollup delta;
+  private final String deltaId;
+  private final Date started;
+
+  /**
+   * @param delta the rollup to merge
+   * @param deltaId the unique id of the delta
+   * @param started when the delta started to accumulate reports
+   */
+  public RollupMergeTask(DeviceDailyRollup delta, String deltaId, Date started) {
+    this.delta = delta;
+    this.deltaId = deltaId;
+    this.started = started;
+  }
+
+  public static void enqueue(List<RollupMergeTask> tasks) {
+    for (List<RollupMergeTask> batch : Lists.partition(tasks, TASKS_PER_ADD)) {
+      List<TaskOptions> options = Lists.newArrayList();
+      for (RollupMergeTask task : batch) {
+        options.add(TaskOptions.Builder.withPayload(task));
+      }
+      QueueFactory.getQueue(QUEUE).add(options);
+    }
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        merge();
+      }
+    });
+  }
+
+  private void merge() {
+    ofy().transact(new VoidWork() {
+      @Override
+      public void vrun() {
+        DeviceDailyRollup stored =
+            ofy().load().type(DeviceDailyRollup.class).id(delta.getId()).now();
+        if (stored == null) {
+          stored = new DeviceDailyRollup(delta.getDeviceId(), delta.getDay());
+        } else if (stored.isMerged(deltaId)
+            || (stored.getRebuilt() != null && !started.after(stored.getRebuilt()))) {
+          return;
+        }
+        DailyRollup rollup = new DailyRollup(delta.getDeviceId(), delta.getDay());
+        rollup.merge(delta);
+        rollup.mergeInto(stored);
+        stored.addMerged(deltaId);
+        ofy().save().entity(stored).now();
+      }
+    });
+  }
+}
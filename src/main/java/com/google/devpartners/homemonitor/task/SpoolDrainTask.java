@@ -0,0 +1,76 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.ingest.ReportSpool;
+import com.google.devpartners.homemonitor.model.DeviceTemperatureHumidityReport;
+import com.google.devpartners.homemonitor.series.ChartTiles;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that saves the reports spooled while the datastore was failing.
+ *
+ * The drain stops as soon as a batch can't be saved, the reports of that
+ * batch stay in the spool for the next run.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class SpoolDrainTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(SpoolDrainTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  // Deferred tasks have a 10 minutes deadline
+  private static final long TIME_BUDGET_MILLIS = 5 * 60 * 1000;
+
+  public static void enqueue() {
+    QueueFactory.getQueue(QUEUE).add(TaskOptions.Builder.withPayload(new SpoolDrainTask()));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        drain();
+      }
+    });
+  }
+
+  private void drain() {
+    ReportSpool reportSpool = RestServer.getReportSpool();
+    List<DeviceTemperatureHumidityReport> reports = reportSpool.drain(RestServer.getPersister(),
+        System.currentTimeMillis() + TIME_BUDGET_MILLIS);
+    for (DeviceTemperatureHumidityReport report : reports) {
+      RestServer.getRecentWindowStore().add(report);
+    }
+    // Spooled for longer than the tiles of their dates stayed open
+    ChartTiles.invalidateLate(RestServer.getPersister(), reports, System.currentTimeMillis());
+    if (!reports.isEmpty()) {
+      LOGGER.info("Drained " + reports.size() + " spooled DeviceTemperatureHumidityReports");
+    }
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.task;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.devpartners.homemonitor.RestServer;
+import com.google.devpartners.homemonitor.model.DeviceHeartbeat;
+import com.google.devpartners.homemonitor.registry.HeartbeatTable;
+import com.google.devpartners.homemonitor.util.Metrics;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+/**
+ * Task that marks as offline the Devices that stopped reporting.
+ *
+ * Only the heartbeats of the Devices that are online are checked, and only
+ * the ones that change are saved, a Device is back online with its next
+ * report. The heartbeats of this instance are flushed first, in case no
+ * report arrived to flush them.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public class StalenessCheckTask implements DeferredTask {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(StalenessCheckTask.class.getName());
+
+  public static final String QUEUE = "deferred";
+
+  public static void enqueue() {
+    QueueFactory.getQueue(QUEUE).add(TaskOptions.Builder.withPayload(new StalenessCheckTask()));
+  }
+
+  @Override
+  public void run() {
+    ObjectifyService.run(new VoidWork() {
+      @Override
+      public void vrun() {
+        check();
+      }
+    });
+  }
+
+  private void check() {
+    HeartbeatTable heartbeatTable = RestServer.getHeartbeatTable();
+    heartbeatTable.flush(RestServer.getPersister());
+    long now = System.currentTimeMillis();
+
+    List<DeviceHeartbeat> changed = Lists.newArrayList();
+    for (DeviceHeartbeat heartbeat : RestServer.getPersister().get(DeviceHeartbeat.class,
+        DeviceHeartbeat.OFFLINE, false)) {
+      boolean stale = heartbeatTable.isStale(heartbeat, now);
+      if (stale && !heartbeat.isOffline()) {
+        LOGGER.info("Device " + heartbeat.getDeviceId() + " of " + heartbeat.getOwner()
+            + " is offline, last seen " + heartbeat.getLastSeen());
+        heartbeat.setOffline(true);
+        changed.add(heartbeat);
+      }
+    }
+    if (!changed.isEmpty()) {
+      RestServer.getPersister().save(changed);
+      Metrics.add("heartbeat.offline", changed.size());
+    }
+    LOGGER.info("Marked " + changed.size() + " Devices as offline");
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Util class to read the application settings.
+ *
+ * Settings are defined as system-properties in appengine-web.xml, every getter
+ * falls back to the given default when the property is missing or invalid.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class ConfigUtil {
+
+  private static final Logger LOGGER = Logger.getLogger(ConfigUtil.class.getName());
+
+  /**
+   * Private constructor.
+   */
+  private ConfigUtil() {}
+
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        LOGGER.warning("Invalid value for " + name + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        LOGGER.warning("Invalid value for " + name + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
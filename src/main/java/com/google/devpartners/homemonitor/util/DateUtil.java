@@ -14,11 +14,14 @@
 
 package com.google.devpartners.homemonitor.util;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Locale;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -152,6 +155,16 @@ public final class DateUtil {
     return DateUtil.dfYearMonthNoDash.print(date);
   }
 
+  /**
+   * Creates a formatter for the yyyy-MM-dd'T'HH:mm:ss'Z' format, the same
+   * used by the {@code Gson} of {@link GsonUtil}.
+   *
+   * @return a new {@code DateFormat}, they are not thread safe
+   */
+  public static DateFormat newFullDateTimeFormat() {
+    return new SimpleDateFormat(FULL_DATE_TIME_FORMAT, Locale.US);
+  }
+
   /**
    * Attempts to parse the given {@code String} to a {@code DateTime} using one
    * of the known formatters.
@@ -228,6 +241,25 @@ public final class DateUtil {
     return datetime.dayOfMonth().withMaximumValue();
   }
 
+  /**
+   * Get a DateTime for the first instant of the month, in UTC.
+   * 
+   * @return DateTime
+   */
+  public static DateTime startOfMonthUtc(Date date) {
+    return new DateTime(date, DateTimeZone.UTC).dayOfMonth().withMinimumValue()
+        .withTimeAtStartOfDay();
+  }
+
+  /**
+   * Get a DateTime for the first instant of the day, in UTC.
+   * 
+   * @return DateTime
+   */
+  public static DateTime startOfDayUtc(Date date) {
+    return new DateTime(date, DateTimeZone.UTC).withTimeAtStartOfDay();
+  }
+
   /**
    * Get a DateTime in the Google Charts format
    * 
@@ -0,0 +1,118 @@
+// Copyright 2015 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.util.concurrent.AtomicLongMap;
+
+/**
+ * Counters, gauges and tables of the instance, returned by the /metrics entry
+ * point.
+ *
+ * Counters only grow and are kept in memory, every instance has its own.
+ * Tables hold the values of many keys, like the top Devices of a counter.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+public final class Metrics {
+
+  private static final AtomicLongMap<String> COUNTERS = AtomicLongMap.create();
+
+  private static final ConcurrentMap<String, Gauge> GAUGES =
+      new ConcurrentHashMap<String, Gauge>();
+
+  private static final ConcurrentMap<String, Table> TABLES =
+      new ConcurrentHashMap<String, Table>();
+
+  /**
+   * A value of the instance that is read when the metrics are returned.
+   */
+  public interface Gauge {
+    Number getValue();
+  }
+
+  /**
+   * Rows of values of the instance that are read when the metrics are
+   * returned.
+   */
+  public interface Table {
+    List<Map<String, Object>> getRows();
+  }
+
+  /**
+   * Private constructor.
+   */
+  private Metrics() {}
+
+  public static void increment(String name) {
+    COUNTERS.incrementAndGet(name);
+  }
+
+  public static void add(String name, long delta) {
+    COUNTERS.addAndGet(name, delta);
+  }
+
+  /**
+   * Registers a value that is read every time the metrics are returned,
+   * replacing the gauge with the same name.
+   */
+  public static void registerGauge(String name, Gauge gauge) {
+    GAUGES.put(name, gauge);
+  }
+
+  /**
+   * Registers a table that is read every time the metrics are returned,
+   * replacing the table with the same name.
+   */
+  public static void registerTable(String name, Table table) {
+    TABLES.put(name, table);
+  }
+
+  /**
+   * @return the counters sorted by name
+   */
+  public static Map<String, Long> getCounters() {
+    return new TreeMap<String, Long>(COUNTERS.asMap());
+  }
+
+  /**
+   * @return the current value of the gauges sorted by name
+   */
+  public static Map<String, Number> getGauges() {
+    Map<String, Number> gauges = new TreeMap<String, Number>();
+    for (Entry<String, Gauge> gauge : GAUGES.entrySet()) {
+      gauges.put(gauge.getKey(), gauge.getValue().getValue());
+    }
+    return gauges;
+  }
+
+  /**
+   * @return the current rows of the tables sorted by name
+   */
+  public static Map<String, List<Map<String, Object>>> getTables() {
+    Map<String, List<Map<String, Object>>> tables =
+        new TreeMap<String, List<Map<String, Object>>>();
+    for (Entry<String, Table> table : TABLES.entrySet()) {
+      tables.put(table.getKey(), table.getValue().getRows());
+    }
+    return tables;
+  }
+}
@@ -18,7 +18,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 import java.util.List;
+import java.util.Locale;
 
 import org.restlet.Client;
 import org.restlet.Request;
@@ -28,6 +34,7 @@ import org.restlet.data.Method;
 import org.restlet.data.Preference;
 import org.restlet.data.Protocol;
 import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -80,4 +87,77 @@ public class RestUtil {
           "Request was not successfull (" + response.getStatus().toString() + "), URL: " + URL + " " + representation.getText());
     }
   }
+
+  /**
+   * Posts the JSON to the URL.
+   *
+   * @param URL the {@code URL} to call
+   * @param json the body of the request
+   * @throws IOException if the response is not successful
+   */
+  public static void restPost(String URL, String json) throws IOException {
+    Client client = new Client(URL.startsWith("https:") ? Protocol.HTTPS : Protocol.HTTP);
+    Request request = new Request();
+    request.setResourceRef(URL);
+    request.setMethod(Method.POST);
+    request.setEntity(new StringRepresentation(json, MediaType.APPLICATION_JSON));
+
+    Response response = client.handle(request);
+    if (!response.getStatus().isSuccess()) {
+      throw new HttpRequestException(response.getStatus().getCode(),
+          "Request was not successfull (" + response.getStatus().toString() + "), URL: " + URL);
+    }
+  }
+
+  /**
+   * Checks that a URL given by a user can be called by the server: it must be
+   * https and its host must resolve to public addresses only, so it can't
+   * reach the metadata server or the internal network.
+   *
+   * @param URL the {@code URL} to check
+   * @throws IllegalArgumentException if the URL can't be called
+   */
+  public static void checkPublicHttpsUrl(String URL) {
+    URI uri;
+    try {
+      uri = new URI(URL);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid URL: " + URL, e);
+    }
+    if (!"https".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null
+        || uri.getUserInfo() != null) {
+      throw new IllegalArgumentException("Only https URLs with a host are allowed: " + URL);
+    }
+    String host = uri.getHost().toLowerCase(Locale.ROOT);
+    if (host.equals("localhost") || host.endsWith(".localhost") || host.equals("metadata")
+        || host.endsWith(".internal") || host.endsWith(".local")) {
+      throw new IllegalArgumentException("Internal hosts are not allowed: " + URL);
+    }
+    InetAddress[] addresses;
+    try {
+      addresses = InetAddress.getAllByName(uri.getHost());
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Unknown host: " + URL, e);
+    }
+    for (InetAddress address : addresses) {
+      if (!isPublic(address)) {
+        throw new IllegalArgumentException("Internal addresses are not allowed: " + URL);
+      }
+    }
+  }
+
+  private static boolean isPublic(InetAddress address) {
+    if (address.isAnyLocalAddress() || address.isLoopbackAddress()
+        || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+        || address.isMulticastAddress()) {
+      return false;
+    }
+    byte[] bytes = address.getAddress();
+    if (address instanceof Inet6Address) {
+      // Unique local fc00::/7
+      return (bytes[0] & 0xfe) != 0xfc;
+    }
+    // Shared 100.64.0.0/10
+    return !((bytes[0] & 0xff) == 100 && (bytes[1] & 0xc0) == 64);
+  }
 }
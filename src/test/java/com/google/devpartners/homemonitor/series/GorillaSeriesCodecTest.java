@@ -0,0 +1,164 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link GorillaSeriesCodec} and its {@link BitOutput} and
+ * {@link BitInput}.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@RunWith(JUnit4.class)
+public class GorillaSeriesCodecTest {
+
+  private static final Long DEVICE_ID = 7L;
+
+  @Test
+  public void testEmptySeries() throws IOException {
+    SampleSeries decoded = roundTrip(new SampleSeries(DEVICE_ID));
+    assertEquals(0, decoded.size());
+    assertEquals(DEVICE_ID, decoded.getDeviceId());
+  }
+
+  @Test
+  public void testSingleSample() throws IOException {
+    assertRoundTrip(series(new long[] {1500000000000L}, new float[] {21.5f},
+        new float[] {40f}));
+  }
+
+  @Test
+  public void testRegularCadence() throws IOException {
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    for (int i = 0; i < 1000; i++) {
+      series.add(0, 1500000000000L + i * 60000L, 20f + (i % 50) / 10f, 40f + (i % 7));
+    }
+    assertRoundTrip(series);
+  }
+
+  @Test
+  public void testNaNAndSpecialFloats() throws IOException {
+    assertRoundTrip(series(new long[] {1000L, 2000L, 3000L, 4000L, 5000L, 6000L},
+        new float[] {Float.NaN, 21f, Float.NaN, Float.POSITIVE_INFINITY, -0f, 0f},
+        new float[] {40f, Float.NaN, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+            Float.MAX_VALUE, Float.NaN}));
+  }
+
+  @Test
+  public void testEqualTimestamps() throws IOException {
+    assertRoundTrip(series(new long[] {1000L, 1000L, 1000L, 61000L, 61000L},
+        new float[] {20f, 21f, 22f, 23f, 24f}, new float[] {40f, 40f, 41f, 41f, 42f}));
+  }
+
+  @Test
+  public void testLargeDeltaOfDelta() throws IOException {
+    // Every bucket of the delta of delta, both signs, up to a whole long
+    long[] dates = {0L, 60L, 61L, 317L, 318L, 2366L, 2367L, 100002367L, 100002368L,
+        Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, -5L, Long.MIN_VALUE / 2};
+    float[] values = new float[dates.length];
+    Arrays.fill(values, 20f);
+    assertRoundTrip(series(dates, values, values));
+  }
+
+  @Test
+  public void testRandomSeries() throws IOException {
+    Random random = new Random(42);
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    long date = 1500000000000L;
+    for (int i = 0; i < 5000; i++) {
+      date += random.nextInt(3) == 0 ? random.nextInt(1000000) - 500000 : 60000;
+      series.add(0, date, random.nextFloat() * 100 - 50, Float.intBitsToFloat(random.nextInt()));
+    }
+    assertRoundTrip(series);
+  }
+
+  @Test
+  public void testTruncatedData() {
+    byte[] data = GorillaSeriesCodec.encode(series(new long[] {1000L, 2000L, 9000L},
+        new float[] {20f, 21f, 22f}, new float[] {40f, 41f, 42f}));
+    assertDecodeFails(Arrays.copyOf(data, data.length - 2));
+  }
+
+  @Test
+  public void testCorruptSize() {
+    byte[] data = GorillaSeriesCodec.encode(series(new long[] {1000L, 2000L},
+        new float[] {20f, 21f}, new float[] {40f, 41f}));
+    // Size field of 0x7FFFFFFF and of -1
+    data[0] = 0x7F;
+    assertDecodeFails(data);
+    data[0] = (byte) 0xFF;
+    data[1] = (byte) 0xFF;
+    data[2] = (byte) 0xFF;
+    data[3] = (byte) 0xFF;
+    assertDecodeFails(data);
+  }
+
+  @Test
+  public void testDecodeAtOffset() throws IOException {
+    SampleSeries series = series(new long[] {1000L, 2000L}, new float[] {20f, 21f},
+        new float[] {40f, 41f});
+    byte[] encoded = GorillaSeriesCodec.encode(series);
+    byte[] data = new byte[encoded.length + 3];
+    System.arraycopy(encoded, 0, data, 3, encoded.length);
+    assertSeriesEquals(series, GorillaSeriesCodec.decode(DEVICE_ID, data, 3));
+  }
+
+  private static SampleSeries series(long[] dates, float[] temperatures, float[] humidities) {
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    for (int i = 0; i < dates.length; i++) {
+      series.add(0, dates[i], temperatures[i], humidities[i]);
+    }
+    return series;
+  }
+
+  private static SampleSeries roundTrip(SampleSeries series) throws IOException {
+    return GorillaSeriesCodec.decode(DEVICE_ID, GorillaSeriesCodec.encode(series), 0);
+  }
+
+  private static void assertRoundTrip(SampleSeries series) throws IOException {
+    assertSeriesEquals(series, roundTrip(series));
+  }
+
+  static void assertSeriesEquals(SampleSeries expected, SampleSeries actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("date " + i, expected.getDate(i), actual.getDate(i));
+      // Compared by their bits, NaN is kept as the canonical NaN
+      assertEquals("temperature " + i, Float.floatToIntBits(expected.getTemperature(i)),
+          Float.floatToIntBits(actual.getTemperature(i)));
+      assertEquals("humidity " + i, Float.floatToIntBits(expected.getHumidity(i)),
+          Float.floatToIntBits(actual.getHumidity(i)));
+    }
+  }
+
+  private static void assertDecodeFails(byte[] data) {
+    try {
+      GorillaSeriesCodec.decode(DEVICE_ID, data, 0);
+      fail("Decoded a corrupt series");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2017 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devpartners.homemonitor.series;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test case for the {@link SampleArchiveCodec}.
+ *
+ * @author jtoledo@google.com (Julian Toledo)
+ */
+@RunWith(JUnit4.class)
+public class SampleArchiveCodecTest {
+
+  private static final Long DEVICE_ID = 7L;
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    for (int i = 0; i < 100; i++) {
+      series.add(0, 1500000000000L + i * 60000L, 20f + i / 10f, i % 3 == 0 ? Float.NaN : 40f);
+    }
+    byte[] data = SampleArchiveCodec.encode(series);
+    assertEquals(SampleArchiveCodec.VERSION_GORILLA, data[0]);
+    GorillaSeriesCodecTest.assertSeriesEquals(series,
+        SampleArchiveCodec.decode(DEVICE_ID, data));
+  }
+
+  @Test
+  public void testEmptyBlob() throws IOException {
+    assertEquals(0, SampleArchiveCodec.decode(DEVICE_ID, null).size());
+    assertEquals(0, SampleArchiveCodec.decode(DEVICE_ID, new byte[0]).size());
+    assertEquals(0, SampleArchiveCodec.decode(DEVICE_ID,
+        SampleArchiveCodec.encode(new SampleSeries(DEVICE_ID))).size());
+  }
+
+  @Test
+  public void testDeflateVersion() throws IOException {
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    series.add(0, 1000L, 20f, 40f);
+    series.add(0, 61000L, Float.NaN, 41f);
+    GorillaSeriesCodecTest.assertSeriesEquals(series,
+        SampleArchiveCodec.decode(DEVICE_ID, deflate(series, series.size())));
+  }
+
+  @Test
+  public void testDeflateCorruptSize() {
+    SampleSeries series = new SampleSeries(DEVICE_ID);
+    series.add(0, 1000L, 20f, 40f);
+    assertDecodeFails(deflate(series, Integer.MAX_VALUE));
+    assertDecodeFails(deflate(series, -1));
+    // A size that fits the blob but has no records behind it
+    assertDecodeFails(deflate(series, 2));
+  }
+
+  @Test
+  public void testUnknownVersion() {
+    assertDecodeFails(new byte[] {3, 0, 0, 0, 0});
+  }
+
+  /**
+   * @return a version 1 blob of the series with the given size field
+   */
+  private static byte[] deflate(SampleSeries series, int size) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      bytes.write(SampleArchiveCodec.VERSION_DEFLATE);
+      DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+      out.writeInt(size);
+      for (int i = 0; i < series.size(); i++) {
+        out.writeLong(series.getDate(i));
+        out.writeFloat(series.getTemperature(i));
+        out.writeFloat(series.getHumidity(i));
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void assertDecodeFails(byte[] data) {
+    try {
+      SampleArchiveCodec.decode(DEVICE_ID, data);
+      fail("Decoded a corrupt archive");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}